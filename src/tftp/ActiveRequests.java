@@ -0,0 +1,102 @@
+package tftp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Requests the server is serving or has queued, so that a request a client sends again
+ * before it hears back (TEST.txt scenarios 01 and 05) is dropped instead of starting a
+ * second transfer, with its own socket and file, toward the same client TID.
+ *
+ * A request is identified by the address and port of the client, its opcode and its
+ * file name, and stays in the table only until its transfer ends.
+ *
+ * The client of a dropped request still hears back from its transfer. The sender of a
+ * read resends the OACK or DATA 1 until it is acknowledged, and the receiver of a write
+ * resends the ACK 0 or OACK until block 1 arrives (see WindowedReceiver.setFirstReply).
+ * A transfer that does not resend its first reply, such as a client waiting in a
+ * multicast session, registers a DuplicateRequestListener to answer the request again.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class ActiveRequests {
+	private Set<String> keys = ConcurrentHashMap.newKeySet();
+	private Map<String, DuplicateRequestListener> listeners = new ConcurrentHashMap<String, DuplicateRequestListener>();
+
+	/**
+	 * @param packet Request packet received from a Client
+	 *
+	 * @return Key identifying the request, from the client address and port and the
+	 * opcode and file name of the packet
+	 */
+	public static String keyOf(DatagramPacket packet) {
+		byte[] data = packet.getData();
+		int start = packet.getOffset();
+		int end = start + packet.getLength();
+
+		// The opcode, then the file name up to its terminating 0 byte
+		int nameEnd = Math.min(start + 2, end);
+		while (nameEnd < end && data[nameEnd] != 0) {
+			nameEnd++;
+		}
+		StringBuilder key = new StringBuilder();
+		key.append(packet.getAddress().getHostAddress()).append(':').append(packet.getPort()).append(':');
+		for (int i = start; i < nameEnd; i++) {
+			key.append((char) (data[i] & 0xFF));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Records a request as being served, unless it already is.
+	 *
+	 * @param key Key of the request, from keyOf
+	 *
+	 * @return true if the request is new, false if it is a duplicate to drop
+	 */
+	public boolean add(String key) {
+		return keys.add(key);
+	}
+
+	/**
+	 * Has duplicates of a request answered by listener until the request is removed.
+	 *
+	 * @param key Key of the request, from keyOf
+	 * @param listener DuplicateRequestListener of the transfer serving the request
+	 */
+	public void setListener(String key, DuplicateRequestListener listener) {
+		if (keys.contains(key)) listeners.put(key, listener);
+	}
+
+	/**
+	 * Answers a duplicate of a request, if its transfer registered a listener.
+	 *
+	 * @param key Key of the duplicate request, from keyOf
+	 * @throws IOException if the reply could not be sent
+	 */
+	public void answerDuplicate(String key) throws IOException {
+		DuplicateRequestListener listener = listeners.get(key);
+		if (listener != null) listener.duplicateRequest(key);
+	}
+
+	/**
+	 * Forgets a request once its transfer has ended or was refused.
+	 *
+	 * @param key Key of the request, from keyOf
+	 */
+	public void remove(String key) {
+		listeners.remove(key);
+		keys.remove(key);
+	}
+
+	/**
+	 * @return Number of requests being served or queued
+	 */
+	public int size() {
+		return keys.size();
+	}
+}
@@ -0,0 +1,225 @@
+package tftp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Batch mode of the client, which runs a list of read and write jobs without prompting.
+ * Up to a given number of jobs run at once, each worker thread with a Client of its own
+ * holding the options of the transfers. Every job opens a new socket, so each transfer
+ * has its own TID and never sees packets left over from the job before it. A job that
+ * fails, even on an I/O error, is only counted as failed and the other jobs carry on.
+ * Once every job has run, the time taken and throughput of each job is printed.
+ *
+ * A manifest file lists one job per line, "read <file>" or "write <file>" (or "get" and
+ * "put"). Blank lines and lines starting with # are skipped.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class BatchTransfers {
+	private String[] clientArgs;
+	private InetAddress serverAddr;
+	private String directory;
+	private int parallel;
+	private List<Job> jobs = new ArrayList<Job>();
+
+	/**
+	 * Constructor of the BatchTransfers class
+	 *
+	 * @param clientArgs Command line options of each Client, such as -blksize
+	 * @param serverAddr Address of the server
+	 * @param directory Directory of the client files, ending with a separator
+	 * @param parallel Maximum number of jobs running at once
+	 */
+	public BatchTransfers(String[] clientArgs, InetAddress serverAddr, String directory, int parallel) {
+		if (parallel < 1) throw new IllegalArgumentException();
+		this.clientArgs = clientArgs;
+		this.serverAddr = serverAddr;
+		this.directory = directory;
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Adds a job.
+	 *
+	 * @param type READ or WRITE
+	 * @param fileName Name of the file in the client directory
+	 */
+	public void add(Request.Type type, String fileName) {
+		if (!TFTP.isPathless(fileName)) throw new IllegalArgumentException("File names must not contain a path: " + fileName);
+		jobs.add(new Job(jobs.size() + 1, type, fileName));
+	}
+
+	/**
+	 * Adds the jobs listed in a manifest file.
+	 *
+	 * @param manifestPath Path of the manifest
+	 * @throws IOException if the manifest could not be read
+	 */
+	public void addManifest(String manifestPath) throws IOException {
+		try (BufferedReader in = new BufferedReader(new FileReader(manifestPath))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				String[] fields = line.split("\\s+");
+				Request.Type type = parseType(fields[0]);
+				if (fields.length != 2 || type == null) throw new IllegalArgumentException(manifestPath + " line " + lineNumber + ": expected \"read <file>\" or \"write <file>\"");
+				add(type, fields[1]);
+			}
+		}
+	}
+
+	/**
+	 * @param command read, get, write or put
+	 *
+	 * @return Type of the request, or null if command is not a job
+	 */
+	public static Request.Type parseType(String command) {
+		if (command.equalsIgnoreCase("read") || command.equalsIgnoreCase("get")) return Request.Type.READ;
+		if (command.equalsIgnoreCase("write") || command.equalsIgnoreCase("put")) return Request.Type.WRITE;
+		return null;
+	}
+
+	/**
+	 * @return Number of jobs added
+	 */
+	public int size() {
+		return jobs.size();
+	}
+
+	/**
+	 * Runs every job, up to the parallelism limit at once, and prints a summary.
+	 *
+	 * @return true if every job completed
+	 */
+	public boolean run() {
+		final Queue<Job> pending = new ConcurrentLinkedQueue<Job>(jobs);
+		Thread[] workers = new Thread[Math.min(parallel, jobs.size())];
+		long start = System.nanoTime();
+		for (int w = 0; w < workers.length; w++) {
+			workers[w] = new Thread(new Runnable() {
+				public void run() {
+					Client client = new Client(clientArgs, serverAddr, directory);
+					Job job;
+					while ((job = pending.poll()) != null) {
+						job.run(client);
+					}
+					client.exit();
+				}
+			}, "Batch-" + w);
+			workers[w].start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// Summary, once the messages of the transfers are written
+		Log.flush();
+		int failed = 0;
+		long totalBytes = 0;
+		System.out.println(String.format("%4s  %-5s  %-24s %12s %10s %8s  %s", "job", "type", "file", "bytes", "ms", "MB/s", "result"));
+		for (Job job : jobs) {
+			System.out.println(String.format("%4d  %-5s  %-24s %12d %10.1f %8.2f  %s",
+					job.number, job.type, job.fileName, job.bytes, job.nanos / 1e6, megabytesPerSecond(job.bytes, job.nanos), job.result));
+			if (job.complete) {
+				totalBytes += job.bytes;
+			} else {
+				failed++;
+			}
+		}
+		System.out.println(String.format("%d job(s), %d failed, %d bytes in %.1f ms, %.2f MB/s with up to %d at once.",
+				jobs.size(), failed, totalBytes, elapsed / 1e6, megabytesPerSecond(totalBytes, elapsed), workers.length));
+		return failed == 0;
+	}
+
+	/**
+	 * @return Throughput of bytes moved in nanos nanoseconds
+	 */
+	private static double megabytesPerSecond(long bytes, long nanos) {
+		if (nanos <= 0) return 0;
+		return bytes / (nanos / 1e9) / (1024 * 1024);
+	}
+
+	/**
+	 * A read or write of one file and its outcome.
+	 */
+	private class Job {
+		private int number;
+		private Request.Type type;
+		private String fileName;
+		private boolean complete;
+		private String result = "not run";
+		private long bytes;
+		private long nanos;
+
+		public Job(int number, Request.Type type, String fileName) {
+			this.number = number;
+			this.type = type;
+			this.fileName = fileName;
+		}
+
+		/**
+		 * Checks the file as the interactive client does, then transfers it on a new socket.
+		 *
+		 * @param client Client of the worker thread running the job
+		 */
+		public void run(Client client) {
+			String filePath = directory + fileName;
+			if (type == Request.Type.WRITE && (!TFTP.fileExists(filePath) || TFTP.isDirectory(filePath))) {
+				result = "file not found";
+				return;
+			}
+			if (type == Request.Type.WRITE && !TFTP.isReadable(filePath)) {
+				result = "file access violation";
+				return;
+			}
+			if (type == Request.Type.READ && TFTP.fileExists(filePath)) {
+				result = "file already exists";
+				return;
+			}
+
+			long start = System.nanoTime();
+			DatagramSocket socket;
+			try {
+				socket = new DatagramSocket();
+			} catch (IOException e) {
+				result = "no socket: " + e.getMessage();
+				return;
+			}
+			try {
+				if (type == Request.Type.READ) {
+					complete = client.read(socket, serverAddr, filePath, TFTP.MODE_OCTET);
+				} else {
+					complete = client.write(socket, serverAddr, filePath, TFTP.MODE_OCTET);
+				}
+				result = complete ? "complete" : "failed";
+			} catch (IOException e) {
+				// Only this job fails, and the others carry on
+				complete = false;
+				result = "failed: " + e.getMessage();
+			} finally {
+				socket.close();
+			}
+			nanos = System.nanoTime() - start;
+			if (complete) bytes = new File(filePath).length();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package tftp;
+
+import java.util.*;
+
+/**
+ * Size-bounded cache of file blocks shared by every transfer of the server, so that a
+ * file read by many clients at once is read from disk only once. Blocks are keyed by
+ * the canonical path of the file, its version (last modified time and length), the
+ * block size and the block index, and the least recently used blocks are evicted once
+ * the cache is full.
+ *
+ * When a file is opened with a different version than the one cached, every block of
+ * the old version is dropped, so a changed file is never served from the cache.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class BlockCache {
+	private long capacity;
+	private long size;
+	private long hits;
+	private long misses;
+	private LinkedHashMap<Key, byte[]> blocks = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+	private Map<String, Version> versions = new HashMap<String, Version>();
+
+	/**
+	 * Constructor of the BlockCache class
+	 *
+	 * @param capacity Maximum number of bytes of blocks to hold
+	 */
+	public BlockCache(long capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException();
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Records the version of a file that is about to be read, dropping the blocks of any
+	 * other version of it.
+	 *
+	 * @param path Canonical path of the file
+	 * @param modified Last modified time of the file
+	 * @param length Length of the file in bytes
+	 */
+	public synchronized void checkVersion(String path, long modified, long length) {
+		Version version = new Version(modified, length);
+		Version cached = versions.put(path, version);
+		if (cached != null && !cached.equals(version)) invalidate(path);
+	}
+
+	/**
+	 * Copies a block out of the cache.
+	 *
+	 * @param path Canonical path of the file
+	 * @param modified Last modified time of the file
+	 * @param length Length of the file in bytes
+	 * @param blockSize Number of bytes in a full block
+	 * @param blockIndex Index of the block, starting at 1
+	 * @param buf Buffer to copy the block into
+	 * @param offset Position in buf at which to store the block
+	 *
+	 * @return Number of bytes copied, or -1 if the block is not cached
+	 */
+	public synchronized int get(String path, long modified, long length, int blockSize, long blockIndex, byte[] buf, int offset) {
+		byte[] block = blocks.get(new Key(path, new Version(modified, length), blockSize, blockIndex));
+		if (block == null) {
+			misses++;
+			return -1;
+		}
+		hits++;
+		System.arraycopy(block, 0, buf, offset, block.length);
+		return block.length;
+	}
+
+	/**
+	 * Adds a copy of a block to the cache, evicting the least recently used blocks to make
+	 * room for it.
+	 *
+	 * @param path Canonical path of the file
+	 * @param modified Last modified time of the file
+	 * @param length Length of the file in bytes
+	 * @param blockSize Number of bytes in a full block
+	 * @param blockIndex Index of the block, starting at 1
+	 * @param buf Buffer holding the block
+	 * @param offset Position of the block in buf
+	 * @param blockLength Number of bytes in the block
+	 */
+	public synchronized void put(String path, long modified, long length, int blockSize, long blockIndex, byte[] buf, int offset, int blockLength) {
+		if (blockLength > capacity) return;
+		byte[] block = Arrays.copyOfRange(buf, offset, offset + blockLength);
+		byte[] replaced = blocks.put(new Key(path, new Version(modified, length), blockSize, blockIndex), block);
+		if (replaced != null) size -= replaced.length;
+		size += block.length;
+
+		// Evict the least recently used blocks until the cache fits
+		Iterator<byte[]> eldest = blocks.values().iterator();
+		while (size > capacity) {
+			size -= eldest.next().length;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Drops every cached block of a file.
+	 *
+	 * @param path Canonical path of the file
+	 */
+	public synchronized void invalidate(String path) {
+		Iterator<Map.Entry<Key, byte[]>> entries = blocks.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Key, byte[]> entry = entries.next();
+			if (entry.getKey().path.equals(path)) {
+				size -= entry.getValue().length;
+				entries.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return Number of blocks served from the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return Number of blocks that had to be read from disk
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return Number of bytes of blocks held
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return Number of blocks held
+	 */
+	public synchronized int getBlockCount() {
+		return blocks.size();
+	}
+
+	/**
+	 * @return Maximum number of bytes of blocks to hold
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Last modified time and length of a file, which change when it is written.
+	 */
+	private static class Version {
+		private long modified;
+		private long length;
+
+		public Version(long modified, long length) {
+			this.modified = modified;
+			this.length = length;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Version)) return false;
+			Version v = (Version) o;
+			return modified == v.modified && length == v.length;
+		}
+
+		public int hashCode() {
+			return Long.hashCode(modified) * 31 + Long.hashCode(length);
+		}
+	}
+
+	/**
+	 * Identifies a block of one version of a file.
+	 */
+	private static class Key {
+		private String path;
+		private Version version;
+		private int blockSize;
+		private long blockIndex;
+
+		public Key(String path, Version version, int blockSize, long blockIndex) {
+			this.path = path;
+			this.version = version;
+			this.blockSize = blockSize;
+			this.blockIndex = blockIndex;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return blockIndex == k.blockIndex && blockSize == k.blockSize && path.equals(k.path) && version.equals(k.version);
+		}
+
+		public int hashCode() {
+			return ((path.hashCode() * 31 + version.hashCode()) * 31 + blockSize) * 31 + Long.hashCode(blockIndex);
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package tftp;
+
+import java.io.IOException;
+
+/**
+ * Receives the DATA blocks of an incoming transfer in order as they arrive, so
+ * that the transferred file never has to be held in memory.
+ * 
+ * A sink is finished with either commit() once the last block has been written,
+ * or abort() if the transfer fails. Calling abort() after commit() has no effect.
+ * 
+ * @author Team 4
+ * @version Iteration 5
+ */
+public interface BlockSink {
+	/**
+	 * Appends the next block of the transfer.
+	 * 
+	 * @param buf Buffer holding the block
+	 * @param offset Position of the block in buf
+	 * @param length Number of bytes in the block
+	 * 
+	 * @throws IOException if the block could not be written
+	 */
+	public void write(byte[] buf, int offset, int length) throws IOException;
+
+	/**
+	 * @return Number of bytes written to the sink so far
+	 */
+	public long getBytesWritten();
+
+	/**
+	 * Completes the transfer, making the written data available at its destination.
+	 * 
+	 * @throws IOException if the data could not be completed
+	 */
+	public void commit() throws IOException;
+
+	/**
+	 * Discards everything written to the sink.
+	 */
+	public void abort();
+}
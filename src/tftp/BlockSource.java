@@ -0,0 +1,38 @@
+package tftp;
+
+import java.io.IOException;
+
+/**
+ * Supplies the DATA blocks of an outgoing transfer on demand, so that only the
+ * blocks currently in flight need to be held in memory.
+ * 
+ * Blocks are indexed from 1 like TFTP block numbers, but the index does not wrap
+ * at MAX_BLOCK_NUMBER so files of any length can be addressed.
+ * 
+ * @author Team 4
+ * @version Iteration 5
+ */
+public interface BlockSource {
+	/**
+	 * Reads a block into the given buffer. A block shorter than getBlockSize()
+	 * (including an empty one) is the last block of the transfer.
+	 * 
+	 * @param blockIndex Index of the block to read, starting at 1
+	 * @param buf Buffer to read the block into
+	 * @param offset Position in buf at which to store the block
+	 * 
+	 * @return Number of bytes read
+	 * @throws IOException if the block could not be read
+	 */
+	public int readBlock(long blockIndex, byte[] buf, int offset) throws IOException;
+
+	/**
+	 * @return Size of a full block in bytes
+	 */
+	public int getBlockSize();
+
+	/**
+	 * Releases any resources held by the source.
+	 */
+	public void close();
+}
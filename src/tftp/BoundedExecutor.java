@@ -0,0 +1,121 @@
+package tftp;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Admission control for transfer handlers. At most maxRunning tasks run on the
+ * underlying executor at once; further tasks wait in a queue of at most maxQueued
+ * tasks and start, in order, as running tasks finish. Once the queue is also full,
+ * execute rejects the task so that the caller can turn the request away.
+ * 
+ * This works the same whether the underlying executor uses platform or virtual threads.
+ * 
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class BoundedExecutor implements Executor {
+	private Executor executor;
+	private int maxRunning;
+	private int maxQueued;
+	private int running;
+	private Queue<Runnable> queue = new ArrayDeque<Runnable>();
+
+	/**
+	 * Constructor of the BoundedExecutor class
+	 * 
+	 * @param executor Executor that runs the tasks admitted
+	 * @param maxRunning Maximum number of tasks running at once
+	 * @param maxQueued Maximum number of tasks waiting to run, 0 to reject immediately
+	 */
+	public BoundedExecutor(Executor executor, int maxRunning, int maxQueued) {
+		if (maxRunning < 1 || maxQueued < 0) throw new IllegalArgumentException();
+		this.executor = executor;
+		this.maxRunning = maxRunning;
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * Runs the task now if below the limit, otherwise queues it.
+	 * 
+	 * @param task Task to run
+	 * @throws RejectedExecutionException if the limit is reached and the queue is full
+	 */
+	public synchronized void execute(Runnable task) {
+		if (running < maxRunning) {
+			running++;
+			submit(task);
+		} else if (queue.size() < maxQueued) {
+			queue.add(task);
+		} else {
+			throw new RejectedExecutionException("Too many transfers in progress");
+		}
+	}
+
+	/**
+	 * @return Number of tasks running
+	 */
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	/**
+	 * @return Number of tasks waiting to run
+	 */
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	/**
+	 * Waits until every task admitted, including the queued ones, has finished.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (running > 0) {
+			wait();
+		}
+	}
+
+	/**
+	 * Hands a task to the underlying executor, starting the next queued task once it ends.
+	 * 
+	 * @param task Task to run
+	 */
+	private void submit(final Runnable task) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						finished();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			running--;
+			notifyAll();
+			throw e;
+		}
+	}
+
+	/**
+	 * Called when a task ends: starts the next queued task in its place.
+	 */
+	private synchronized void finished() {
+		while (!queue.isEmpty()) {
+			try {
+				submit(queue.poll());
+				return;
+			} catch (RuntimeException e) {
+				// The underlying executor could not take the task, so it is dropped
+				running++;
+			}
+		}
+		running--;
+		notifyAll();
+	}
+}
@@ -0,0 +1,27 @@
+package tftp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * PacketOutput that can also send a DATA packet whose block is held in a ByteBuffer,
+ * such as a slice of a MappedBlockSource. This lets a sender skip forming the DATA
+ * packet on the heap.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public interface ByteBufferOutput extends PacketOutput {
+	/**
+	 * Sends a DATA packet holding the remaining bytes of data. The position of data is
+	 * left as it was, so that the same buffer can be sent again on a retransmission.
+	 *
+	 * @param addr InetAddress of DATA packet destination
+	 * @param port Port number of DATA packet destination
+	 * @param blockNumber Block number of the DATA packet
+	 * @param data Block to send
+	 * @throws IOException if the packet could not be sent
+	 */
+	public void sendDATA(InetAddress addr, int port, int blockNumber, ByteBuffer data) throws IOException;
+}
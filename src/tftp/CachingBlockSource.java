@@ -0,0 +1,58 @@
+package tftp;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * BlockSource that serves blocks of a file from a BlockCache shared by every transfer,
+ * reading a block from disk only when it is not cached and then adding it to the cache.
+ *
+ * The version of the file is taken when the source is opened, so a file that changes
+ * afterwards is cached as a new version by the next transfer that reads it.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class CachingBlockSource implements BlockSource {
+	private FileBlockSource file;
+	private BlockCache cache;
+	private String path;
+	private long modified;
+	private long length;
+
+	/**
+	 * Opens the file at filePath for reading in blocks of blockSize bytes through cache.
+	 *
+	 * @param filePath Path of the file to read
+	 * @param blockSize Number of bytes in a full block
+	 * @param cache BlockCache shared by every transfer
+	 *
+	 * @throws IOException if the file cannot be opened
+	 */
+	public CachingBlockSource(String filePath, int blockSize, BlockCache cache) throws IOException {
+		File f = new File(filePath);
+		this.path = f.getCanonicalPath();
+		this.modified = f.lastModified();
+		this.length = f.length();
+		this.file = new FileBlockSource(filePath, blockSize);
+		this.cache = cache;
+		cache.checkVersion(path, modified, length);
+	}
+
+	public int readBlock(long blockIndex, byte[] buf, int offset) throws IOException {
+		int n = cache.get(path, modified, length, file.getBlockSize(), blockIndex, buf, offset);
+		if (n < 0) {
+			n = file.readBlock(blockIndex, buf, offset);
+			cache.put(path, modified, length, file.getBlockSize(), blockIndex, buf, offset, n);
+		}
+		return n;
+	}
+
+	public int getBlockSize() {
+		return file.getBlockSize();
+	}
+
+	public void close() {
+		file.close();
+	}
+}
@@ -0,0 +1,49 @@
+package tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * BlockSink backed by a stream, such as standard output or a pipe, so that a file read
+ * from the server can be handed straight to another program without being written to
+ * disk first. Each block is passed on as soon as it arrives.
+ * 
+ * Blocks passed on cannot be taken back, so abort() does nothing, and whoever reads the
+ * stream must learn from the result of the transfer whether it completed.
+ * 
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class ChannelBlockSink implements BlockSink {
+	private WritableByteChannel channel;
+	private long bytesWritten;
+
+	/**
+	 * Writes the blocks to the blocking channel, which is left open.
+	 * 
+	 * @param channel Channel to write to
+	 */
+	public ChannelBlockSink(WritableByteChannel channel) {
+		if (channel == null) throw new IllegalArgumentException();
+		this.channel = channel;
+	}
+
+	public void write(byte[] buf, int offset, int length) throws IOException {
+		ByteBuffer src = ByteBuffer.wrap(buf, offset, length);
+		while (src.hasRemaining()) {
+			channel.write(src);
+		}
+		bytesWritten += length;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public void commit() {
+	}
+
+	public void abort() {
+	}
+}
@@ -0,0 +1,65 @@
+package tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * BlockSource backed by a stream, such as standard input or a pipe, so that a file can
+ * be sent without first being written to disk. A stream can only be read once, from the
+ * start, so blocks must be read in order. WindowedSender does so, keeping the blocks of
+ * the window for any retransmission.
+ * 
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class ChannelBlockSource implements BlockSource {
+	private ReadableByteChannel channel;
+	private int blockSize;
+	private long nextIndex = 1;		// Index of the only block that can be read next
+	private long bytesRead;
+
+	/**
+	 * Reads the blocking channel in blocks of blockSize bytes.
+	 * 
+	 * @param channel Channel to read, which is left open by close
+	 * @param blockSize Number of bytes in a full block
+	 */
+	public ChannelBlockSource(ReadableByteChannel channel, int blockSize) {
+		if (channel == null || blockSize <= 0) throw new IllegalArgumentException();
+		this.channel = channel;
+		this.blockSize = blockSize;
+	}
+
+	public int readBlock(long blockIndex, byte[] buf, int offset) throws IOException {
+		if (blockIndex != nextIndex) throw new IOException("Block " + blockIndex + " of a stream read out of order");
+		ByteBuffer dst = ByteBuffer.wrap(buf, offset, blockSize);
+
+		// A read may return fewer bytes than requested, so keep reading until the block is
+		// full or the end of the stream is reached
+		while (dst.hasRemaining()) {
+			if (channel.read(dst) < 0) break;
+		}
+		int length = dst.position() - offset;
+		nextIndex++;
+		bytesRead += length;
+		return length;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return Number of bytes read from the channel so far
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Leaves the channel open, as it belongs to the caller.
+	 */
+	public void close() {
+	}
+}
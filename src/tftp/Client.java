@@ -1,8 +1,13 @@
 package tftp;
 
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 
 /**
@@ -13,15 +18,20 @@ import java.util.*;
  */
 public class Client implements Exitable, Runnable {
 	private DatagramSocket sendReceiveSocket;
-	private boolean verbose = true;
 	private static int SERVER_PORT = 69;
 	private static int ERRSIM_PORT = 68;
-	private InetAddress replyAddr;
 	private InetAddress sendAddr;
-	private int TID;
 	private int sendPort;
 	private String directory;
 	private String[] args;
+	private TransferOptions requestedOptions;
+	private boolean requestTransferSize;	// Whether to send the size of the file, or ask for it (RFC 2349)
+	private boolean requestMulticast;	// Whether to ask for reads to be sent to a multicast group (RFC 2090)
+	private boolean resume;	// Whether to carry on from where an earlier transfer of each file stopped
+	private int serverPort = SERVER_PORT;	// Port the server listens for requests on
+	private BatchTransfers batch;	// Jobs to run instead of prompting, or null
+	private Request.Type pipeType;	// Whether to stream a file to standard output or from standard input, or null
+	private String pipeFile;	// Name of the file streamed on the server
 
 	//Maximum number of times to try re-send packet without response: 3
 	private static int RESEND_LIMIT = 3;
@@ -31,27 +41,125 @@ public class Client implements Exitable, Runnable {
 	 */
 	public Client(String[] args) {
 		// Default states
-		verbose = true;
+		requestedOptions = new TransferOptions();
+
+		// Batch mode options, which are not passed on to the Client of each batch worker
+		List<String> transferArgs = new ArrayList<String>();
+		List<String> batchJobs = new ArrayList<String>();
+		String batchDirectory = "." + File.separator;
+		InetAddress batchServer = InetAddress.getLoopbackAddress();
+		int parallel = 4;
 
 		// Change states based on args
-		/*this.args = args;
-		if (this.args.length >= 1) {
-			for (String arg: args) {
-				switch(arg) {
+		this.args = args;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				int optionStart = i;
+				switch(args[i]) {
 				case "-v":
-					verbose = true;
+					// Log every packet sent and received
+					Log.setLevel(Log.Level.TRACE);
 					System.out.println("Verbose mode is on.");
 					break;
+				case "-q":
+					// Only log errors
+					Log.setLevel(Log.Level.ERROR);
+					break;
+				case "-port":
+					// Port of the server, when it does not listen on the well known port
+					serverPort = Integer.parseInt(args[++i]);
+					if (!TFTP.isValidPort(serverPort)) throw new IllegalArgumentException();
+					break;
 				case "-t": 
 					sendPort = ERRSIM_PORT; 
 					System.out.println("The client is being routed through the error simulator."); 
 					break;
+				case "-blksize":
+					// Block size to request from the server (RFC 2348)
+					requestedOptions.setBlockSize(Integer.parseInt(args[++i]));
+					break;
+				case "-windowsize":
+					// Number of blocks to send before waiting for an ACK (RFC 7440)
+					requestedOptions.setWindowSize(Integer.parseInt(args[++i]));
+					break;
+				case "-timeout":
+					// Retransmission timeout in seconds to request instead of measuring it (RFC 2349)
+					requestedOptions.setTimeout(Integer.parseInt(args[++i]));
+					break;
+				case "-tsize":
+					// Tell the server the size of each file written and ask it for the size of each file read
+					requestTransferSize = true;
+					break;
+				case "-multicast":
+					// Offer to receive the files read from a multicast group shared with other clients
+					requestMulticast = true;
+					break;
+				case "-resume":
+					// Keep what a failed read received, and carry on from where earlier reads and writes stopped
+					resume = true;
+					break;
+				case "-read":
+				case "-write":
+				case "-batch":
+					// Run these jobs, or the jobs listed in a manifest, instead of prompting
+					batchJobs.add(args[i]);
+					batchJobs.add(args[++i]);
+					continue;
+				case "-pipe":
+					// Stream a file read to standard output, or written from standard input, instead of prompting
+					pipeType = BatchTransfers.parseType(args[++i]);
+					pipeFile = args[++i];
+					if (pipeType == null || !TFTP.isPathless(pipeFile)) throw new IllegalArgumentException();
+					continue;
+				case "-server":
+					// Server of the batch jobs or of the file streamed
+					batchServer = InetAddress.getByName(args[++i]);
+					continue;
+				case "-dir":
+					// Directory of the files of the batch jobs
+					batchDirectory = args[++i];
+					if (!TFTP.isDirectory(batchDirectory)) throw new IllegalArgumentException();
+					if (!batchDirectory.endsWith("/") && !batchDirectory.endsWith("\\")) batchDirectory += File.separator;
+					continue;
+				case "-parallel":
+					// Maximum number of batch jobs running at once
+					parallel = Integer.parseInt(args[++i]);
+					if (parallel < 1) throw new IllegalArgumentException();
+					continue;
 				default:
-					System.out.println("Invalid command line arugment received. Exiting client...");
-					System.exit(1);
+					throw new IllegalArgumentException();
 				}
+				for (int j = optionStart; j <= i; j++) {
+					transferArgs.add(args[j]);
+				}
+			}
+
+			if (pipeType != null) {
+				if (!batchJobs.isEmpty()) throw new IllegalArgumentException("-pipe cannot be combined with batch jobs.");
+				sendAddr = batchServer;
+				if (sendPort == 0) sendPort = serverPort;
 			}
-		}*/
+			if (!batchJobs.isEmpty()) {
+				batch = new BatchTransfers(transferArgs.toArray(new String[0]), batchServer, batchDirectory, parallel);
+				for (int i = 0; i < batchJobs.size(); i += 2) {
+					if (batchJobs.get(i).equals("-batch")) {
+						batch.addManifest(batchJobs.get(i + 1));
+					} else {
+						batch.add(batchJobs.get(i).equals("-read") ? Request.Type.READ : Request.Type.WRITE, batchJobs.get(i + 1));
+					}
+				}
+			}
+		} catch (UnknownHostException e) {
+			System.out.println("Invalid host name or IP address. Exiting client...");
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Could not read the batch manifest: " + e.getMessage() + ". Exiting client...");
+			System.exit(1);
+		} catch (RuntimeException e) {
+			System.out.println("Invalid command line arugment received. Exiting client...");
+			if (e.getMessage() != null) System.out.println(e.getMessage());
+			System.exit(1);
+		}
 		// Create data socket for communicating with server
 		try {
 			sendReceiveSocket = new DatagramSocket();
@@ -64,6 +172,21 @@ public class Client implements Exitable, Runnable {
 		}
 	}
 
+	/**
+	 * Constructor for a Client driven by its caller through read and write instead of
+	 * the prompts of run, as done by benchmarks.
+	 * 
+	 * @param args Command line arguments, as passed to main
+	 * @param serverAddr Address of the server
+	 * @param directory Directory of the client files, ending with a separator
+	 */
+	public Client(String[] args, InetAddress serverAddr, String directory) {
+		this(args);
+		this.sendAddr = serverAddr;
+		if (sendPort == 0) sendPort = serverPort;
+		this.directory = directory;
+	}
+
 	/**
 	 * This method implement the writing process on the client side during the TFTP
 	 * file transfer. A valid write process will take place given a valid IP address,
@@ -73,223 +196,37 @@ public class Client implements Exitable, Runnable {
 	 * @param filePath String representation of the file and directory that is related
 	 * to the write request
 	 * @param mode Mode of the transfer i.e Netascii, octet, etc.
+	 * 
+	 * @return true if the transfer completed
 	 */
-	public void write(InetAddress addr, String filePath, String mode) {
-		try {
-		// Make request packet and send
-		if (verbose) System.out.println("Sending WRITE request\n");
-		Request r = new Request(Request.Type.WRITE, filePath, mode);
-		DatagramPacket requestPacket = TFTP.formRQPacket(addr, sendPort, r);
-		
-		sendReceiveSocket.send(requestPacket);
-
-		boolean packetInOrder = false;
-			
-		// Wait for ACK0
-		do{
-			try {
-				// Get a packet from server
-				DatagramPacket receivePacket = TFTP.formPacket();
-				if (verbose) System.out.println("Waiting for ACK 0...");
-
-				for(int i = 0; i<RESEND_LIMIT; i++) {
-					try {
-						sendReceiveSocket.receive(receivePacket);
-						i = RESEND_LIMIT+1;		//packet successfully received, leave loop
-					} catch(SocketTimeoutException e) {
-						//if re-send attempt limit reached, 'give up' and cancel transfer
-						if(i == RESEND_LIMIT-1) {
-							System.out.println("No response from server after " + RESEND_LIMIT + " attempts. Try again later.");
-							return;
-						}
-						//otherwise re-send
-						if(verbose) System.out.println("\nServer timed out. WRQ resent.\n");
-						sendReceiveSocket.send(requestPacket);
-					}
-				}
-
-				TFTP.shrinkData(receivePacket);
-				this.replyAddr = receivePacket.getAddress();
-				this.TID = receivePacket.getPort();
-
-				// This block is entered if the packet received is not a valid ACK packet
-				String[] errorMessage = new String[1];
-				if (!TFTP.verifyAckPacket(receivePacket, 0, errorMessage)) {
-					String[] errorMessage2 = new String[1];
-					// If an ERROR packet is received instead of the expected ACK packet, abort the transfer
-					if (TFTP.verifyErrorPacket(receivePacket, errorMessage2)) {
-						if(verbose) System.out.println("Received ERROR packet with ERROR code " + TFTP.getErrorCode(receivePacket) + ": " + TFTP.getErrorMessage(receivePacket) + ". Aborting transfer...\n");
-						return;
-					}
-					// If the received packet is not an ACK or an ERROR packet, then send an illegal TFTP
-					// operation ERROR packet and abort the transfer
-					else {
-						// Creates an "illegal TFTP operation" error packet
-						DatagramPacket errorPacket = TFTP.formERRORPacket(
-								replyAddr,
-								TID,
-								TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION,
-								r.getFileName() + " could not be transferred because of the following error: " + errorMessage[0] + " (client expected a ACK packet with block#: 0)");
-
-						// Sends error packet
-						//TFTP.printPacket(errorPacket);
-						sendReceiveSocket.send(errorPacket);
-
-						// Echo error message
-						if(verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Illegal TFTP Operation. Aborting transfer...\n");
-
-						return;
-					}
-				}
-
-				packetInOrder = TFTP.checkPacketInOrder(receivePacket, 0);
-
-				if (verbose && packetInOrder) System.out.println("ACK0 received.");
-			} catch(Exception e) {
-				System.out.println(e.getMessage());
-				return;
-			}
-
-		} while(!packetInOrder);
-			
-		// Covert file into queue of datagram packets
-		if (verbose) System.out.println("Forming packet queue from file...");
-		Queue<DatagramPacket> dataPacketQueue = null;
-		int currentBlockNumber = 1;
-		
+	public boolean write(InetAddress addr, String filePath, String mode) {
 		try {
-			dataPacketQueue = TFTP.formDATAPackets(replyAddr, TID, filePath);
-		} catch (FileNotFoundException e1) {
-			e1.printStackTrace();
-		}
-		if (verbose)System.out.println("Packets formed. Ready to send " + dataPacketQueue.size() + " blocks.");
-
-		DatagramPacket nextPacket = dataPacketQueue.remove();
-		boolean doneTransfer = false;
-		
-		// Send each packet and wait for an ACK until queue is empty
-		while (!doneTransfer) {
-			
-			DatagramPacket currentPacket = nextPacket;
-			
-			//Only update current block number and send data block if the previous packet was the correct sequential packet (not duplicated/delayed)
-			if(packetInOrder){
-				// Send a packet
-				currentBlockNumber = TFTP.getBlockNumber(currentPacket);
-				if (verbose) System.out.println("DATA " + currentBlockNumber + " sent.");
-				//if (verbose) System.out.println("Block size is" + TFTP.getData(currentPacket).length + ".");
-				sendReceiveSocket.send(currentPacket);
-			}
-
-			// Wait for ACK
-			try {
-				// Get a packet from server
-				DatagramPacket receivePacket;
-				if (verbose) System.out.println("Waiting for ACK from server...");
-
-				// Flag set to true if an unexpected packet is received
-				boolean unexpectedPacket;
-
-				do {
-					unexpectedPacket = false;
-					
-					receivePacket = TFTP.formPacket();
-
-					for(int i = 0; i<RESEND_LIMIT+1; i++) {
-						try {
-								sendReceiveSocket.receive(receivePacket);
-								i = RESEND_LIMIT+1;		//packet successfully received, exit loop
-						} catch(SocketTimeoutException e) {
-							//if re-send attempt limit reached, 'give up' and cancel transfer
-							if(i == RESEND_LIMIT) {
-								System.out.println("No response from server after " + RESEND_LIMIT + " attempts. Try again later.");
-								return;
-							}
-							//otherwise re-send
-							if(verbose) System.out.println("\nServer tiemd out. DATA " + TFTP.getBlockNumber(currentPacket) + " resent.");
-							sendReceiveSocket.send(currentPacket);
-							//TFTP.printPacket(currentPacket);
-						}
-					}				
-					
-					TFTP.shrinkData(receivePacket);
-
-					InetAddress packetAddress = receivePacket.getAddress();
-					int packetPort = receivePacket.getPort();
-					if (!(packetAddress.equals(replyAddr) && (packetPort == TID))) {
-						// Creates an "unknown TID" error packet
-						DatagramPacket errorPacket = TFTP.formERRORPacket(
-								packetAddress,
-								packetPort,
-								TFTP.ERROR_CODE_UNKNOWN_TID,
-								"The address and port of the packet does not match the TID of the ongoing transfer.");
-
-						// Sends error packet
-						sendReceiveSocket.send(errorPacket);
-
-						// Echo error message
-						if (verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Received packet from an unknown host. Discarding packet and continuing transfer...\n");
-
-						unexpectedPacket = true;
-						continue;
-					}
-				} while (unexpectedPacket);
-
-				// This block is entered if the packet received is not a valid ACK packet
-				String[] errorMessage = new String[1];
-				if (!TFTP.verifyAckPacket(receivePacket, currentBlockNumber, errorMessage))
-				{
-					String[] errorMessage2 = new String[1];
-					// If an ERROR packet is received instead of the expected ACK packet, abort the transfer
-					if (TFTP.verifyErrorPacket(receivePacket, errorMessage2))
-					{
-						System.out.println("Received ERROR packet with ERROR code " + TFTP.getErrorCode(receivePacket) + ": " + TFTP.getErrorMessage(receivePacket) + ". Aborting transfer...\n");
-						return;
-					}
-					// If the received packet is not an ACK or an ERROR packet, then send an illegal TFTP
-					// operation ERROR packet and abort the transfer
-					else
-					{
-						// Creates an "illegal TFTP operation" error packet
-						DatagramPacket errorPacket = TFTP.formERRORPacket(
-								replyAddr,
-								TID,
-								TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION,
-								r.getFileName() + " could not be transferred because of the following error: " + errorMessage[0] + " (client expected a ACK packet with block#: " + currentBlockNumber + ")");
-
-						// Sends error packet
-						//TFTP.printPacket(errorPacket);
-						sendReceiveSocket.send(errorPacket);
-
-						// Echo error message
-						if (verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Illegal TFTP Operation. Aborting transfer...\n");
-
-						return;
-					}
-				}
-
-				packetInOrder = TFTP.checkPacketInOrder(receivePacket, currentBlockNumber);
-				
-				doneTransfer = dataPacketQueue.isEmpty();
-				
-				if(packetInOrder && !doneTransfer){
-					nextPacket = dataPacketQueue.remove();
-				}
-				
-				if (verbose) System.out.println("ACK " + TFTP.getBlockNumber(receivePacket) + " received."); //addr = " + receivePacket.getAddress().toString() + ", port = " + receivePacket.getPort());
-				// Newline
-				if (verbose) System.out.println();
-			} catch(Exception e) {
-				System.out.println(e.getMessage());
-			}
-		}
-		System.out.println("End of file transfer.\n");
-		
+			return write(sendReceiveSocket, addr, filePath, mode);
 		} catch(Exception e) {
 			e.printStackTrace();
 			System.exit(1);
+			return false;
 		}
 	}
+
+	/**
+	 * Writes a file on a socket other than the socket of the Client, such as a new socket
+	 * for each transfer of a batch, so that it has a TID of its own (RFC 1350).
+	 * 
+	 * @param socket Socket of the transfer
+	 * @param addr IP address of the packet being sent
+	 * @param filePath String representation of the file and directory that is related
+	 * to the write request
+	 * @param mode Mode of the transfer i.e Netascii, octet, etc.
+	 * 
+	 * @return true if the transfer completed
+	 * @throws IOException if a packet could not be sent or the file could not be read
+	 */
+	public boolean write(DatagramSocket socket, InetAddress addr, String filePath, String mode) throws IOException {
+		ClientTransfer transfer = new ClientTransfer(socket, addr, sendPort, requestedOptions, requestTransferSize, requestMulticast, RESEND_LIMIT);
+		transfer.setResume(resume);
+		return transfer.write(filePath, new File(filePath).getName(), mode);
+	}
 	
 	/**
 	 * This method implement the reading process on the client side during the
@@ -300,175 +237,60 @@ public class Client implements Exitable, Runnable {
 	 * @param filePath String representation of the file and directory that is related
 	 * to the write request
 	 * @param mode Mode of the transfer i.e Netascii, octet, etc.
+	 * 
+	 * @return true if the transfer completed
 	 */
-	public void read(InetAddress addr, String filePath, String mode) {
+	public boolean read(InetAddress addr, String filePath, String mode) {
 		try {
-
-			// Form request and send to server
-			Request r = new Request(Request.Type.READ,filePath,mode);
-			if (verbose) System.out.println("Sending a READ request to server for file \"" + r.getFileName() + "\".\n");
-			DatagramPacket requestPacket = TFTP.formRQPacket(addr, sendPort, r);
-			DatagramPacket dataPacket;
-			// Send the request
-			sendReceiveSocket.send(requestPacket);
-
-			boolean transferComplete = false;
-
-			boolean firstIteration = true;
-
-			boolean packetInOrder;
-
-			//To hold most recently sent packet for possible re-sending if needed.
-			//DatagramPacket previousPacket = requestPacket;
-
-			int currentBlockNumber = 1;
-			byte[] fileBytes = new byte[0];
-			do {
-				// Make packet to receive DATA
-				dataPacket = TFTP.formPacket();
-
-				// Wait for DATA from server. If no response within set timeout limit, re-send packet (up to maximum re-send limit)
-				if (verbose) System.out.println("Waiting for DATA from server...");
-
-				for(int i = 0; i<RESEND_LIMIT; i = i+1) {
-					try {
-						//System.out.println("Waiting...  " + i);
-						sendReceiveSocket.receive(dataPacket);
-						i = RESEND_LIMIT+1;		//If packet successfully received, leave loop
-					} catch(SocketTimeoutException e) {
-						//if re-send attempt limit reached, 'give up' and cancel transfer
-						if(i == RESEND_LIMIT-1)
-						{
-							System.out.println("No response from server after " + RESEND_LIMIT + " attempts. Try again later.");
-							return;
-						}
-						//don't re-send ACK packets, but do re-send request
-						if(firstIteration)
-						{
-							if(verbose) System.out.println("\nServer timed out. RRQ resent.\n");
-							sendReceiveSocket.send(requestPacket);
-						}
-					}
-				}
-
-				TFTP.shrinkData(dataPacket);
-
-				// If this is the first DATA packet received, record the address and port
-				if (firstIteration) {
-					this.replyAddr = dataPacket.getAddress();
-					this.TID = dataPacket.getPort();
-					firstIteration = false;
-				} else {
-					InetAddress packetAddress = dataPacket.getAddress();
-					int packetPort = dataPacket.getPort();
-					if (!(packetAddress.equals(replyAddr) && (packetPort == TID))) {
-						// Creates an "unknown TID" error packet
-						DatagramPacket errorPacket = TFTP.formERRORPacket(
-								packetAddress,
-								packetPort,
-								TFTP.ERROR_CODE_UNKNOWN_TID,
-								"The address and port of the packet does not match the TID of the ongoing transfer.");
-
-						// Sends error packet
-						sendReceiveSocket.send(errorPacket);
-
-						// Echo error message
-						if (verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Received packet from an unknown host. Discarding packet and continuing transfer...\n");
-						continue;
-					}
-				}
-
-				// This block is entered if the packet received is not a valid DATA packet
-				String[] errorMessage = new String[1];
-				if (!TFTP.verifyDataPacket(dataPacket, currentBlockNumber, errorMessage)) {
-					String[] errorMessage2 = new String[1];
-					// If an ERROR packet is received instead of the expected DATA packet, delete the file
-					// and abort the transfer
-					if (TFTP.verifyErrorPacket(dataPacket, errorMessage2)) {
-						if (verbose) System.out.println("Received ERROR packet with ERROR code " + TFTP.getErrorCode(dataPacket) + ": " + TFTP.getErrorMessage(dataPacket) + ". Aborting transfer...\n");
-						return;
-					}
-					// If the received packet is not a DATA or an ERROR packet, then send an illegal TFTP
-					// operation ERROR packet and abort the transfer
-					else {
-						// Creates an "illegal TFTP operation" error packet
-						DatagramPacket errorPacket = TFTP.formERRORPacket(
-								replyAddr,
-								TID,
-								TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION,
-								r.getFileName() + " could not be transferred because of the following error: " + errorMessage[0] + " (client expected a DATA packet with block#: " + currentBlockNumber + ")");
-
-						// Sends error packet
-						//TFTP.printPacket(errorPacket);
-						sendReceiveSocket.send(errorPacket);
-
-						// Echo error message
-						if (verbose) System.out.println("Send ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Illegal TFTP Operation. Aborting transfer...\n");
-
-						return;
-					}
-				}
-
-				if (verbose) System.out.println("DATA " + TFTP.getBlockNumber(dataPacket) + " received.");
-				//if (verbose) System.out.println("The size of the data was " + TFTP.getData(dataPacket).length + ".");
-
-				// Transfer is complete if data block is less than MAX_PACKET_SIZE
-				if (dataPacket.getLength() < TFTP.MAX_PACKET_SIZE) {
-					transferComplete = true;
-				}
-
-				packetInOrder = TFTP.checkPacketInOrder(dataPacket, currentBlockNumber);
-
-				//If the packet was the expected sequential block number in the transfer (not duplicated or delayed), write the data to the file
-				if(packetInOrder){
-					// Write data to file
-					//if (verbose) System.out.println("Appending current block to filebytes.");
-					fileBytes = TFTP.appendData(dataPacket, fileBytes);
-					if ((fileBytes.length*TFTP.MAX_DATA_SIZE) > TFTP.getFreeSpaceOnFileSystem(directory)) {
-						// Creates a "disk full" error packet
-						DatagramPacket errorPacket = TFTP.formERRORPacket(
-								replyAddr,
-								TID,
-								TFTP.ERROR_CODE_DISK_FULL,
-								"\"" + r.getFileName() + "\" could not be transferred because disk is full.");
-
-						// Sends error packet
-						try {
-							sendReceiveSocket.send(errorPacket);
-						} catch (Exception e) {
-							// Do nothing
-						}
-
-						// Echo error message
-						if (verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_DISK_FULL + ": Disk full. Aborting transfer...\n");
-
-						// Closes socket and aborts thread
-						return;
-					}
-				}
-
-				// Form an ACK packet to respond with and send
-				DatagramPacket ackPacket = TFTP.formACKPacket(replyAddr, TID, TFTP.getBlockNumber(dataPacket));
-				if (verbose) System.out.println("ACK " + TFTP.getBlockNumber(ackPacket) + " sent.");
-				sendReceiveSocket.send(ackPacket);
-
-
-				//Update the current block number only if the packet was not a duplicate/delayed
-				if(packetInOrder){
-					currentBlockNumber = (currentBlockNumber + 1) % 65536;
-				}
-
-				// Newline
-				if (verbose) System.out.println();
-			} while (!transferComplete);
-			//} while (TFTP.getData(dataPacket).length == TFTP.MAX_DATA_SIZE);
-			if (verbose) System.out.println("Writing bytes to file...");
-			TFTP.writeBytesToFile(filePath, fileBytes);
-			System.out.println("Read complete.\n");
-		}
-		catch(Exception e) {
+			return read(sendReceiveSocket, addr, filePath, mode);
+		} catch(Exception e) {
 			e.printStackTrace();
 			System.exit(1);
+			return false;
+		}
+	}
+
+	/**
+	 * Reads a file on a socket other than the socket of the Client, such as a new socket
+	 * for each transfer of a batch, so that it has a TID of its own (RFC 1350).
+	 * 
+	 * @param socket Socket of the transfer
+	 * @param addr IP address of the packet being sent
+	 * @param filePath String representation of the file and directory that is related
+	 * to the read request
+	 * @param mode Mode of the transfer i.e Netascii, octet, etc.
+	 * 
+	 * @return true if the transfer completed
+	 * @throws IOException if a packet could not be sent or the file could not be written
+	 */
+	public boolean read(DatagramSocket socket, InetAddress addr, String filePath, String mode) throws IOException {
+		ClientTransfer transfer = new ClientTransfer(socket, addr, sendPort, requestedOptions, requestTransferSize, requestMulticast, RESEND_LIMIT);
+		transfer.setResume(resume);
+		return transfer.read(new File(filePath).getName(), filePath, mode);
+	}
+
+	/**
+	 * Streams the file of pipe mode between the server and standard input or output.
+	 * 
+	 * @param in Standard input, read when writing to the server
+	 * @param out Standard output, written when reading from the server
+	 * 
+	 * @return true if the transfer completed
+	 */
+	private boolean pipe(ReadableByteChannel in, WritableByteChannel out) {
+		ClientTransfer transfer = new ClientTransfer(sendReceiveSocket, sendAddr, sendPort, requestedOptions, requestTransferSize, false, RESEND_LIMIT);
+		try {
+			boolean complete;
+			if (pipeType == Request.Type.READ) {
+				complete = transfer.read(pipeFile, out, TFTP.MODE_OCTET);
+			} else {
+				complete = transfer.write(in, pipeFile, TFTP.MODE_OCTET);
+			}
+			if (!complete) Log.error(transfer.getFailure());
+			return complete;
+		} catch (IOException e) {
+			Log.error(e.getMessage());
+			return false;
 		}
 	}
 
@@ -496,7 +318,7 @@ public class Client implements Exitable, Runnable {
 			}
 			else if (decision.equalsIgnoreCase("n"))
 			{
-				sendPort = SERVER_PORT;
+				sendPort = serverPort;
 				break;
 			}
 			else
@@ -534,12 +356,13 @@ public class Client implements Exitable, Runnable {
 				badDirectory = true;
 			}
 		} while (badDirectory);
-		if (verbose) System.out.println("The directory you entered is: " + directory + "\n");
+		Log.info("The directory you entered is: " + directory + "\n");
 
 		while (true) {
 			boolean validCmd = false;
 			while(!validCmd) {
-				// Get get command
+				// Get get command, once the messages of the last transfer are written
+				Log.flush();
 				System.out.println("Please enter a command (read/write/exit):");
 				cmd = in.next();
 				// Quit server if exit command given
@@ -599,7 +422,7 @@ public class Client implements Exitable, Runnable {
 			}
 			
 			// Make sure packet buffer is clear before processing transfer
-			if (verbose) System.out.println("Clearing socket receive buffer...");
+			Log.debug("Clearing socket receive buffer...");
 			DatagramPacket throwAwayPacket = TFTP.formPacket();
 			// Receive packets until a timeout occurs
 			do {
@@ -611,7 +434,7 @@ public class Client implements Exitable, Runnable {
 					e.printStackTrace();
 				}
 			} while (true);
-			if (verbose) System.out.println("Socket cleared.\n");
+			Log.debug("Socket cleared.\n");
 
 			// Send the request
 			try {
@@ -647,7 +470,24 @@ public class Client implements Exitable, Runnable {
 	 * @param args input arguments when execute the server
 	 */
 	public static void main (String[] args) {
+		// In pipe mode standard output carries the file, so every message goes to standard error
+		FileOutputStream stdout = new FileOutputStream(FileDescriptor.out);
+		if (Arrays.asList(args).contains("-pipe")) System.setOut(System.err);
+
 		Client client = new Client(args);
+		if (client.pipeType != null) {
+			// Pipe mode: stream the file and exit
+			boolean complete = client.pipe(new FileInputStream(FileDescriptor.in).getChannel(), stdout.getChannel());
+			Log.flush();
+			client.exit();
+			System.exit(complete ? 0 : 1);
+		}
+		if (client.batch != null) {
+			// Batch mode: run the jobs given on the command line and exit
+			boolean complete = client.batch.run();
+			client.exit();
+			System.exit(complete ? 0 : 1);
+		}
 		client.run();
 	}
 }
@@ -0,0 +1,547 @@
+package tftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * One read or write of the client, from the request to the end of the transfer. The
+ * address and TID of the server are kept here rather than in the Client, so that any
+ * number of transfers can run at once, each on a socket of its own.
+ *
+ * A file can be read from or written to disk, or streamed from or to a channel, such as
+ * standard input or output, without a copy of it on disk.
+ *
+ * A transfer of a file on disk can be made resumable with the non-standard offset option.
+ * A read then keeps what it received in a partial file if it fails, and the next read of
+ * the file asks the server to start after it. A write asks the server how much of the
+ * file it kept from an earlier attempt and sends the rest.
+ *
+ * A ClientTransfer is used for a single transfer. Once it has ended, getFailure tells
+ * why it did not complete, and getRetransmits how many packets had to be sent again.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class ClientTransfer {
+	private DatagramSocket socket;
+	private InetAddress sendAddr;
+	private int sendPort;
+	private TransferOptions requestedOptions;
+	private boolean requestTransferSize;	// Whether to send the size of the file, or ask for it (RFC 2349)
+	private boolean requestMulticast;	// Whether to ask for reads to be sent to a multicast group (RFC 2090)
+	private int resendLimit;
+	private boolean resume;	// Whether to carry on from where an earlier transfer of the file stopped
+	private InetAddress replyAddr;
+	private int TID;
+	private long bytes;	// Bytes of the file sent or received
+	private int retransmits;	// Packets sent again by this side, or received again from the server
+	private String failure;	// Why the transfer did not complete, or null
+
+	/**
+	 * Constructor of the ClientTransfer class
+	 *
+	 * @param socket Socket of the transfer, which is not closed at the end
+	 * @param sendAddr Address the request is sent to
+	 * @param sendPort Port the request is sent to, of the server or the error simulator
+	 * @param requestedOptions Options to request from the server
+	 * @param requestTransferSize Whether to send the size of the file, or ask for it
+	 * @param requestMulticast Whether to ask for a read to be sent to a multicast group
+	 * @param resendLimit Maximum number of times to resend a packet without response
+	 */
+	public ClientTransfer(DatagramSocket socket, InetAddress sendAddr, int sendPort, TransferOptions requestedOptions, boolean requestTransferSize, boolean requestMulticast, int resendLimit) {
+		this.socket = socket;
+		this.sendAddr = sendAddr;
+		this.sendPort = sendPort;
+		this.requestedOptions = requestedOptions;
+		this.requestTransferSize = requestTransferSize;
+		this.requestMulticast = requestMulticast;
+		this.resendLimit = resendLimit;
+	}
+
+	/**
+	 * Makes a transfer of a file on disk resumable with the offset option. Transfers of a
+	 * stream always start from the beginning.
+	 *
+	 * @param resume Whether to carry on from where an earlier transfer of the file stopped
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * Writes a file to the server.
+	 *
+	 * @param filePath Path of the file to send
+	 * @param fileName Name of the file on the server
+	 * @param mode Mode of the transfer i.e Netascii, octet, etc.
+	 *
+	 * @return true if the transfer completed
+	 * @throws IOException if a packet could not be sent or the file could not be read
+	 */
+	public boolean write(String filePath, String fileName, String mode) throws IOException {
+		Request r = new Request(Request.Type.WRITE, fileName, mode);
+		requestedOptions.addTo(r);
+		if (requestTransferSize) r.setOption(TFTP.OPTION_TSIZE, Long.toString(new File(filePath).length()));
+		if (resume) r.setOption(TFTP.OPTION_OFFSET, "0");
+		return write(r, filePath, null);
+	}
+
+	/**
+	 * Writes a file read from a stream to the server. The size of the file is not known
+	 * ahead, so it is not sent.
+	 *
+	 * @param in Blocking channel the file is read from, which is left open
+	 * @param fileName Name of the file on the server
+	 * @param mode Mode of the transfer i.e Netascii, octet, etc.
+	 *
+	 * @return true if the transfer completed
+	 * @throws IOException if a packet could not be sent or the stream could not be read
+	 */
+	public boolean write(ReadableByteChannel in, String fileName, String mode) throws IOException {
+		Request r = new Request(Request.Type.WRITE, fileName, mode);
+		requestedOptions.addTo(r);
+		return write(r, null, in);
+	}
+
+	/**
+	 * Sends a write request, then the file.
+	 *
+	 * @param r Request to send
+	 * @param filePath Path of the file to send, or null to send in
+	 * @param in Channel the file is read from when filePath is null
+	 *
+	 * @return true if the transfer completed
+	 * @throws IOException if a packet could not be sent or the file could not be read
+	 */
+	private boolean write(Request r, String filePath, ReadableByteChannel in) throws IOException {
+		// Make request packet and send
+		Log.info("Sending WRITE request\n");
+		DatagramPacket requestPacket = TFTP.formRQPacket(sendAddr, sendPort, r);
+
+		// Options stay at their defaults unless the server acknowledges them with an OACK
+		TransferOptions options = new TransferOptions();
+
+		// The last transfer may have left a measured timeout on the socket
+		socket.setSoTimeout(RttEstimator.INITIAL_TIMEOUT);
+		socket.send(requestPacket);
+
+		boolean packetInOrder = false;
+
+		// Wait for ACK0
+		do{
+			try {
+				// Get a packet from server
+				DatagramPacket receivePacket = TFTP.formPacket();
+				Log.trace("Waiting for ACK 0...");
+
+				for(int i = 0; i<resendLimit; i++) {
+					try {
+						socket.receive(receivePacket);
+						i = resendLimit+1;		//packet successfully received, leave loop
+					} catch(SocketTimeoutException e) {
+						//if re-send attempt limit reached, 'give up' and cancel transfer
+						if(i == resendLimit-1) {
+							Log.warn("No response from server after " + resendLimit + " attempts. Try again later.");
+							return fail("No response from server after " + resendLimit + " attempts");
+						}
+						//otherwise re-send
+						Log.debug("Server timed out. WRQ resent.");
+						socket.send(requestPacket);
+						retransmits++;
+					}
+				}
+
+				TFTP.shrinkData(receivePacket);
+				this.replyAddr = receivePacket.getAddress();
+				this.TID = receivePacket.getPort();
+
+				// An OACK takes the place of ACK 0 if the server accepted any of the options
+				String[] errorMessage = new String[1];
+				if (!r.getOptions().isEmpty() && TFTP.verifyOACKPacket(receivePacket, errorMessage)) {
+					if (!acceptOACK(r, receivePacket, options)) return false;
+					packetInOrder = true;
+					continue;
+				}
+
+				// This block is entered if the packet received is not a valid ACK packet
+				if (!TFTP.verifyAckPacket(receivePacket, 0, errorMessage)) {
+					String[] errorMessage2 = new String[1];
+					// If an ERROR packet is received instead of the expected ACK packet, abort the transfer
+					if (TFTP.verifyErrorPacket(receivePacket, errorMessage2)) {
+						return receivedError(receivePacket);
+					}
+					// If the received packet is not an ACK or an ERROR packet, then send an illegal TFTP
+					// operation ERROR packet and abort the transfer
+					else {
+						// Creates an "illegal TFTP operation" error packet
+						DatagramPacket errorPacket = TFTP.formERRORPacket(
+								replyAddr,
+								TID,
+								TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION,
+								r.getFileName() + " could not be transferred because of the following error: " + errorMessage[0] + " (client expected a ACK packet with block#: 0)");
+
+						// Sends error packet
+						socket.send(errorPacket);
+
+						// Echo error message
+						Log.info("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Illegal TFTP Operation. Aborting transfer...\n");
+
+						return fail("Illegal TFTP operation: " + errorMessage[0]);
+					}
+				}
+
+				packetInOrder = TFTP.checkPacketInOrder(receivePacket, 0);
+
+				if (packetInOrder) Log.trace("ACK0 received.");
+			} catch(Exception e) {
+				Log.error(e.getMessage());
+				return fail(e.getMessage());
+			}
+
+		} while(!packetInOrder);
+
+		// Carry on after what the server kept of an earlier attempt
+		long offset = Math.max(0, options.getOffset());
+		if (filePath != null && offset > 0 && offset >= new File(filePath).length()) {
+			return fail("The server kept " + offset + " bytes of \"" + r.getFileName() + "\", as much as the whole file");
+		}
+		if (offset > 0) Log.info("Resuming from byte " + offset + ".");
+
+		// Blocks are read from the file as they are needed rather than all up front, on a
+		// thread that keeps ahead of the sender so that reading never holds up a block
+		BlockSource fileSource;
+		if (filePath != null) {
+			fileSource = new FileBlockSource(filePath, options.getBlockSize(), offset);
+		} else {
+			fileSource = new ChannelBlockSource(in, options.getBlockSize());
+		}
+		BlockSource source = new PrefetchingBlockSource(fileSource, PrefetchingBlockSource.depthFor(options.getWindowSize()));
+		try {
+			// Send the blocks, keeping up to the negotiated window size of blocks in flight
+			WindowedSender sender = new WindowedSender(socket, replyAddr, TID, options, resendLimit, true, "server");
+			boolean complete = sender.send(source, null, r.getFileName());
+			retransmits += sender.getRetransmits();
+			if (complete) {
+				bytes = filePath != null ? new File(filePath).length() : ((ChannelBlockSource) fileSource).getBytesRead();
+				Log.info("End of file transfer.\n");
+				return true;
+			}
+			return fail("Transfer of \"" + r.getFileName() + "\" aborted");
+		} finally {
+			source.close();
+		}
+	}
+
+	/**
+	 * Reads a file from the server. The file is written under a temporary name and only
+	 * moved into place once it is complete.
+	 *
+	 * @param fileName Name of the file on the server
+	 * @param filePath Path the file is written to
+	 * @param mode Mode of the transfer i.e Netascii, octet, etc.
+	 *
+	 * @return true if the transfer completed
+	 * @throws IOException if a packet could not be sent or the file could not be written
+	 */
+	public boolean read(String fileName, String filePath, String mode) throws IOException {
+		// Blocks are written to disk as they arrive rather than all at the end, after what was
+		// kept of an earlier attempt when resuming
+		FileBlockSink sink = resume ? FileBlockSink.resumable(filePath) : new FileBlockSink(filePath);
+		return read(fileName, mode, sink, new File(filePath).getAbsoluteFile().getParent());
+	}
+
+	/**
+	 * Reads a file from the server into a stream. Each block is written to the stream as
+	 * it arrives, so a failed transfer leaves part of the file written.
+	 *
+	 * @param fileName Name of the file on the server
+	 * @param out Blocking channel the file is written to, which is left open
+	 * @param mode Mode of the transfer i.e Netascii, octet, etc.
+	 *
+	 * @return true if the transfer completed
+	 * @throws IOException if a packet could not be sent or the stream could not be written
+	 */
+	public boolean read(String fileName, WritableByteChannel out, String mode) throws IOException {
+		return read(fileName, mode, new ChannelBlockSink(out), null);
+	}
+
+	/**
+	 * Sends a read request, then receives the file into sink.
+	 *
+	 * @param fileName Name of the file on the server
+	 * @param mode Mode of the transfer i.e Netascii, octet, etc.
+	 * @param sink BlockSink the file is written to, finished before returning
+	 * @param directory Directory of the file, to check for free space, or null if the file
+	 * is not written to disk
+	 *
+	 * @return true if the transfer completed
+	 * @throws IOException if a packet could not be sent or the file could not be written
+	 */
+	private boolean read(String fileName, String mode, BlockSink sink, String directory) throws IOException {
+		try {
+			// Form request and send to server
+			Request r = new Request(Request.Type.READ, fileName, mode);
+			requestedOptions.addTo(r);
+			if (requestTransferSize) r.setOption(TFTP.OPTION_TSIZE, "0");
+			boolean resumable = resume && sink instanceof FileBlockSink;
+			if (resumable) r.setOption(TFTP.OPTION_OFFSET, Long.toString(((FileBlockSink) sink).getKept()));
+			// Blocks from a multicast group arrive out of order, so they can only go to a file,
+			// and from the start
+			if (requestMulticast && !resumable && sink instanceof FileBlockSink) r.setOption(TFTP.OPTION_MULTICAST, "");
+			Log.info("Sending a READ request to server for file \"" + r.getFileName() + "\".\n");
+			DatagramPacket requestPacket = TFTP.formRQPacket(sendAddr, sendPort, r);
+
+			// Options stay at their defaults unless the server acknowledges them with an OACK
+			TransferOptions options = new TransferOptions();
+			boolean oackExpected = !r.getOptions().isEmpty();
+			int receiveBlockSize = Math.max(requestedOptions.getBlockSize(), TFTP.MAX_DATA_SIZE);
+			boolean oackReceived = false;
+			DatagramPacket dataPacket;
+			// Send the request, undoing any measured timeout left on the socket by the last transfer
+			socket.setSoTimeout(RttEstimator.INITIAL_TIMEOUT);
+			socket.send(requestPacket);
+
+			boolean firstIteration = true;
+
+			do {
+				// Make packet to receive DATA
+				dataPacket = TFTP.formPacket(receiveBlockSize);
+
+				// Wait for DATA from server. If no response within set timeout limit, re-send packet (up to maximum re-send limit)
+				Log.trace("Waiting for DATA from server...");
+
+				for(int i = 0; i<resendLimit; i = i+1) {
+					try {
+						socket.receive(dataPacket);
+						i = resendLimit+1;		//If packet successfully received, leave loop
+					} catch(SocketTimeoutException e) {
+						//if re-send attempt limit reached, 'give up' and cancel transfer
+						if(i == resendLimit-1)
+						{
+							Log.warn("No response from server after " + resendLimit + " attempts. Try again later.");
+							return fail("No response from server after " + resendLimit + " attempts");
+						}
+						//don't re-send ACK packets, but do re-send request
+						if(firstIteration)
+						{
+							Log.debug("Server timed out. RRQ resent.");
+							socket.send(requestPacket);
+							retransmits++;
+						}
+					}
+				}
+
+				TFTP.shrinkData(dataPacket);
+
+				// If this is the first DATA packet received, record the address and port
+				if (firstIteration) {
+					this.replyAddr = dataPacket.getAddress();
+					this.TID = dataPacket.getPort();
+					firstIteration = false;
+				} else {
+					InetAddress packetAddress = dataPacket.getAddress();
+					int packetPort = dataPacket.getPort();
+					if (!(packetAddress.equals(replyAddr) && (packetPort == TID))) {
+						// Creates an "unknown TID" error packet
+						DatagramPacket errorPacket = TFTP.formERRORPacket(
+								packetAddress,
+								packetPort,
+								TFTP.ERROR_CODE_UNKNOWN_TID,
+								"The address and port of the packet does not match the TID of the ongoing transfer.");
+
+						// Sends error packet
+						socket.send(errorPacket);
+
+						// Echo error message
+						Log.info("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Received packet from an unknown host. Discarding packet and continuing transfer...\n");
+						continue;
+					}
+				}
+
+				// An ERROR in place of the first DATA packet ends the transfer before it starts
+				String[] errorMessage = new String[1];
+				if (TFTP.getOpCode(dataPacket) == TFTP.ERROR_OP_CODE && TFTP.verifyErrorPacket(dataPacket, errorMessage)) {
+					return receivedError(dataPacket);
+				}
+
+				// An OACK in place of DATA 1 means the server accepted some of the options. It is
+				// acknowledged with ACK 0, again each time the server resends it.
+				if (oackExpected && TFTP.verifyOACKPacket(dataPacket, errorMessage)) {
+					if (!oackReceived) {
+						if (!acceptOACK(r, dataPacket, options)) return false;
+						if (!checkTransferSize(r, options, directory)) return false;
+					}
+					oackReceived = true;
+
+					// The server sends the file to a multicast group, and the client only ACKs
+					// once it is the master client
+					String multicast = TFTP.getOptions(dataPacket).get(TFTP.OPTION_MULTICAST);
+					if (multicast != null && sink instanceof FileBlockSink) {
+						MulticastReceiver receiver = new MulticastReceiver(socket, replyAddr, TID, options, resendLimit);
+						if (receiver.receive((FileBlockSink) sink, multicast, r.getFileName())) {
+							bytes = sink.getBytesWritten();
+							Log.info("Read complete.\n");
+							return true;
+						}
+						return fail("Multicast transfer of \"" + r.getFileName() + "\" aborted");
+					}
+
+					DatagramPacket ackPacket = TFTP.formACKPacket(replyAddr, TID, 0);
+					Log.trace("ACK 0 sent.");
+					socket.send(ackPacket);
+					continue;
+				}
+
+				// The first DATA packet is handed to the receiver with the rest of the transfer
+				break;
+			} while (true);
+
+			// Carry on after the partial file if the server acknowledged its length, or start over
+			if (resumable) {
+				FileBlockSink fileSink = (FileBlockSink) sink;
+				long offset = Math.max(0, options.getOffset());
+				long transferSize = options.getTransferSize();
+				if (offset > fileSink.getKept() || (offset > 0 && transferSize >= 0 && offset >= transferSize)) return fail("Invalid offset " + offset);
+				if (offset != fileSink.getBytesWritten()) fileSink.resumeFrom(offset);
+				if (offset > 0) Log.info("Resuming from byte " + offset + ".");
+			}
+
+			// Receive the blocks, acknowledging each window, and move the completed file into place
+			WindowedReceiver receiver = new WindowedReceiver(socket, replyAddr, TID, options, resendLimit, true, "server");
+			boolean complete = receiver.receive(sink, dataPacket, r.getFileName(), directory);
+			retransmits += receiver.getRetransmits();
+			if (complete) {
+				bytes = sink.getBytesWritten();
+				Log.info("Read complete.\n");
+				return true;
+			}
+			return fail("Transfer of \"" + r.getFileName() + "\" aborted");
+		}
+		finally {
+			// Deletes the partial file if the transfer did not complete
+			sink.abort();
+		}
+	}
+
+	/**
+	 * @return Size of the file sent or received, once the transfer has completed
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return Number of packets this side sent again, plus the DATA blocks of a read that
+	 * the server sent again after they had been received
+	 */
+	public int getRetransmits() {
+		return retransmits;
+	}
+
+	/**
+	 * @return Why the transfer did not complete, or null if it completed or has not run
+	 */
+	public String getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Records why the transfer did not complete.
+	 *
+	 * @param reason Reason of the failure
+	 *
+	 * @return false, to return from the transfer
+	 */
+	private boolean fail(String reason) {
+		failure = reason;
+		return false;
+	}
+
+	/**
+	 * Echoes an ERROR packet from the server, which ends the transfer.
+	 *
+	 * @param errorPacket ERROR packet received
+	 *
+	 * @return false, to return from the transfer
+	 */
+	private boolean receivedError(DatagramPacket errorPacket) {
+		Log.info("Received ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": " + TFTP.getErrorMessage(errorPacket) + ". Aborting transfer...\n");
+		return fail("ERROR code " + TFTP.getErrorCode(errorPacket) + " from server: " + TFTP.getErrorMessage(errorPacket));
+	}
+
+	/**
+	 * Checks the size announced by the server, if it announced one. A file that does not
+	 * fit on the disk is refused with an ERROR packet before any block is sent.
+	 *
+	 * @param r Request that was sent to the server
+	 * @param options Options acknowledged by the server
+	 * @param directory Directory the file is written to, or null if it is not written to disk
+	 *
+	 * @return true if the transfer can go ahead
+	 * @throws IOException if the ERROR packet could not be sent
+	 */
+	private boolean checkTransferSize(Request r, TransferOptions options, String directory) throws IOException {
+		long transferSize = options.getTransferSize();
+		if (transferSize <= 0) return true;
+
+		// Only what is left of a resumed read has to fit
+		long remaining = transferSize - Math.max(0, options.getOffset());
+		if (directory != null && remaining > TFTP.getFreeSpaceOnFileSystem(directory)) {
+			// Creates a "disk full" error packet
+			DatagramPacket errorPacket = TFTP.formERRORPacket(
+					replyAddr,
+					TID,
+					TFTP.ERROR_CODE_DISK_FULL,
+					"\"" + r.getFileName() + "\" could not be transferred because disk is full.");
+
+			// Sends error packet
+			socket.send(errorPacket);
+
+			// Echo error message
+			Log.info("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_DISK_FULL + ": Disk full. Aborting transfer...\n");
+			return fail("Disk full");
+		}
+
+		Log.info("Receiving " + transferSize + " bytes.");
+		return true;
+	}
+
+	/**
+	 * Applies the options acknowledged in an OACK from the server. If the OACK cannot be
+	 * accepted, the server is sent an ERROR packet and the transfer should be aborted.
+	 *
+	 * @param r Request that was sent to the server
+	 * @param oackPacket OACK packet received from the server
+	 * @param options TransferOptions to apply the acknowledged options to
+	 *
+	 * @return true if the options were applied, false if the transfer should be aborted
+	 * @throws IOException if the ERROR packet could not be sent
+	 */
+	private boolean acceptOACK(Request r, DatagramPacket oackPacket, TransferOptions options) throws IOException {
+		String[] errorMessage = new String[1];
+		if (!options.applyOACK(r.getOptions(), TFTP.getOptions(oackPacket), errorMessage)) {
+			// Creates a "not defined" error packet
+			DatagramPacket errorPacket = TFTP.formERRORPacket(
+					replyAddr,
+					TID,
+					TFTP.ERROR_CODE_NOT_DEFINED,
+					r.getFileName() + " could not be transferred because of the following error: " + errorMessage[0] + " (option negotiation failed)");
+
+			// Sends error packet
+			socket.send(errorPacket);
+
+			// Echo error message
+			Log.info("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_NOT_DEFINED + ": Option negotiation failed. Aborting transfer...\n");
+			return fail("Option negotiation failed: " + errorMessage[0]);
+		}
+
+		Log.info("OACK received with options " + TFTP.getOptions(oackPacket) + ".");
+		return true;
+	}
+}
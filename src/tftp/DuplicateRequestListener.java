@@ -0,0 +1,22 @@
+package tftp;
+
+import java.io.IOException;
+
+/**
+ * Answers a request that a client sent again while its transfer is active, for transfers
+ * that do not send their first reply again on their own, such as the clients waiting in
+ * a MulticastSession. Registered with ActiveRequests.setListener.
+ * 
+ * @author Team 4
+ * @version Iteration 5
+ */
+public interface DuplicateRequestListener {
+	/**
+	 * Sends the client the reply to its request again. Called on the thread that received
+	 * the duplicate request.
+	 * 
+	 * @param requestKey Key of the request, from ActiveRequests.keyOf
+	 * @throws IOException if the reply could not be sent
+	 */
+	public void duplicateRequest(String requestKey) throws IOException;
+}
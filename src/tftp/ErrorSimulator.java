@@ -3,6 +3,7 @@ package tftp;
 import java.io.IOException;
 import java.net.*;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
 
 import tftp.TFTP;
 
@@ -67,6 +68,9 @@ public class ErrorSimulator implements Runnable
 	
 	private InetAddress sendAddr;
 
+	// Runs the request and transfer handlers
+	private ExecutorService executor;
+
 	private class PacketDelayer implements Runnable {
 		private DatagramSocket socket;
 		private DatagramPacket packet;
@@ -84,15 +88,15 @@ public class ErrorSimulator implements Runnable
 			try {
 				// Delay 
 				while(delay > DELAY_INTERVAL) {
-					System.out.println("Waiting for " + delay + "ms before sending packet.");
+					Log.debug("Waiting for " + delay + "ms before sending packet.");
 					Thread.sleep(DELAY_INTERVAL);
 					delay -= DELAY_INTERVAL;
 				}
-				System.out.println("Waiting for " + delay + "ms before sending packet.");
+				Log.debug("Waiting for " + delay + "ms before sending packet.");
 				Thread.sleep(delay);
-				System.out.println("Delay complete. Sending packet now.");
+				Log.debug("Delay complete. Sending packet now.");
 				socket.send(packet);
-				System.out.println("[DELAYED PACKET]");
+				Log.trace("[DELAYED PACKET]");
 				TFTP.printPacket(packet);
 				//System.out.println("BLARGH");
 			} catch(InterruptedException e) {
@@ -107,10 +111,21 @@ public class ErrorSimulator implements Runnable
 	}
 	
 	/**
-	 * Class constructor
+	 * Class constructor, runs each handler on a platform thread
 	 */
 	public ErrorSimulator()
 	{
+		this(TransferExecutors.MODE_PLATFORM);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param threadMode Kind of thread each handler runs on (see TransferExecutors)
+	 */
+	public ErrorSimulator(String threadMode)
+	{
+		executor = TransferExecutors.create(threadMode, "Handler");
 		try
 		{
 			receiveSocket = new DatagramSocket(RECEIVE_PORT);
@@ -371,16 +386,11 @@ public class ErrorSimulator implements Runnable
 					// Receives response packet through socket
 					receiveSocket.receive(clientRequestPacket);
 					TFTP.shrinkData(clientRequestPacket);
-					System.out.println("[CLIENT=>ERRSIM]");
+					Log.trace("[CLIENT=>ERRSIM]");
 					TFTP.printPacket(clientRequestPacket);
 
-					// Creates a thread to handle client request
-					Thread requestHandlerThread = new Thread(
-							new RequestHandler(clientRequestPacket),
-							"Request Handler Thread");
-
-					// Start request handler thread
-					requestHandlerThread.start();
+					// Handles client request on a new thread
+					executor.execute(new RequestHandler(clientRequestPacket));
 				}
 			}
 			finally
@@ -535,15 +545,8 @@ public class ErrorSimulator implements Runnable
 	{
 		if (sendFromUnknownTID)
 		{
-			// Thread to handle client request
-			Thread unknownTIDThread;
-
-			unknownTIDThread = new Thread(
-					new UnknownTIDTransferHandler(packet, addressTID, portTID),
-					"Unknown TID Trasfer Handler Thread");
-
-			// Start unknown TID handler thread
-			unknownTIDThread.start();
+			// Start unknown TID handler on a new thread
+			executor.execute(new UnknownTIDTransferHandler(packet, addressTID, portTID));
 			
 			sendFromUnknownTID = false;
 		}
@@ -554,7 +557,25 @@ public class ErrorSimulator implements Runnable
 	 */
 	public static void main(String[] args)
 	{
-		ErrorSimulator errorSimulator = new ErrorSimulator();
+		// "-threads virtual" runs the handlers on virtual threads, "-v" logs every packet
+		String threadMode = TransferExecutors.MODE_PLATFORM;
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-threads") && i + 1 < args.length && TransferExecutors.isValidMode(args[i + 1]))
+			{
+				threadMode = args[++i];
+			}
+			else if (args[i].equals("-v"))
+			{
+				Log.setLevel(Log.Level.TRACE);
+			}
+			else
+			{
+				System.out.println("Invalid command line arugment received. Exiting error simulator...");
+				System.exit(1);
+			}
+		}
+		ErrorSimulator errorSimulator = new ErrorSimulator(threadMode);
 		errorSimulator.run();
 
 	}
@@ -584,28 +605,18 @@ public class ErrorSimulator implements Runnable
 			// Extract operation from packet
 			int operation = TFTP.getOpCode(requestPacket);
 
-			// Thread to handle client request
-			Thread transferHandlerThread;
-
-			// Creates thread corresponding to the operation received
+			// Handles the transfer corresponding to the operation received on a new thread
 			switch (operation)
 			{
 				case TFTP.READ_OP_CODE:
-					transferHandlerThread = new Thread(
-							new ReadTransferHandler(requestPacket),
-							"Read Transfer Handler Thread");
+					executor.execute(new ReadTransferHandler(requestPacket));
 					break;
 				case TFTP.WRITE_OP_CODE:
-					transferHandlerThread = new Thread(
-							new WriteTransferHandler(requestPacket),
-							"Write Transfer Handler Thread");
+					executor.execute(new WriteTransferHandler(requestPacket));
 					break;
 				default:
 					throw new UnsupportedOperationException();
 			}
-
-			// Start request handler thread
-			transferHandlerThread.start();
 		}
 	}
 
@@ -646,7 +657,7 @@ public class ErrorSimulator implements Runnable
 				if (isDelayableError(modeSelected, errorSelected) && modeSelected == MODE_READ_WRITE && !errorSimulated) {
 					// Send current request now if duplicating
 					if (modeSelected == MODE_READ_WRITE && errorSelected == ERROR_REQUEST_DUPLICATE) {
-						System.out.println("[ERRSIM=>SERVER]");
+						Log.trace("[ERRSIM=>SERVER]");
 						TFTP.printPacket(serverRequestPacket);
 						sendReceiveServerSocket.send(serverRequestPacket);
 					}
@@ -661,7 +672,7 @@ public class ErrorSimulator implements Runnable
 					errorSimulated = true;
 				} else {
 					// Proceed as normal otherwise
-					System.out.println("[ERRSIM=>SERVER]");
+					Log.trace("[ERRSIM=>SERVER]");
 					TFTP.printPacket(serverRequestPacket);
 					sendReceiveServerSocket.send(serverRequestPacket);
 				}
@@ -699,9 +710,9 @@ public class ErrorSimulator implements Runnable
 					while (!transferComplete)
 					{
 						// Creates a DatagramPacket to receive data packet from server
-						DatagramPacket receivedPacket = TFTP.formPacket();
+						DatagramPacket receivedPacket = TFTP.formPacket(TFTP.MAX_BLOCK_SIZE);
 
-						System.out.println("Waiting for packet...");
+						Log.trace("Waiting for packet...");
 						
 						packetReceived = false;
 						fromServer = false;
@@ -739,7 +750,7 @@ public class ErrorSimulator implements Runnable
 						//	transferComplete = true;
 						}
 						TFTP.shrinkData(receivedPacket);
-						System.out.println("[SERVER=>ERRSIM]");
+						Log.trace("[SERVER=>ERRSIM]");
 						TFTP.printPacket(receivedPacket);
 
 						// Saves server TID on first iteration
@@ -767,7 +778,7 @@ public class ErrorSimulator implements Runnable
 							if (isDelayableError(modeSelected, errorSelected) && modeSelected == MODE_DATA_ACK) {
 								// Send current request now if duplicating
 								if (modeSelected == MODE_DATA_ACK && errorSelected == ERROR_ACK_DATA_DUPLICATE) {
-									System.out.println("[ERRSIM=>CLIENT]");
+									Log.trace("[ERRSIM=>CLIENT]");
 									TFTP.printPacket(forwardedDataPacket);
 									sendReceiveClientSocket.send(forwardedDataPacket);
 								}
@@ -787,7 +798,7 @@ public class ErrorSimulator implements Runnable
 							// Proceed as normal otherwise
 							// Sends data packet to client
 							spawnUnknownTIDThread(forwardedDataPacket, clientAddressTID, clientPortTID);
-							System.out.println("[ERRSIM=>CLIENT]");
+							Log.trace("[ERRSIM=>CLIENT]");
 							TFTP.printPacket(forwardedDataPacket);
 							sendReceiveClientSocket.send(forwardedDataPacket);
 						}
@@ -797,13 +808,13 @@ public class ErrorSimulator implements Runnable
 							transferComplete = true;
 							break;
 						}
-						System.out.println("Expecting ACK from client.");
+						Log.trace("Expecting ACK from client.");
 					}
 					//if received packet is ACK or ERROR from Client
 					else {
 						
 						TFTP.shrinkData(receivedPacket);
-						System.out.println("[CLIENT=>ERRSIM]");
+						Log.trace("[CLIENT=>ERRSIM]");
 						TFTP.printPacket(receivedPacket);
 
 						// Sends acknowledgment packet to server
@@ -829,7 +840,7 @@ public class ErrorSimulator implements Runnable
 							if (isDelayableError(modeSelected, errorSelected) && modeSelected == MODE_DATA_ACK) {
 								// Send current request now if duplicating
 								if (modeSelected == MODE_DATA_ACK && errorSelected == ERROR_ACK_DATA_DUPLICATE) {
-									System.out.println("[ERRSIM=>SERVER]");
+									Log.trace("[ERRSIM=>SERVER]");
 									TFTP.printPacket(forwardedAckPacket);
 									sendReceiveServerSocket.send(forwardedAckPacket);
 								}
@@ -847,7 +858,7 @@ public class ErrorSimulator implements Runnable
 						} else {
 							// Proceed as normal otherwise
 							spawnUnknownTIDThread(forwardedAckPacket, serverAddressTID, serverPortTID);
-							System.out.println("[ERRSIM=>SERVER]");
+							Log.trace("[ERRSIM=>SERVER]");
 							TFTP.printPacket(forwardedAckPacket);
 							sendReceiveServerSocket.send(forwardedAckPacket);
 						}
@@ -871,7 +882,7 @@ public class ErrorSimulator implements Runnable
 							} catch(InterruptedException e) {
 							}
 						}
-						System.out.println("Expecting DATA packet from server.");
+						Log.trace("Expecting DATA packet from server.");
 					}
 					}
 					//System.out.println("Connection terminated.\n");
@@ -935,7 +946,7 @@ public class ErrorSimulator implements Runnable
 				if (isDelayableError(modeSelected, errorSelected) && modeSelected == MODE_READ_WRITE && !errorSimulated) {
 					// Send current request now if duplicating
 					if (modeSelected == MODE_READ_WRITE && errorSelected == ERROR_REQUEST_DUPLICATE) {
-						System.out.println("[ERRSIM=>SERVER]");
+						Log.trace("[ERRSIM=>SERVER]");
 						TFTP.printPacket(serverRequestPacket);
 						sendReceiveServerSocket.send(serverRequestPacket);
 					}
@@ -950,7 +961,7 @@ public class ErrorSimulator implements Runnable
 					errorSimulated = true;
 				} else {
 					// Proceed as normal otherwise
-					System.out.println("[ERRSIM=>SERVER]");
+					Log.trace("[ERRSIM=>SERVER]");
 					TFTP.printPacket(serverRequestPacket);
 					sendReceiveServerSocket.send(serverRequestPacket);
 				}
@@ -961,7 +972,7 @@ public class ErrorSimulator implements Runnable
 				// Receives acknowledgment packet from server
 				sendReceiveServerSocket.receive(firstAckPacket);
 				TFTP.shrinkData(firstAckPacket);
-				System.out.println("[SERVER=>ERRSIM]");
+				Log.trace("[SERVER=>ERRSIM]");
 				TFTP.printPacket(firstAckPacket);
 
 				// Transfer if server sends back an error packet
@@ -995,7 +1006,7 @@ public class ErrorSimulator implements Runnable
 					if (isDelayableError(modeSelected, errorSelected)) {
 						// Send current request now if duplicating
 						if (modeSelected == MODE_DATA_ACK && errorSelected == ERROR_ACK_DATA_DUPLICATE) {
-							System.out.println("[ERRSIM=>CLIENT]");
+							Log.trace("[ERRSIM=>CLIENT]");
 							TFTP.printPacket(forwardedFirstAckPacket);
 							sendReceiveClientSocket.send(forwardedFirstAckPacket);
 						}
@@ -1017,7 +1028,7 @@ public class ErrorSimulator implements Runnable
 					// Sends data packet to client
 					//tamperPacket(forwardedFirstAckPacket, RECEIVED_FROM_SERVER);
 					spawnUnknownTIDThread(forwardedFirstAckPacket, clientAddressTID, clientPortTID);
-					System.out.println("[ERRSIM=>CLIENT]");
+					Log.trace("[ERRSIM=>CLIENT]");
 					TFTP.printPacket(forwardedFirstAckPacket);
 					sendReceiveClientSocket.send(forwardedFirstAckPacket);
 				}
@@ -1047,9 +1058,9 @@ public class ErrorSimulator implements Runnable
 					while (true) 
 					{
 						// Creates a DatagramPacket to receive data packet
-						DatagramPacket receivedPacket = TFTP.formPacket();
+						DatagramPacket receivedPacket = TFTP.formPacket(TFTP.MAX_BLOCK_SIZE);
 						
-						System.out.println("Waiting for packet...");
+						Log.trace("Waiting for packet...");
 						
 						packetReceived = false;
 						fromClient = false;
@@ -1087,7 +1098,7 @@ public class ErrorSimulator implements Runnable
 						//	transferComplete = true;
 						}
 						TFTP.shrinkData(receivedPacket);
-						System.out.println("[CLIENT=>ERRSIM]");
+						Log.trace("[CLIENT=>ERRSIM]");
 						TFTP.printPacket(receivedPacket);
 
 						// Sends data packet to server
@@ -1112,7 +1123,7 @@ public class ErrorSimulator implements Runnable
 							if (isDelayableError(modeSelected, errorSelected) && modeSelected == MODE_DATA_ACK) {
 								// Send current request now if duplicating
 								if (modeSelected == MODE_DATA_ACK && errorSelected == ERROR_ACK_DATA_DUPLICATE) {
-									System.out.println("[ERRSIM=>SERVER]");
+									Log.trace("[ERRSIM=>SERVER]");
 									TFTP.printPacket(forwardedDataPacket);
 									sendReceiveServerSocket.send(forwardedDataPacket);
 								}
@@ -1133,7 +1144,7 @@ public class ErrorSimulator implements Runnable
 							// Proceed as normal otherwise
 							//tamperPacket(forwardedDataPacket, RECEIVED_FROM_CLIENT);
 							spawnUnknownTIDThread(forwardedDataPacket, serverAddressTID, serverPortTID);
-							System.out.println("[ERRSIM=>SERVER]");
+							Log.trace("[ERRSIM=>SERVER]");
 							TFTP.printPacket(forwardedDataPacket);
 							sendReceiveServerSocket.send(forwardedDataPacket);
 						}
@@ -1144,13 +1155,13 @@ public class ErrorSimulator implements Runnable
 							//transferComplete = true;
 							break;
 						}
-						System.out.println("Expecting ACK from server");
+						Log.trace("Expecting ACK from server");
 					}
 					//If packet received is from Server
 					else {
 
 						TFTP.shrinkData(receivedPacket);
-						System.out.println("[SERVER=>ERRSIM]");
+						Log.trace("[SERVER=>ERRSIM]");
 						TFTP.printPacket(receivedPacket);
 
 						// Sends acknowledgment packet to client
@@ -1171,7 +1182,7 @@ public class ErrorSimulator implements Runnable
 							if (isDelayableError(modeSelected, errorSelected)) {
 								// Send current request now if duplicating
 								if (modeSelected == MODE_DATA_ACK && errorSelected == ERROR_ACK_DATA_DUPLICATE) {
-									System.out.println("[ERRSIM=>CLIENT]");
+									Log.trace("[ERRSIM=>CLIENT]");
 									TFTP.printPacket(forwardedAckPacket);
 									sendReceiveClientSocket.send(forwardedAckPacket);
 								}
@@ -1193,7 +1204,7 @@ public class ErrorSimulator implements Runnable
 							// Sends data packet to client
 							//tamperPacket(forwardedAckPacket, RECEIVED_FROM_SERVER);
 							spawnUnknownTIDThread(forwardedAckPacket, clientAddressTID, clientPortTID);
-							System.out.println("[ERRSIM=>CLIENT]");
+							Log.trace("[ERRSIM=>CLIENT]");
 							TFTP.printPacket(forwardedAckPacket);
 							sendReceiveClientSocket.send(forwardedAckPacket);
 						}
@@ -1217,7 +1228,7 @@ public class ErrorSimulator implements Runnable
 							} catch(InterruptedException e) {
 							}
 						}
-						System.out.println("Expecting DATA from client.");
+						Log.trace("Expecting DATA from client.");
 					}
 					}
 
@@ -1279,7 +1290,7 @@ public class ErrorSimulator implements Runnable
 					// Receives invalid TID error packet
 					socket.receive(errorPacket);
 					TFTP.shrinkData(errorPacket);
-					System.out.println("[UNKNOWN=>ERRSIM]");
+					Log.trace("[UNKNOWN=>ERRSIM]");
 					TFTP.printPacket(errorPacket);
 					
 					// Check if the address and port of the received packet match the TID
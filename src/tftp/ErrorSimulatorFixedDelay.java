@@ -458,7 +458,7 @@ public class ErrorSimulatorFixedDelay
 	public DatagramPacket receivePacket(DatagramSocket socket) throws IOException
 	{
 		int numTimeouts = 0;
-		DatagramPacket packet = TFTP.formPacket();
+		DatagramPacket packet = TFTP.formPacket(TFTP.MAX_BLOCK_SIZE);
 
 		do
 		{
@@ -0,0 +1,634 @@
+package tftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Alternative server engine that multiplexes every transfer on a small, fixed number of
+ * event loop threads instead of starting a thread per transfer. Each event loop owns a
+ * Selector over the non-blocking DatagramChannels of its transfers and retransmits on
+ * timers rather than blocking on socket timeouts.
+ *
+ * Requests are received by the first event loop and handed to the loops in turn. The
+ * protocol itself is the same WindowedSender and WindowedReceiver used by the threaded
+ * server, driven by the packets and timeouts of the event loop.
+ *
+ * Files of at least MAPPED_FILE_SIZE bytes are read through a MappedBlockSource, and each
+ * DATA packet is assembled from the mapping in a direct buffer of the transfer, so the
+ * blocks of large files are never copied onto the heap. Smaller files are read through
+ * the BlockCache of the server, if it has one.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class EventLoopServer implements Exitable, Runnable {
+	private static int TIMEOUT = 2000; 	//Maximum time to wait for response before timeout and re-send packet: 2 seconds (2000ms)
+	private static int RESEND_LIMIT = 3; //Maximum number of times to try re-send packet without response: 3
+	public static final long MAPPED_FILE_SIZE = 1024 * 1024;	// Smallest file read through a memory mapping: 1 MB
+	private String directory;
+	private int port;
+	private BlockCache blockCache;
+	private ServerMetrics metrics;
+	private volatile boolean running = true;
+	private EventLoop[] loops;
+	private int nextLoop;
+	private DatagramChannel listenChannel;
+	private ActiveRequests activeRequests = new ActiveRequests();	// Requests being served, to drop duplicates
+
+	/**
+	 * Constructor of the EventLoopServer class
+	 *
+	 * @param directory Directory of the server files, ending with a separator
+	 * @param port Port to listen for requests on
+	 * @param loopCount Number of event loop threads
+	 * @param blockCache BlockCache for read requests, or null to read every block from disk
+	 * @param metrics ServerMetrics that the transfers are counted in
+	 */
+	public EventLoopServer(String directory, int port, int loopCount, BlockCache blockCache, ServerMetrics metrics) {
+		this.directory = directory;
+		this.port = port;
+		this.blockCache = blockCache;
+		this.metrics = metrics;
+		this.loops = new EventLoop[loopCount];
+	}
+
+	/**
+	 * Opens the request channel and starts the event loop threads.
+	 */
+	public void run() {
+		try {
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop();
+			}
+			listenChannel = DatagramChannel.open();
+			listenChannel.bind(new InetSocketAddress(port));
+			listenChannel.configureBlocking(false);
+			listenChannel.register(loops[0].selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		for (int i = 0; i < loops.length; i++) {
+			(new Thread(loops[i], "EventLoop-" + i)).start();
+		}
+		Log.info("Serving requests on " + loops.length + " event loop thread(s).");
+	}
+
+	/**
+	 * @return Port the requests are received on, once running
+	 */
+	public int getPort() {
+		return listenChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Stops the event loops. Transfers in progress are aborted.
+	 */
+	public void exit() {
+		running = false;
+		for (EventLoop loop : loops) {
+			if (loop != null) loop.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Receives every request waiting on the request channel and hands each one to the
+	 * next event loop.
+	 *
+	 * @param buffer Buffer to receive requests into
+	 * @throws IOException if the request channel failed
+	 */
+	private void receiveRequests(ByteBuffer buffer) throws IOException {
+		while (true) {
+			buffer.clear();
+			InetSocketAddress address = (InetSocketAddress) listenChannel.receive(buffer);
+			if (address == null) return;
+			Log.debug("A request was received.");
+
+			DatagramPacket packet = new DatagramPacket(Arrays.copyOf(buffer.array(), buffer.position()), buffer.position(), address.getAddress(), address.getPort());
+
+			// Drop a request the client sent again while the first one is being served, unless
+			// its transfer has to answer it again
+			String key = ActiveRequests.keyOf(packet);
+			if (!activeRequests.add(key)) {
+				metrics.duplicateRequest();
+				Log.debug("Duplicate request dropped.");
+				try {
+					activeRequests.answerDuplicate(key);
+				} catch (IOException e) {
+					Log.error(e.getMessage());
+				}
+				continue;
+			}
+
+			EventLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			loop.newTransfers.add(new Transfer(packet, key, loop));
+			loop.selector.wakeup();
+		}
+	}
+
+	/**
+	 * An event loop thread, which serves the transfers registered with its selector and
+	 * fires their timeouts.
+	 */
+	private class EventLoop implements Runnable {
+		private Selector selector;
+		// Transfers handed over by the first event loop, started by this one
+		private Queue<Transfer> newTransfers = new ConcurrentLinkedQueue<Transfer>();
+		// Transfers ordered by the deadline they were queued with
+		private PriorityQueue<Transfer> timers = new PriorityQueue<Transfer>(11, new Comparator<Transfer>() {
+			public int compare(Transfer t1, Transfer t2) {
+				return Long.compare(t1.timerKey, t2.timerKey);
+			}
+		});
+
+		/**
+		 * Constructor of the EventLoop class, opens its selector.
+		 *
+		 * @throws IOException if the selector could not be opened
+		 */
+		public EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * Waits for packets and timeouts and dispatches them to their transfers until the
+		 * server exits.
+		 */
+		public void run() {
+			final ByteBuffer requestBuffer = ByteBuffer.allocate(TFTP.MAX_PACKET_SIZE + 1);
+			// Made once rather than iterating over the selected keys, which would make an
+			// entry and an iterator for every packet
+			Consumer<SelectionKey> dispatcher = new Consumer<SelectionKey>() {
+				public void accept(SelectionKey key) {
+					if (!key.isValid()) return;
+					if (key.channel() == listenChannel) {
+						try {
+							receiveRequests(requestBuffer);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+						return;
+					}
+					Transfer t = (Transfer) key.attachment();
+					try {
+						t.handleReadable();
+					} catch (IOException e) {
+						Log.error(e.getMessage());
+						t.close();
+						return;
+					}
+					afterEvent(t);
+				}
+			};
+			while (running) {
+				try {
+					// Wait until a packet arrives or the earliest timeout is due, and dispatch packets
+					Transfer first = timers.peek();
+					if (first == null) {
+						selector.select(dispatcher);
+					} else {
+						selector.select(dispatcher, Math.max(1, first.timerKey - System.currentTimeMillis()));
+					}
+
+					// Start new transfers
+					Transfer t;
+					while ((t = newTransfers.poll()) != null) {
+						try {
+							t.start();
+						} catch (IOException e) {
+							Log.error(e.getMessage());
+							t.close();
+							continue;
+						}
+						afterEvent(t);
+					}
+
+					fireTimers();
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				} catch (UncheckedIOException e) {
+					e.getCause().printStackTrace();
+					System.exit(1);
+				}
+			}
+
+			// Abort the transfers left and close the channels
+			Log.debug("Event loop closing...");
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Transfer) {
+					((Transfer) key.attachment()).close();
+				} else {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+					}
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+
+		/**
+		 * Fires the timeout of every transfer whose deadline has passed.
+		 */
+		private void fireTimers() {
+			long now = System.currentTimeMillis();
+			while (!timers.isEmpty() && timers.peek().timerKey <= now) {
+				Transfer t = timers.poll();
+				t.queued = false;
+				if (t.isDone()) continue;
+
+				// The deadline moved since the transfer was queued, so queue it again
+				if (t.deadline > now) {
+					schedule(t);
+					continue;
+				}
+
+				try {
+					t.handleTimeout();
+				} catch (IOException e) {
+					Log.error(e.getMessage());
+					t.close();
+					continue;
+				}
+				afterEvent(t);
+			}
+		}
+
+		/**
+		 * Closes a transfer that has ended, otherwise restarts its timeout.
+		 *
+		 * @param t Transfer that just handled an event
+		 */
+		private void afterEvent(Transfer t) {
+			if (t.isDone()) {
+				t.close();
+				return;
+			}
+			t.deadline = System.currentTimeMillis() + t.getTimeout();
+			schedule(t);
+		}
+
+		/**
+		 * Makes sure a transfer is queued no later than its deadline. A transfer stays queued
+		 * under its old deadline when the deadline moves later, and is queued again when
+		 * that old deadline passes.
+		 *
+		 * @param t Transfer to queue
+		 */
+		private void schedule(Transfer t) {
+			if (t.queued && t.timerKey <= t.deadline) return;
+			if (t.queued) timers.remove(t);
+			t.timerKey = t.deadline;
+			t.queued = true;
+			timers.add(t);
+		}
+	}
+
+	/**
+	 * State of a single transfer: its channel, negotiated options, and the sender or
+	 * receiver running the protocol. Packets are sent through the channel of the transfer,
+	 * so each transfer has its own TID as in the threaded server.
+	 */
+	private class Transfer implements ByteBufferOutput {
+		private DatagramPacket requestPacket;
+		private String requestKey;	// Key of the request in activeRequests
+		private EventLoop loop;
+		private InetAddress replyAddr;
+		private int TID;
+		private InetSocketAddress peer;		// Address of replyAddr and TID, which nearly every packet is sent to
+		private DatagramChannel channel;
+		private SelectionKey key;
+		private ByteBuffer receiveBuffer;
+		private DatagramPacket receivePacket;	// Reused for every packet, over receiveBuffer
+		private ByteBuffer sendBuffer;		// Direct buffer that every packet is assembled in before it is sent
+		private Request request;
+		private WindowedSender sender;		// Set for a read request
+		private WindowedReceiver receiver;	// Set for a write request
+		private BlockSource source;
+		private BlockSink sink;
+		private long startTime;
+		private boolean started;
+		private boolean closed;
+
+		// Timeout bookkeeping, only used by the event loop of the transfer
+		private long deadline;
+		private long timerKey;
+		private boolean queued;
+
+		/**
+		 * Constructor of the Transfer class
+		 *
+		 * @param requestPacket Request packet received from a Client
+		 * @param requestKey Key of the request in activeRequests
+		 * @param loop EventLoop that will serve the transfer
+		 */
+		public Transfer(DatagramPacket requestPacket, String requestKey, EventLoop loop) {
+			this.requestPacket = requestPacket;
+			this.requestKey = requestKey;
+			this.loop = loop;
+			this.replyAddr = requestPacket.getAddress();
+			this.TID = requestPacket.getPort();
+			this.peer = new InetSocketAddress(replyAddr, TID);
+		}
+
+		/**
+		 * Opens the channel of the transfer, checks the request, and sends the first packet
+		 * of the transfer or an ERROR packet.
+		 *
+		 * @throws IOException if the channel could not be opened or a packet could not be sent
+		 */
+		public void start() throws IOException {
+			startTime = metrics.transferStarted();
+			started = true;
+			channel = DatagramChannel.open();
+			channel.bind(null);
+			channel.configureBlocking(false);
+			key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+
+			// Check that packet is a valid RRQ/WRQ
+			String[] errorMessage = new String[1];
+			if (!TFTP.verifyRequestPacket(requestPacket, errorMessage)) {
+				sendError(TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION, errorMessage[0], "Request packet malformed");
+				return;
+			}
+			request = TFTP.parseRQ(requestPacket);
+			Log.info(request.getType() + " request for file \"" + directory + request.getFileName() + "\".\n");
+
+			// Negotiate options. The OACK is formed once the file has been checked.
+			TransferOptions options = new TransferOptions();
+			Map<String, String> acceptedOptions = options.accept(request.getOptions());
+			receiveBuffer = ByteBuffer.allocate(Math.max(TFTP.MAX_PACKET_SIZE, options.getPacketSize()) + 1);
+			receivePacket = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+			sendBuffer = ByteBuffer.allocateDirect(Math.max(TFTP.MAX_PACKET_SIZE, options.getPacketSize()));
+
+			String fileName = request.getFileName();
+			String filePath = directory + fileName;
+			if (request.getType() == Request.Type.READ) {
+				if (!TFTP.fileExists(filePath) || TFTP.isDirectory(filePath)) {
+					sendError(TFTP.ERROR_CODE_FILE_NOT_FOUND, "\"" + fileName + "\" does not exist on server.", "File does not exist");
+					return;
+				}
+				if (!TFTP.isReadable(filePath)) {
+					sendError(TFTP.ERROR_CODE_ACCESS_VIOLATION, "You do not have read access to the file \"" + fileName + "\".", "File access violation");
+					return;
+				}
+
+				// Tell the client the size of the file if it asked for it (RFC 2349)
+				if (options.getTransferSize() >= 0) options.acceptTransferSize(acceptedOptions, new File(filePath).length());
+
+				// Resume from the offset the client asked for, unless the file is no longer than
+				// that, as the client's partial file cannot then be a part of it
+				long offset = options.getOffset();
+				if (offset > 0 && offset >= new File(filePath).length()) offset = -1;
+				options.setOffset(offset);
+				if (offset >= 0) options.acceptOffset(acceptedOptions, offset);
+				DatagramPacket oackPacket = formOACK(acceptedOptions);
+				try {
+					if (offset > 0) {
+						source = new FileBlockSource(filePath, options.getBlockSize(), offset);
+					} else if (new File(filePath).length() >= MAPPED_FILE_SIZE) {
+						source = new MappedBlockSource(filePath, options.getBlockSize());
+					} else if (blockCache != null) {
+						source = new CachingBlockSource(filePath, options.getBlockSize(), blockCache);
+					} else {
+						source = new FileBlockSource(filePath, options.getBlockSize());
+					}
+				} catch (IOException e) {
+					sendError(TFTP.ERROR_CODE_NOT_DEFINED, fileName + " could not be transferred because the file could not be read.", "File could not be read");
+					return;
+				}
+
+				sender = new WindowedSender(this, replyAddr, TID, options, RESEND_LIMIT, true, "client");
+				sender.setMetrics(metrics);
+				sender.start(source, oackPacket, fileName);
+			} else {
+				if (TFTP.fileExists(filePath) && !TFTP.isWritable(filePath)) {
+					sendError(TFTP.ERROR_CODE_ACCESS_VIOLATION, "You do not have write access to the file \"" + fileName + "\".", "File access violation");
+					return;
+				}
+
+				long transferSize = options.getTransferSize();
+				if (transferSize >= 0) options.acceptTransferSize(acceptedOptions, transferSize);
+
+				// A client that can resume has its partial file kept, and carries on from its end
+				FileBlockSink fileSink;
+				try {
+					if (options.getOffset() >= 0) {
+						fileSink = FileBlockSink.resumable(filePath, transferSize);
+						options.acceptOffset(acceptedOptions, fileSink.getBytesWritten());
+					} else {
+						fileSink = new FileBlockSink(filePath);
+					}
+				} catch (IOException e) {
+					sendError(TFTP.ERROR_CODE_ACCESS_VIOLATION, "\"" + fileName + "\" could not be created on server.", "File could not be created");
+					return;
+				}
+				sink = fileSink;
+
+				// Refuse an upload that cannot fit before any block is sent (RFC 2349), counting
+				// only what is left of a resumed one
+				if (transferSize - fileSink.getBytesWritten() > TFTP.getFreeSpaceOnFileSystem(directory)) {
+					sendError(TFTP.ERROR_CODE_DISK_FULL, "\"" + fileName + "\" could not be transferred because disk is full.", "Disk full");
+					return;
+				}
+				DatagramPacket oackPacket = formOACK(acceptedOptions);
+
+				// Send ACK0, or the OACK in its place if options were negotiated
+				DatagramPacket firstReply;
+				if (oackPacket != null) {
+					Log.trace("Sending OACK.");
+					firstReply = oackPacket;
+				} else {
+					Log.trace("Sending ACK 0.");
+					firstReply = TFTP.formACKPacket(replyAddr, TID, 0);
+				}
+				send(firstReply);
+
+				// The receiver sends it again until block 1 arrives, as a request sent again is dropped
+				receiver = new WindowedReceiver(this, replyAddr, TID, options, RESEND_LIMIT, true, "client");
+				receiver.setMetrics(metrics);
+				receiver.setFirstReply(firstReply);
+				receiver.start(sink, null, fileName, directory);
+			}
+		}
+
+		/**
+		 * Hands every packet waiting on the channel to the sender or receiver.
+		 *
+		 * @throws IOException if a packet could not be sent or the file could not be completed
+		 */
+		public void handleReadable() throws IOException {
+			while (!isDone()) {
+				receiveBuffer.clear();
+				InetSocketAddress address = (InetSocketAddress) channel.receive(receiveBuffer);
+				if (address == null) return;
+
+				receivePacket.setLength(receiveBuffer.position());
+				receivePacket.setAddress(address.getAddress());
+				receivePacket.setPort(address.getPort());
+				if (sender != null) {
+					sender.handlePacket(receivePacket);
+				} else {
+					receiver.handlePacket(receivePacket);
+				}
+			}
+		}
+
+		/**
+		 * Handles a timeout waiting for the client.
+		 *
+		 * @throws IOException if a packet could not be sent
+		 */
+		public void handleTimeout() throws IOException {
+			if (sender != null) {
+				sender.handleTimeout();
+			} else {
+				receiver.handleTimeout();
+			}
+		}
+
+		/**
+		 * @return Time to wait for the client before the next timeout, in milliseconds
+		 */
+		public int getTimeout() {
+			if (sender != null) return sender.getTimeout();
+			if (receiver != null) return receiver.getTimeout();
+			return TIMEOUT;
+		}
+
+		/**
+		 * @return true once the transfer has completed or been aborted
+		 */
+		public boolean isDone() {
+			if (closed) return true;
+			if (sender != null) return sender.isDone();
+			if (receiver != null) return receiver.isDone();
+			// The request was refused
+			return true;
+		}
+
+		/**
+		 * Closes the channel of the transfer and releases its file. A partial file that was
+		 * being written is deleted.
+		 */
+		public void close() {
+			if (closed) return;
+			closed = true;
+			activeRequests.remove(requestKey);
+			boolean complete = (sender != null && sender.isComplete()) || (receiver != null && receiver.isComplete());
+			if (sender != null && sender.isComplete()) Log.info("\nEnd of file transfer.\n");
+			if (receiver != null && receiver.isComplete()) Log.info("\nWrite complete.\n");
+			if (started) metrics.transferFinished(startTime, complete);
+
+			if (key != null) key.cancel();
+			try {
+				if (channel != null) channel.close();
+			} catch (IOException e) {
+			}
+			if (source != null) source.close();
+			if (sink != null) sink.abort();
+		}
+
+		/**
+		 * Sends a packet through the channel of the transfer. If the send buffer is full the
+		 * packet is dropped, as it would be by the network, and resent on timeout.
+		 *
+		 * The packet is copied into the direct buffer of the transfer, which the channel would
+		 * otherwise do into a temporary buffer of its own, so no buffer is made per packet.
+		 *
+		 * @param packet Packet to send
+		 * @throws IOException if the packet could not be sent
+		 */
+		public void send(DatagramPacket packet) throws IOException {
+			// An ERROR packet can be sent before the request has been read
+			if (sendBuffer == null || packet.getLength() > sendBuffer.capacity()) {
+				channel.send(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()), packet.getSocketAddress());
+				return;
+			}
+			sendBuffer.clear();
+			sendBuffer.put(packet.getData(), packet.getOffset(), packet.getLength());
+			sendBuffer.flip();
+			channel.send(sendBuffer, socketAddress(packet.getAddress(), packet.getPort()));
+		}
+
+		/**
+		 * Sends a DATA packet holding a block of the mapped file. The header and block are
+		 * assembled in a direct buffer, so the block goes from the page cache to the socket
+		 * without a copy on the heap.
+		 *
+		 * @param addr InetAddress of DATA packet destination
+		 * @param port Port number of DATA packet destination
+		 * @param blockNumber Block number of the DATA packet
+		 * @param data Block to send, whose position is left as it was
+		 * @throws IOException if the packet could not be sent
+		 */
+		public void sendDATA(InetAddress addr, int port, int blockNumber, ByteBuffer data) throws IOException {
+			int position = data.position();
+			sendBuffer.clear();
+			sendBuffer.put((byte) 0);
+			sendBuffer.put((byte) TFTP.DATA_OP_CODE);
+			sendBuffer.putShort((short) blockNumber);
+			sendBuffer.put(data);
+			sendBuffer.flip();
+			data.position(position);
+			channel.send(sendBuffer, socketAddress(addr, port));
+		}
+
+		/**
+		 * @param addr Address a packet is sent to
+		 * @param port Port a packet is sent to
+		 *
+		 * @return The address of the client when the packet is sent to it, so that it is not
+		 * made again for every packet, and otherwise a new address
+		 */
+		private InetSocketAddress socketAddress(InetAddress addr, int port) {
+			if (port == TID && addr.equals(replyAddr)) return peer;
+			return new InetSocketAddress(addr, port);
+		}
+
+		/**
+		 * Forms the OACK from the options accepted, if any were.
+		 *
+		 * @param acceptedOptions Options accepted
+		 *
+		 * @return The OACK, or null if no option was accepted
+		 */
+		private DatagramPacket formOACK(Map<String, String> acceptedOptions) {
+			if (acceptedOptions.isEmpty()) return null;
+			Log.info("Accepted options " + acceptedOptions + ".\n");
+			return TFTP.formOACKPacket(replyAddr, TID, acceptedOptions);
+		}
+
+		/**
+		 * Sends an ERROR packet to the client, refusing the request.
+		 *
+		 * @param errorCode ERROR code of the packet
+		 * @param errorMessage Message of the packet
+		 * @param echo Description of the error to echo
+		 * @throws IOException if the ERROR packet could not be sent
+		 */
+		private void sendError(int errorCode, String errorMessage, String echo) throws IOException {
+			// Creates and sends the error packet
+			DatagramPacket errorPacket = TFTP.formERRORPacket(replyAddr, TID, errorCode, errorMessage);
+			send(errorPacket);
+			metrics.errorSent(errorCode);
+
+			// Echo error message
+			Log.info("Sent ERROR packet with ERROR code " + errorCode + ": " + echo + ". Aborting transfer...\n");
+		}
+	}
+}
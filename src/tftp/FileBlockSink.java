@@ -0,0 +1,225 @@
+package tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * BlockSink that writes each block straight to disk. Blocks are written to a
+ * temporary file next to the destination, which is renamed over the destination
+ * on commit and deleted on abort, so a failed transfer never leaves a partial file
+ * behind under the real name.
+ * 
+ * A resumable sink instead writes to a partial file with a fixed name, which is kept on
+ * abort so that a later transfer of the same file can carry on from its end (see the
+ * offset option in TransferOptions). Only one transfer at a time can write to it.
+ * 
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class FileBlockSink implements BlockSink {
+	private static final String TEMP_SUFFIX = ".part";
+	private static final Random TEMP_NAMES = new Random();
+
+	private Path target;
+	private Path temp;
+	private FileChannel channel;
+	private ByteBuffer buffer;	// Wraps the last array written from, which receivers reuse for every block
+	private long bytesWritten;
+	private long kept;			// Bytes of the partial file kept from an earlier transfer
+	private boolean resumable;
+	private boolean finished;
+
+	/**
+	 * Creates the temporary file that the blocks for filePath are written to.
+	 * 
+	 * @param filePath Path of the file to create once the transfer completes
+	 * 
+	 * @throws IOException if the temporary file cannot be created
+	 */
+	public FileBlockSink(String filePath) throws IOException {
+		if (filePath.isEmpty()) throw new IllegalArgumentException();
+		this.target = Paths.get(filePath).toAbsolutePath();
+
+		// Files.createTempFile would restrict the permissions of the finished file to the
+		// owner, so pick an unused name and create it with the default permissions instead
+		while (channel == null) {
+			temp = target.resolveSibling("." + target.getFileName() + "." + Long.toHexString(TEMP_NAMES.nextLong()) + TEMP_SUFFIX);
+			try {
+				channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			} catch (FileAlreadyExistsException e) {
+				// Try another name
+			}
+		}
+		this.bytesWritten = 0;
+		this.finished = false;
+	}
+
+	/**
+	 * Constructor of a resumable sink, whose fields are set by resumable.
+	 */
+	private FileBlockSink() {
+	}
+
+	/**
+	 * Opens the partial file that the blocks for filePath are written to, or creates it.
+	 * Blocks are appended to what an earlier transfer left in it, unless resumeFrom moves
+	 * the end back.
+	 * 
+	 * @param filePath Path of the file to create once the transfer completes
+	 * 
+	 * @return Resumable FileBlockSink
+	 * @throws IOException if the partial file cannot be opened or another transfer is
+	 * writing to it
+	 */
+	public static FileBlockSink resumable(String filePath) throws IOException {
+		return resumable(filePath, -1);
+	}
+
+	/**
+	 * Opens the partial file that the blocks for filePath are written to, or creates it,
+	 * for a file whose size is known. A partial file that is already as long as the whole
+	 * file is not a part of it, since the last block would have completed the transfer. It
+	 * may have been left by a crash before the file was cut back or moved into place, so
+	 * it is started over rather than resumed from its end.
+	 * 
+	 * @param filePath Path of the file to create once the transfer completes
+	 * @param size Size of the whole file in bytes, or -1 if it is not known
+	 * 
+	 * @return Resumable FileBlockSink
+	 * @throws IOException if the partial file cannot be opened or another transfer is
+	 * writing to it
+	 */
+	public static FileBlockSink resumable(String filePath, long size) throws IOException {
+		if (filePath.isEmpty()) throw new IllegalArgumentException();
+		FileBlockSink sink = new FileBlockSink();
+		sink.target = Paths.get(filePath).toAbsolutePath();
+		sink.temp = sink.target.resolveSibling("." + sink.target.getFileName() + TEMP_SUFFIX);
+		sink.resumable = true;
+		sink.channel = FileChannel.open(sink.temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+		// The lock is released when the channel is closed
+		FileLock lock;
+		try {
+			lock = sink.channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		}
+		if (lock == null) {
+			sink.channel.close();
+			throw new IOException(sink.temp + " is being written by another transfer");
+		}
+		sink.kept = sink.channel.size();
+		if (size >= 0 && sink.kept > 0 && sink.kept >= size) {
+			sink.channel.truncate(0);
+			sink.kept = 0;
+		}
+		sink.bytesWritten = sink.kept;
+		sink.channel.position(sink.kept);
+		return sink;
+	}
+
+	/**
+	 * @return Bytes of the partial file kept from an earlier transfer, which a resumed
+	 * transfer starts after
+	 */
+	public long getKept() {
+		return kept;
+	}
+
+	/**
+	 * Cuts the partial file back to offset bytes before any block is written, when the
+	 * transfer resumes from earlier than the end of the partial file, or starts over.
+	 * 
+	 * @param offset Byte of the file that the next block starts at, at most getKept()
+	 * 
+	 * @throws IOException if the file could not be cut back
+	 */
+	public void resumeFrom(long offset) throws IOException {
+		if (finished || offset < 0 || offset > bytesWritten) throw new IllegalStateException();
+		channel.truncate(offset);
+		channel.position(offset);
+		bytesWritten = offset;
+	}
+
+	public void write(byte[] buf, int offset, int length) throws IOException {
+		if (finished) throw new IllegalStateException();
+		if (buffer == null || buffer.array() != buf) buffer = ByteBuffer.wrap(buf);
+		buffer.limit(offset + length);
+		buffer.position(offset);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		bytesWritten += length;
+	}
+
+	/**
+	 * Writes a block at its place in the file rather than after the last block written,
+	 * for multicast reads, where a client that joins late receives the blocks it missed
+	 * after the others. The bytes written are counted up to the end of the furthest block.
+	 * 
+	 * @param position Position of the block in the file
+	 * @param buf Buffer holding the block
+	 * @param offset Position of the block in buf
+	 * @param length Number of bytes in the block
+	 * 
+	 * @throws IOException if the block could not be written
+	 */
+	public void writeAt(long position, byte[] buf, int offset, int length) throws IOException {
+		if (finished) throw new IllegalStateException();
+		ByteBuffer block = ByteBuffer.wrap(buf, offset, length);
+		while (block.hasRemaining()) {
+			channel.write(block, position + block.position() - offset);
+		}
+		bytesWritten = Math.max(bytesWritten, position + length);
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public void commit() throws IOException {
+		if (finished) throw new IllegalStateException();
+		channel.close();
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+		finished = true;
+	}
+
+	public void abort() {
+		if (finished) return;
+		finished = true;
+		if (resumable) {
+			// Keep the blocks written for the next attempt
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Log.warn("Could not keep partial file " + temp + ".");
+			}
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// The file is deleted below regardless
+		}
+		try {
+			Files.deleteIfExists(temp);
+		} catch (IOException e) {
+			Log.warn("Could not delete partial file " + temp + ".");
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * BlockSource backed by a file. Each block is read with a positional read on a
+ * FileChannel, so blocks can be fetched in any order (e.g. for retransmission)
+ * without holding the file in memory.
+ * 
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class FileBlockSource implements BlockSource {
+	private FileChannel channel;
+	private int blockSize;
+	private long start;	// Byte of the file that block 1 starts at
+
+	/**
+	 * Opens the file at filePath for reading in blocks of blockSize bytes.
+	 * 
+	 * @param filePath Path of the file to read
+	 * @param blockSize Number of bytes in a full block
+	 * 
+	 * @throws IOException if the file cannot be opened
+	 */
+	public FileBlockSource(String filePath, int blockSize) throws IOException {
+		this(filePath, blockSize, 0);
+	}
+
+	/**
+	 * Opens the file at filePath for reading in blocks of blockSize bytes from offset, to
+	 * resume a transfer that ended early.
+	 * 
+	 * @param filePath Path of the file to read
+	 * @param blockSize Number of bytes in a full block
+	 * @param offset Byte of the file that block 1 starts at
+	 * 
+	 * @throws IOException if the file cannot be opened
+	 */
+	public FileBlockSource(String filePath, int blockSize, long offset) throws IOException {
+		if (filePath.isEmpty() || blockSize <= 0 || offset < 0) throw new IllegalArgumentException();
+		this.channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+		this.blockSize = blockSize;
+		this.start = offset;
+	}
+
+	public int readBlock(long blockIndex, byte[] buf, int offset) throws IOException {
+		if (blockIndex < 1) throw new IllegalArgumentException();
+		ByteBuffer dst = ByteBuffer.wrap(buf, offset, blockSize);
+		long position = start + (blockIndex - 1) * blockSize;
+
+		// A positional read may return fewer bytes than requested, so keep reading until
+		// the block is full or the end of the file is reached
+		while (dst.hasRemaining()) {
+			int n = channel.read(dst, position);
+			if (n < 0) break;
+			position += n;
+		}
+		return dst.position() - offset;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing left to release
+		}
+	}
+}
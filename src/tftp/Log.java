@@ -0,0 +1,208 @@
+package tftp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leveled logging shared by the client, server and error simulator. Messages below the
+ * current level are dropped before any string is built, and messages that are logged are
+ * handed to a single writer thread through a bounded queue, so a transfer thread never
+ * waits on the console.
+ *
+ * A message with arguments is formatted by the writer thread with String.format, so the
+ * arguments must not change after the call; pass values, never a packet buffer that is
+ * reused. The trace methods taking long arguments only box them when trace is enabled,
+ * so a disabled per-packet message costs a level check. When the queue is full, messages
+ * are dropped and the number dropped is reported by the writer.
+ *
+ * Per-packet messages are logged at TRACE, which is off unless -v is given.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class Log {
+	public enum Level {
+		ERROR, WARN, INFO, DEBUG, TRACE;
+	}
+
+	public static final int QUEUE_SIZE = 8192;	// Messages waiting for the writer before new ones are dropped
+	private static volatile Level level = Level.INFO;
+	private static BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+	private static AtomicLong dropped = new AtomicLong();
+	private static volatile Thread writer;
+
+	private Log() {
+	}
+
+	/**
+	 * @param newLevel Most detailed level of the messages to write
+	 */
+	public static void setLevel(Level newLevel) {
+		level = newLevel;
+	}
+
+	/**
+	 * @return Most detailed level of the messages to write
+	 */
+	public static Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param messageLevel Level of a message
+	 *
+	 * @return true if messages at messageLevel are written
+	 */
+	public static boolean isEnabled(Level messageLevel) {
+		return messageLevel.ordinal() <= level.ordinal();
+	}
+
+	/**
+	 * @return true if per-packet messages are written
+	 */
+	public static boolean isTraceEnabled() {
+		return level == Level.TRACE;
+	}
+
+	public static void error(String message) {
+		log(Level.ERROR, message, null);
+	}
+
+	public static void warn(String message) {
+		log(Level.WARN, message, null);
+	}
+
+	public static void info(String message) {
+		log(Level.INFO, message, null);
+	}
+
+	public static void debug(String message) {
+		log(Level.DEBUG, message, null);
+	}
+
+	public static void trace(String message) {
+		log(Level.TRACE, message, null);
+	}
+
+	public static void trace(String format, long arg) {
+		if (!isTraceEnabled()) return;
+		log(Level.TRACE, format, new Object[] {arg});
+	}
+
+	public static void trace(String format, long arg1, long arg2) {
+		if (!isTraceEnabled()) return;
+		log(Level.TRACE, format, new Object[] {arg1, arg2});
+	}
+
+	public static void trace(String format, Object arg) {
+		if (!isTraceEnabled()) return;
+		log(Level.TRACE, format, new Object[] {arg});
+	}
+
+	/**
+	 * Queues a message for the writer thread, if its level is enabled.
+	 *
+	 * @param messageLevel Level of the message
+	 * @param format Message, or format string if there are arguments
+	 * @param args Arguments of the format string, or null to write the message as is
+	 */
+	public static void log(Level messageLevel, String format, Object[] args) {
+		if (!isEnabled(messageLevel)) return;
+		startWriter();
+		if (!queue.offer(new Entry(format, args, null))) dropped.incrementAndGet();
+	}
+
+	/**
+	 * Waits for the messages queued so far to be written, for up to a second. Used before
+	 * a prompt, so that it is not mixed with earlier messages.
+	 */
+	public static void flush() {
+		if (writer == null) return;
+		CountDownLatch written = new CountDownLatch(1);
+		try {
+			queue.offer(new Entry(null, null, written), 1, TimeUnit.SECONDS);
+			written.await(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return Number of messages dropped because the queue was full
+	 */
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Starts the writer thread on first use, and writes what is left in the queue when
+	 * the program exits.
+	 */
+	private static synchronized void startWriter() {
+		if (writer != null) return;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				long reported = 0;
+				while (true) {
+					Entry entry;
+					try {
+						entry = queue.take();
+					} catch (InterruptedException e) {
+						return;
+					}
+					reported = write(entry, reported);
+				}
+			}
+		}, "Log writer");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}));
+	}
+
+	/**
+	 * Writes one entry, first reporting any messages dropped since the last report.
+	 *
+	 * @param entry Entry taken from the queue
+	 * @param reported Number of dropped messages already reported
+	 *
+	 * @return Number of dropped messages reported
+	 */
+	private static long write(Entry entry, long reported) {
+		long total = dropped.get();
+		if (total > reported) {
+			System.out.println("(" + (total - reported) + " log messages dropped)");
+			reported = total;
+		}
+		if (entry.written != null) {
+			System.out.flush();
+			entry.written.countDown();
+		} else if (entry.args == null) {
+			System.out.println(entry.format);
+		} else {
+			System.out.println(String.format(entry.format, entry.args));
+		}
+		return reported;
+	}
+
+	/**
+	 * A message waiting for the writer, or a flush marker.
+	 */
+	private static class Entry {
+		private String format;
+		private Object[] args;
+		private CountDownLatch written;	// Set on a flush marker
+
+		public Entry(String format, Object[] args, CountDownLatch written) {
+			this.format = format;
+			this.args = args;
+			this.written = written;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * BlockSource backed by a read-only memory mapping of a file. Each block is a slice of
+ * the mapping, so a block can be sent straight from the page cache through a
+ * ByteBufferOutput without being copied onto the heap, and resent without being read
+ * again.
+ *
+ * A single mapping cannot exceed 2 GB, so larger files are mapped in regions holding a
+ * whole number of blocks. The mapping is released when the source is garbage collected,
+ * and the file must not be truncated while it is being sent.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class MappedBlockSource implements BlockSource {
+	public static final int MAX_REGION_SIZE = 1 << 30;	// Largest region mapped at once: 1 GB
+	private MappedByteBuffer[] regions;
+	private int blockSize;
+	private long blocksPerRegion;
+	private long fileSize;
+
+	/**
+	 * Maps the file at filePath for reading in blocks of blockSize bytes.
+	 *
+	 * @param filePath Path of the file to read
+	 * @param blockSize Number of bytes in a full block
+	 *
+	 * @throws IOException if the file cannot be opened or mapped
+	 */
+	public MappedBlockSource(String filePath, int blockSize) throws IOException {
+		this(filePath, blockSize, MAX_REGION_SIZE);
+	}
+
+	/**
+	 * Maps the file at filePath for reading in blocks of blockSize bytes, using regions
+	 * of at most regionSize bytes.
+	 *
+	 * @param filePath Path of the file to read
+	 * @param blockSize Number of bytes in a full block
+	 * @param regionSize Largest number of bytes to map at once, at least blockSize
+	 *
+	 * @throws IOException if the file cannot be opened or mapped
+	 */
+	public MappedBlockSource(String filePath, int blockSize, int regionSize) throws IOException {
+		if (filePath.isEmpty() || blockSize <= 0 || regionSize < blockSize) throw new IllegalArgumentException();
+		this.blockSize = blockSize;
+		this.blocksPerRegion = regionSize / blockSize;
+		long regionBytes = blocksPerRegion * blockSize;
+
+		// The mappings stay valid once the channel is closed
+		try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+			fileSize = channel.size();
+			regions = new MappedByteBuffer[(int) ((fileSize + regionBytes - 1) / regionBytes)];
+			for (int i = 0; i < regions.length; i++) {
+				long position = i * regionBytes;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(regionBytes, fileSize - position));
+			}
+		}
+	}
+
+	/**
+	 * Gets a block as a slice of the mapping. A block shorter than getBlockSize()
+	 * (including an empty one) is the last block of the transfer.
+	 *
+	 * @param blockIndex Index of the block, starting at 1
+	 *
+	 * @return Buffer holding the block between its position and limit
+	 */
+	public ByteBuffer getBlock(long blockIndex) {
+		if (blockIndex < 1) throw new IllegalArgumentException();
+		long region = (blockIndex - 1) / blocksPerRegion;
+		if (region >= regions.length) return ByteBuffer.allocate(0);
+
+		ByteBuffer block = regions[(int) region].duplicate();
+		int position = (int) ((blockIndex - 1) % blocksPerRegion) * blockSize;
+		if (position >= block.limit()) return ByteBuffer.allocate(0);
+		block.position(position);
+		block.limit(Math.min(position + blockSize, block.limit()));
+		return block.slice();
+	}
+
+	/**
+	 * Gets a block as getBlock(blockIndex) does, but reuses view when it holds a block of
+	 * the same region, so that a sender keeping a view for each slot of its window only
+	 * gets a new buffer once per region rather than once per block. The block is between
+	 * the position and limit of the buffer, which is not a slice of it.
+	 *
+	 * @param blockIndex Index of the block, starting at 1
+	 * @param view Buffer returned by this method for block viewIndex, or null
+	 * @param viewIndex Index of the block held by view
+	 *
+	 * @return view or a new buffer, holding the block between its position and limit
+	 */
+	public ByteBuffer getBlock(long blockIndex, ByteBuffer view, long viewIndex) {
+		if (blockIndex < 1) throw new IllegalArgumentException();
+		long region = (blockIndex - 1) / blocksPerRegion;
+		if (region >= regions.length) return ByteBuffer.allocate(0);
+
+		if (view == null || viewIndex < 1 || (viewIndex - 1) / blocksPerRegion != region) view = regions[(int) region].duplicate();
+		int position = (int) ((blockIndex - 1) % blocksPerRegion) * blockSize;
+		if (position >= view.capacity()) return ByteBuffer.allocate(0);
+		view.limit(Math.min(position + blockSize, view.capacity()));
+		view.position(position);
+		return view;
+	}
+
+	public int readBlock(long blockIndex, byte[] buf, int offset) throws IOException {
+		ByteBuffer block = getBlock(blockIndex);
+		int n = block.remaining();
+		block.get(buf, offset, n);
+		return n;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return Size of the mapped file in bytes
+	 */
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public void close() {
+		// There is no way to unmap explicitly, so drop the mappings for the garbage collector
+		regions = new MappedByteBuffer[0];
+	}
+}
@@ -0,0 +1,241 @@
+package tftp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.BitSet;
+
+/**
+ * Client side of a multicast read (RFC 2090). The client joins the multicast group named
+ * in the OACK of the server and keeps every DATA block sent to the group, in whatever
+ * order the blocks arrive. While it is the master client, it ACKs the last block it has
+ * received without a gap, which asks the server for the block after it.
+ *
+ * The server makes a client master with an OACK sent to its own socket. That socket is
+ * checked whenever the group has been quiet for POLL_INTERVAL, which is the case while
+ * the server waits for the new master to answer.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class MulticastReceiver {
+	public static final int POLL_INTERVAL = 100;	// Time without a block after which the socket of the client is checked, in ms
+	public static final int IDLE_LIMIT = 30000;		// Time a client that is not master waits for a block before giving up, in ms
+
+	private DatagramSocket socket;
+	private InetAddress replyAddr;
+	private int TID;
+	private TransferOptions options;
+	private int resendLimit;
+	private InetAddress group;
+	private int groupPort;
+	private boolean master;
+	private BitSet received = new BitSet();	// Blocks written, by block number
+	private int contiguous;		// Last block received with every block before it
+	private int lastBlock;		// Number of the last block, or 0 until it is received
+
+	/**
+	 * Constructor of the MulticastReceiver class
+	 *
+	 * @param socket Socket of the client, which the server sends OACK and ERROR packets to
+	 * @param replyAddr Address of the server
+	 * @param TID Port of the server for the transfer
+	 * @param options Options acknowledged by the server
+	 * @param resendLimit Maximum number of times an ACK is sent again without an answer
+	 */
+	public MulticastReceiver(DatagramSocket socket, InetAddress replyAddr, int TID, TransferOptions options, int resendLimit) {
+		this.socket = socket;
+		this.replyAddr = replyAddr;
+		this.TID = TID;
+		this.options = options;
+		this.resendLimit = resendLimit;
+	}
+
+	/**
+	 * Applies the value of a multicast option acknowledged by the server, "address,port,mc".
+	 * The address and port may be left empty in an OACK that only changes the master.
+	 *
+	 * @param value Value of the multicast option
+	 *
+	 * @return true if the value is valid and names a multicast group
+	 */
+	public boolean applyOption(String value) {
+		String[] fields = value.split(",", -1);
+		if (fields.length != 3) return false;
+		try {
+			if (!fields[0].isEmpty()) group = InetAddress.getByName(fields[0]);
+			if (!fields[1].isEmpty()) groupPort = Integer.parseInt(fields[1]);
+		} catch (UnknownHostException | NumberFormatException e) {
+			return false;
+		}
+		if (!fields[2].equals("0") && !fields[2].equals("1")) return false;
+		master = fields[2].equals("1");
+		return group != null && group.isMulticastAddress() && TFTP.isValidPort(groupPort);
+	}
+
+	/**
+	 * @return true while the client is the master client
+	 */
+	public boolean isMaster() {
+		return master;
+	}
+
+	/**
+	 * Receives every block of the file from the group into sink and commits it.
+	 *
+	 * @param sink FileBlockSink the file is written to
+	 * @param option Value of the multicast option in the first OACK
+	 * @param fileName Name of the file, for messages
+	 *
+	 * @return true if the file was received and committed
+	 * @throws IOException if a socket failed or a block could not be written
+	 */
+	public boolean receive(FileBlockSink sink, String option, String fileName) throws IOException {
+		if (!applyOption(option)) {
+			// Creates a "not defined" error packet
+			DatagramPacket errorPacket = TFTP.formERRORPacket(
+					replyAddr,
+					TID,
+					TFTP.ERROR_CODE_NOT_DEFINED,
+					fileName + " could not be transferred because of the following error: Invalid multicast " + option + " (option negotiation failed)");
+
+			// Sends error packet
+			socket.send(errorPacket);
+
+			// Echo error message
+			Log.info("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_NOT_DEFINED + ": Option negotiation failed. Aborting transfer...\n");
+			return false;
+		}
+		Log.info("Joining multicast group " + group.getHostAddress() + ":" + groupPort + (master ? " as master client." : "."));
+
+		InetSocketAddress groupAddress = new InetSocketAddress(group, groupPort);
+		MulticastSocket groupSocket = new MulticastSocket(groupPort);
+		try {
+			groupSocket.joinGroup(groupAddress, null);
+			groupSocket.setSoTimeout(POLL_INTERVAL);
+			socket.setSoTimeout(1);
+			if (!receiveBlocks(groupSocket, sink)) return false;
+			groupSocket.leaveGroup(groupAddress, null);
+		} finally {
+			groupSocket.close();
+		}
+
+		// The master has ACKed the last block already, the others leave with it
+		if (!master) sendAck();
+		sink.commit();
+		return true;
+	}
+
+	/**
+	 * Receives blocks from the group until the file is complete.
+	 *
+	 * @param groupSocket Socket that has joined the group
+	 * @param sink FileBlockSink the file is written to
+	 *
+	 * @return true if every block was received
+	 * @throws IOException if a socket failed or a block could not be written
+	 */
+	private boolean receiveBlocks(MulticastSocket groupSocket, FileBlockSink sink) throws IOException {
+		int blockSize = options.getBlockSize();
+		int timeout = options.getTimeout() != 0 ? options.getTimeout() * 1000 : RttEstimator.INITIAL_TIMEOUT;
+		DatagramPacket dataPacket = TFTP.formPacket(blockSize);
+		long lastHeard = System.currentTimeMillis();
+		int resends = 0;
+		if (master) sendAck();
+
+		while (lastBlock == 0 || contiguous < lastBlock) {
+			dataPacket.setLength(dataPacket.getData().length);
+			try {
+				groupSocket.receive(dataPacket);
+			} catch (SocketTimeoutException e) {
+				// The group is quiet, so look for an OACK or an ERROR from the server
+				if (!pollServer()) return false;
+				long now = System.currentTimeMillis();
+				if (master && now - lastHeard >= timeout) {
+					if (++resends > resendLimit) {
+						Log.warn("No response from server after " + resendLimit + " attempts. Try again later.");
+						return false;
+					}
+					Log.debug("Server timed out. ACK resent.");
+					sendAck();
+					lastHeard = now;
+				} else if (!master && now - lastHeard >= IDLE_LIMIT) {
+					Log.warn("No block received from the multicast group for " + IDLE_LIMIT / 1000 + " seconds. Try again later.");
+					return false;
+				}
+				continue;
+			}
+
+			// Only DATA packets from the server are part of the transfer. They are sent from
+			// the TID of the server, but not always from the address the client knows it by.
+			if (dataPacket.getPort() != TID) continue;
+			if (TFTP.getOpCode(dataPacket) != TFTP.DATA_OP_CODE || dataPacket.getLength() < TFTP.OP_CODE_SIZE + TFTP.BLOCK_NUMBER_SIZE) continue;
+			int blockNumber = TFTP.getBlockNumber(dataPacket);
+			int length = dataPacket.getLength() - TFTP.OP_CODE_SIZE - TFTP.BLOCK_NUMBER_SIZE;
+			if (blockNumber < 1 || length > blockSize || (lastBlock != 0 && blockNumber > lastBlock)) continue;
+			Log.trace("DATA %d received from the group.", blockNumber);
+			lastHeard = System.currentTimeMillis();
+			resends = 0;
+
+			if (!received.get(blockNumber)) {
+				sink.writeAt((long) (blockNumber - 1) * blockSize, dataPacket.getData(), TFTP.OP_CODE_SIZE + TFTP.BLOCK_NUMBER_SIZE, length);
+				received.set(blockNumber);
+				while (received.get(contiguous + 1)) {
+					contiguous++;
+				}
+			}
+			if (length < blockSize) lastBlock = blockNumber;
+			if (master) sendAck();
+		}
+		return true;
+	}
+
+	/**
+	 * Handles the packets waiting on the socket of the client. An OACK can make the client
+	 * master, in which case it ACKs right away, and an ERROR ends the transfer.
+	 *
+	 * @return false if the server ended the transfer
+	 * @throws IOException if the socket failed
+	 */
+	private boolean pollServer() throws IOException {
+		String[] errorMessage = new String[1];
+		while (true) {
+			DatagramPacket packet = TFTP.formPacket();
+			try {
+				socket.receive(packet);
+			} catch (SocketTimeoutException e) {
+				return true;
+			}
+			TFTP.shrinkData(packet);
+			if (!packet.getAddress().equals(replyAddr) || packet.getPort() != TID) continue;
+
+			if (TFTP.verifyErrorPacket(packet, errorMessage)) {
+				Log.info("Received ERROR packet with ERROR code " + TFTP.getErrorCode(packet) + ": " + TFTP.getErrorMessage(packet) + ". Aborting transfer...\n");
+				return false;
+			}
+			if (TFTP.verifyOACKPacket(packet, errorMessage)) {
+				String value = TFTP.getOptions(packet).get(TFTP.OPTION_MULTICAST);
+				boolean wasMaster = master;
+				if (value == null || !applyOption(value)) continue;
+				if (master && !wasMaster) Log.info("Made master client.");
+				if (master) sendAck();
+			}
+		}
+	}
+
+	/**
+	 * ACKs the last block received without a gap, which is the last block of the file
+	 * once every block has been received.
+	 *
+	 * @throws IOException if the ACK could not be sent
+	 */
+	private void sendAck() throws IOException {
+		Log.trace("Sending ACK %d.", contiguous);
+		socket.send(TFTP.formACKPacket(replyAddr, TID, contiguous));
+	}
+}
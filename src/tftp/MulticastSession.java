@@ -0,0 +1,383 @@
+package tftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Server side of a multicast read (RFC 2090), which sends one file to every client that
+ * asked for it with the multicast option, sending each DATA packet once to a multicast
+ * group instead of once to each client.
+ *
+ * One client at a time is the master client. Only the master ACKs, each ACK naming the
+ * last block it has received without a gap, and the next block is sent to the group. The
+ * other clients keep every block they see. When the master has the whole file, the next
+ * client is made master with an OACK and ACKs the blocks it is missing, so a client that
+ * joined late catches up on the blocks sent before it joined. A client that ends up with
+ * the whole file before it is made master ACKs the last block and leaves.
+ *
+ * Only the ACK of the block last sent to the group, or the first ACK of a new master,
+ * is answered with a block. A repeated ACK for a block already answered is ignored and
+ * any resend is left to the timeout, so that a delayed ACK never causes every block
+ * after it to be sent twice (RFC 1123 4.2.3.1).
+ *
+ * A client that is not master never ACKs its OACK, so the OACK is not resent on a
+ * timeout. If it is lost, the client sends its request again, and the session answers
+ * that duplicate with the last OACK the client was sent (see DuplicateRequestListener).
+ *
+ * The session runs on its own thread with its own socket, which is the TID of the
+ * server for every client of the session, and ends once no client is left. Blocks are
+ * sent one at a time, as the windowsize option does not apply to multicast.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class MulticastSession implements Runnable, DuplicateRequestListener {
+	private String filePath;
+	private InetAddress group;
+	private int groupPort;
+	private DatagramSocket socket;
+	private BlockSource source;
+	private int blockSize;
+	private int timeout;		// Timeout in seconds negotiated by the first client, or 0 for the default
+	private int lastBlock;		// Number of the last block of the file
+	private int resendLimit;
+	private ServerMetrics metrics;
+	private ActiveRequests activeRequests;	// Holds the request of each client until it leaves
+	private Queue<Member> joined = new ConcurrentLinkedQueue<Member>();	// Clients waiting for their first OACK
+	private List<Member> members = new ArrayList<Member>();	// Only used by the session thread
+	private Map<String, Member> byRequestKey = new ConcurrentHashMap<String, Member>();	// Clients that joined and have not left
+	private Member master;
+	private boolean closed;
+
+	/**
+	 * Constructor of the MulticastSession class, which opens the socket of the session.
+	 *
+	 * @param filePath Path of the file sent
+	 * @param group Multicast group that DATA packets are sent to
+	 * @param groupPort Port of the group
+	 * @param source BlockSource of the file, closed when the session ends
+	 * @param options Options negotiated with the first client
+	 * @param resendLimit Maximum number of times a packet is sent again without an answer
+	 * @param metrics ServerMetrics that the clients are counted in
+	 * @param activeRequests ActiveRequests that the request of each client is removed from
+	 * when it leaves
+	 * @throws IOException if the socket could not be opened
+	 */
+	public MulticastSession(String filePath, InetAddress group, int groupPort, BlockSource source, TransferOptions options, int resendLimit, ServerMetrics metrics, ActiveRequests activeRequests) throws IOException {
+		this.filePath = filePath;
+		this.group = group;
+		this.groupPort = groupPort;
+		this.source = source;
+		this.blockSize = options.getBlockSize();
+		this.timeout = options.getTimeout();
+		this.lastBlock = (int) (new File(filePath).length() / blockSize) + 1;
+		this.resendLimit = resendLimit;
+		this.metrics = metrics;
+		this.activeRequests = activeRequests;
+		this.socket = new DatagramSocket();
+		socket.setSoTimeout(timeout != 0 ? timeout * 1000 : RttEstimator.INITIAL_TIMEOUT);
+	}
+
+	/**
+	 * @param fileLength Size of a file in bytes
+	 * @param blockSize Block size of the transfer
+	 *
+	 * @return true if the file can be sent in a session, which does not roll block
+	 * numbers over
+	 */
+	public static boolean fits(long fileLength, int blockSize) {
+		return fileLength / blockSize + 1 <= TFTP.MAX_BLOCK_NUMBER;
+	}
+
+	/**
+	 * Adds a client to the session, which is sent an OACK by the session thread.
+	 *
+	 * @param addr Address of the client
+	 * @param port Port of the client
+	 * @param options Options requested by the client
+	 * @param accepted Options accepted for the client, to acknowledge in its OACK
+	 * @param startTime Start time of the transfer, from ServerMetrics.transferStarted
+	 * @param requestKey Key of the request in activeRequests, removed when the client leaves
+	 *
+	 * @return true if the client joined, false if it has to be served on its own because
+	 * it negotiated another block size or the session has ended
+	 */
+	public synchronized boolean join(InetAddress addr, int port, TransferOptions options, Map<String, String> accepted, long startTime, String requestKey) {
+		if (closed || options.getBlockSize() != blockSize) return false;
+
+		// The session keeps the timeout of the first client, so it cannot accept another one
+		Map<String, String> oackOptions = new LinkedHashMap<String, String>(accepted);
+		oackOptions.remove(TFTP.OPTION_WINDOWSIZE);
+		if (options.getTimeout() != timeout) oackOptions.remove(TFTP.OPTION_TIMEOUT);
+		Member m = new Member(addr, port, oackOptions, startTime, requestKey);
+		byRequestKey.put(requestKey, m);
+		activeRequests.setListener(requestKey, this);
+		joined.add(m);
+		return true;
+	}
+
+	/**
+	 * Sends a client that sent its request again the last OACK it was sent, which it may
+	 * not have received. A client that has not been sent an OACK yet gets one from the
+	 * session thread.
+	 *
+	 * @param requestKey Key of the request of the client
+	 * @throws IOException if the OACK could not be sent
+	 */
+	public void duplicateRequest(String requestKey) throws IOException {
+		Member m = byRequestKey.get(requestKey);
+		DatagramPacket oack = m != null ? m.oack : null;
+		if (oack == null) return;
+		Log.debug("Client " + m + " sent its request again. Resending its OACK.");
+		socket.send(oack);
+		metrics.retransmitted();
+	}
+
+	/**
+	 * @return true once the session has ended and no longer takes clients
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return Port of the group of the session
+	 */
+	public int getGroupPort() {
+		return groupPort;
+	}
+
+	/**
+	 * Serves the clients until none is left.
+	 */
+	public void run() {
+		Log.info("Multicast session for \"" + filePath + "\" on " + group.getHostAddress() + ":" + groupPort + ".\n");
+		try {
+			serve();
+		} catch (IOException e) {
+			Log.error(e.getMessage());
+		} finally {
+			synchronized (this) {
+				closed = true;
+			}
+			for (Member m : members) {
+				leave(m, false);
+			}
+			for (Member m : joined) {
+				leave(m, false);
+			}
+			socket.close();
+			source.close();
+			Log.info("Multicast session for \"" + filePath + "\" ended.\n");
+		}
+	}
+
+	/**
+	 * Sends blocks to the group as the master client asks for them, and hands the role
+	 * of master to the next client each time one leaves.
+	 *
+	 * @throws IOException if the socket failed or a block could not be read
+	 */
+	private void serve() throws IOException {
+		DatagramPacket lastPacket = null;	// OACK to the master or DATA packet to the group, to send before waiting
+		DatagramPacket dataPacket = null;
+		DatagramPacket receivePacket = TFTP.formPacket();
+		String[] errorMessage = new String[1];
+		int timeouts = 0;
+		boolean masterAcked = false;	// Whether the master has answered the OACK that made it master
+		int sentBlock = 0;		// Number of the block last sent to the group for the master
+
+		while (true) {
+			// Welcome the new clients, the first one as master if there is none
+			Member m;
+			while ((m = joined.poll()) != null) {
+				members.add(m);
+				if (master == null) {
+					master = m;
+					lastPacket = formOACK(m, true);
+					timeouts = 0;
+					masterAcked = false;
+					sentBlock = 0;
+				} else {
+					socket.send(formOACK(m, false));
+				}
+			}
+
+			// Hand the role of master to the next client, or end once none is left
+			if (master == null) {
+				synchronized (this) {
+					if (members.isEmpty() && joined.isEmpty()) {
+						closed = true;
+						return;
+					}
+				}
+				if (members.isEmpty()) continue;
+				master = members.get(0);
+				lastPacket = formOACK(master, true);
+				timeouts = 0;
+				masterAcked = false;
+				sentBlock = 0;
+			}
+
+			if (lastPacket != null) {
+				socket.send(lastPacket);
+				lastPacket = null;
+			}
+
+			// Wait for an ACK from the master
+			receivePacket.setLength(receivePacket.getData().length);
+			try {
+				socket.receive(receivePacket);
+			} catch (SocketTimeoutException e) {
+				metrics.timedOut();
+				if (++timeouts > resendLimit) {
+					Log.warn("No response from the master client after " + resendLimit + " attempts. Dropping it.");
+					members.remove(master);
+					leave(master, false);
+					master = null;
+					continue;
+				}
+				Log.debug("Master client timed out. Resending.");
+				if (masterAcked) {
+					lastPacket = dataPacket;
+					metrics.retransmitted();
+				} else {
+					lastPacket = formOACK(master, true);
+				}
+				continue;
+			}
+			Member sender = find(receivePacket.getAddress(), receivePacket.getPort());
+
+			// A packet from outside the session
+			if (sender == null) {
+				// Creates an "unknown TID" error packet
+				DatagramPacket errorPacket = TFTP.formERRORPacket(
+						receivePacket.getAddress(),
+						receivePacket.getPort(),
+						TFTP.ERROR_CODE_UNKNOWN_TID,
+						"The address and port of the packet does not match the TID of the ongoing transfer.");
+
+				// Sends error packet
+				socket.send(errorPacket);
+				metrics.errorSent(TFTP.ERROR_CODE_UNKNOWN_TID);
+				continue;
+			}
+
+			// A client giving up leaves the session
+			if (TFTP.getOpCode(receivePacket) == TFTP.ERROR_OP_CODE) {
+				Log.info("Client " + sender + " left the multicast session with ERROR code " + TFTP.getErrorCode(receivePacket) + ".\n");
+				members.remove(sender);
+				leave(sender, false);
+				if (sender == master) master = null;
+				continue;
+			}
+			if (!TFTP.verifyAckPacket(receivePacket, lastBlock, errorMessage)) continue;
+			int blockNumber = TFTP.getBlockNumber(receivePacket);
+
+			// A client with the whole file leaves, whether or not it is the master
+			if (blockNumber == lastBlock) {
+				members.remove(sender);
+				leave(sender, true);
+				if (sender == master) master = null;
+				continue;
+			}
+			if (sender != master) continue;
+
+			// Ignore a duplicate ACK, which the block sent for it has already answered
+			if (masterAcked && blockNumber != sentBlock) {
+				Log.trace("Ignoring duplicate ACK %d from the master client.", blockNumber);
+				continue;
+			}
+
+			// Send the block after the last one the master has
+			Log.trace("ACK %d received from the master client.", blockNumber);
+			timeouts = 0;
+			masterAcked = true;
+			sentBlock = blockNumber + 1;
+			if (dataPacket == null) {
+				dataPacket = TFTP.formDATAPacket(group, groupPort, source, blockNumber + 1);
+			} else {
+				TFTP.fillDATAPacket(dataPacket, source, blockNumber + 1);
+			}
+			metrics.addBytesSent(dataPacket.getLength() - TFTP.OP_CODE_SIZE - TFTP.BLOCK_NUMBER_SIZE);
+			Log.trace("Sending DATA block number %d to the group.", blockNumber + 1);
+			lastPacket = dataPacket;
+		}
+	}
+
+	/**
+	 * @param addr Address of a packet
+	 * @param port Port of a packet
+	 *
+	 * @return Client of the session at that address and port, or null
+	 */
+	private Member find(InetAddress addr, int port) {
+		for (Member m : members) {
+			if (m.port == port && m.addr.equals(addr)) return m;
+		}
+		return null;
+	}
+
+	/**
+	 * Counts a client leaving the session as the end of its transfer.
+	 *
+	 * @param m Client leaving
+	 * @param complete Whether it has the whole file
+	 */
+	private void leave(Member m, boolean complete) {
+		if (complete) Log.info("Client " + m + " has the whole file.\n");
+		byRequestKey.remove(m.requestKey);
+		activeRequests.remove(m.requestKey);
+		metrics.transferFinished(m.startTime, complete);
+	}
+
+	/**
+	 * @param m Client of the session
+	 * @param isMaster Whether the client is made master
+	 *
+	 * @return OACK of the multicast option for the client, which is kept as the last OACK
+	 * it was sent
+	 */
+	private DatagramPacket formOACK(Member m, boolean isMaster) {
+		Map<String, String> options = new LinkedHashMap<String, String>(m.options);
+		options.put(TFTP.OPTION_MULTICAST, group.getHostAddress() + "," + groupPort + "," + (isMaster ? 1 : 0));
+		Log.trace("Sending OACK to %s.", m);
+		m.oack = TFTP.formOACKPacket(m.addr, m.port, options);
+		return m.oack;
+	}
+
+	/**
+	 * A client of the session.
+	 */
+	private static class Member {
+		private InetAddress addr;
+		private int port;
+		private Map<String, String> options;	// Options acknowledged in each OACK, next to multicast
+		private long startTime;
+		private String requestKey;
+		private volatile DatagramPacket oack;	// Last OACK sent to the client, or null before the first
+
+		public Member(InetAddress addr, int port, Map<String, String> options, long startTime, String requestKey) {
+			this.addr = addr;
+			this.port = port;
+			this.options = options;
+			this.startTime = startTime;
+			this.requestKey = requestKey;
+		}
+
+		public String toString() {
+			return addr.getHostAddress() + ":" + port;
+		}
+	}
+}
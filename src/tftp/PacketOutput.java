@@ -0,0 +1,21 @@
+package tftp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+
+/**
+ * Destination for the packets of a transfer. This lets the same transfer logic send
+ * through a blocking DatagramSocket or a non-blocking DatagramChannel.
+ * 
+ * @author Team 4
+ * @version Iteration 5
+ */
+public interface PacketOutput {
+	/**
+	 * Sends a packet to the address and port set on it.
+	 * 
+	 * @param packet Packet to send
+	 * @throws IOException if the packet could not be sent
+	 */
+	public void send(DatagramPacket packet) throws IOException;
+}
@@ -0,0 +1,144 @@
+package tftp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BlockSource that reads ahead of the transfer on a thread of its own, so that the time
+ * taken to read a block from disk or from a stream is spent while the sender waits for
+ * ACKs rather than before each block is sent.
+ *
+ * The blocks are read in order into a fixed number of buffers, which are handed back to
+ * the reader once the sender has taken their block, so memory stays at depth blocks
+ * however long the file is. The sender reads each block once and in order, keeping the
+ * blocks of its window for retransmission. A block asked for out of order is read from
+ * the wrapped source directly.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class PrefetchingBlockSource implements BlockSource {
+	public static final int DEFAULT_DEPTH = 16;	// Blocks read ahead when the window is small
+	private static final int POLL_INTERVAL = 100;	// Time the reader waits for a free buffer before checking for close, in ms
+
+	private BlockSource source;
+	private int blockSize;
+	private BlockingQueue<Block> free;		// Buffers waiting to be filled by the reader
+	private BlockingQueue<Block> ready;		// Blocks read, in order, waiting for the sender
+	private Thread reader;
+	private volatile boolean closed;
+	private long nextIndex = 1;		// Index of the next block expected from the reader
+	private boolean ended;			// Set once the last block has been taken
+
+	/**
+	 * Starts reading source ahead of the transfer.
+	 *
+	 * @param source BlockSource to read, closed by close
+	 * @param depth Number of blocks read ahead
+	 */
+	public PrefetchingBlockSource(BlockSource source, int depth) {
+		if (source == null || depth < 1) throw new IllegalArgumentException();
+		this.source = source;
+		this.blockSize = source.getBlockSize();
+		this.free = new ArrayBlockingQueue<Block>(depth);
+		this.ready = new ArrayBlockingQueue<Block>(depth);
+		for (int i = 0; i < depth; i++) {
+			free.add(new Block(new byte[blockSize]));
+		}
+		reader = new Thread(new Runnable() {
+			public void run() {
+				prefetch();
+			}
+		}, "Prefetch");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * @param windowSize Window size of the transfer
+	 *
+	 * @return Number of blocks to read ahead for a window of windowSize blocks: the next
+	 * window, as well as the one in flight
+	 */
+	public static int depthFor(int windowSize) {
+		return Math.max(DEFAULT_DEPTH, 2 * windowSize);
+	}
+
+	public int readBlock(long blockIndex, byte[] buf, int offset) throws IOException {
+		if (ended || blockIndex != nextIndex) return source.readBlock(blockIndex, buf, offset);
+
+		Block block;
+		try {
+			block = ready.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if (block.error != null) {
+			ended = true;
+			throw block.error;
+		}
+		int length = block.length;
+		System.arraycopy(block.data, 0, buf, offset, length);
+		free.add(block);
+		nextIndex++;
+		if (length < blockSize) ended = true;
+		return length;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Stops the reader and closes the wrapped source.
+	 */
+	public void close() {
+		closed = true;
+		source.close();
+	}
+
+	/**
+	 * Reads the blocks in order into free buffers until the last block, a read fails or
+	 * the source is closed.
+	 */
+	private void prefetch() {
+		long index = 1;
+		try {
+			while (!closed) {
+				Block block = free.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (block == null) continue;
+				try {
+					block.length = source.readBlock(index, block.data, 0);
+				} catch (IOException e) {
+					block.error = e;
+				} catch (RuntimeException e) {
+					block.error = new IOException(e);
+				}
+
+				// There is always room, as there are no more blocks than buffers
+				ready.add(block);
+				if (block.error != null || block.length < blockSize) return;
+				index++;
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		}
+	}
+
+	/**
+	 * A buffer of the reader and the outcome of the last read into it.
+	 */
+	private static class Block {
+		private byte[] data;
+		private int length;
+		private IOException error;
+
+		public Block(byte[] data) {
+			this.data = data;
+		}
+	}
+}
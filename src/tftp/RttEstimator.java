@@ -0,0 +1,98 @@
+package tftp;
+
+/**
+ * Estimates the retransmission timeout of a transfer from the round trip times measured
+ * by its sender, following RFC 6298: a smoothed RTT and RTT variance give the timeout,
+ * which is doubled on each timeout until the next measurement.
+ *
+ * The sender only measures blocks that were sent once (Karn's rule), since the ACK of a
+ * resent block cannot be matched to the transmission it answers. A timeout negotiated with
+ * the timeout option (RFC 2349) is used as is, without measurement or backoff.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class RttEstimator {
+	public static final int INITIAL_TIMEOUT = 2000;	// Timeout before the first measurement: 2 seconds (2000ms)
+	public static final int MIN_TIMEOUT = 20;		// Lower bound, which absorbs scheduling delays on a fast link
+	public static final int MAX_TIMEOUT = 16000;	// Upper bound of the backoff
+	private static final long NANOS_PER_MILLI = 1000000;
+
+	private boolean fixed;
+	private int initialTimeout;
+	private int timeout;
+	private long smoothedRtt = -1;	// In nanoseconds, -1 until the first measurement
+	private long rttVariance;		// In nanoseconds
+
+	/**
+	 * Constructor of the RttEstimator class for a timeout measured from the RTT.
+	 */
+	public RttEstimator() {
+		this.initialTimeout = INITIAL_TIMEOUT;
+		this.timeout = INITIAL_TIMEOUT;
+	}
+
+	/**
+	 * Creates an estimator that always gives the same timeout.
+	 *
+	 * @param timeout Timeout in milliseconds
+	 *
+	 * @return RttEstimator with a fixed timeout
+	 */
+	public static RttEstimator fixed(int timeout) {
+		if (timeout <= 0) throw new IllegalArgumentException();
+		RttEstimator estimator = new RttEstimator();
+		estimator.fixed = true;
+		estimator.initialTimeout = timeout;
+		estimator.timeout = timeout;
+		return estimator;
+	}
+
+	/**
+	 * Updates the timeout with a round trip time measured for a block that was sent once.
+	 *
+	 * @param rtt Round trip time in nanoseconds
+	 */
+	public void addSample(long rtt) {
+		if (fixed) return;
+		if (rtt < 0) throw new IllegalArgumentException();
+		if (smoothedRtt < 0) {
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2;
+		} else {
+			rttVariance += (Math.abs(smoothedRtt - rtt) - rttVariance) / 4;
+			smoothedRtt += (rtt - smoothedRtt) / 8;
+		}
+		long rto = (smoothedRtt + 4 * rttVariance + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI;
+		timeout = (int) Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, rto));
+	}
+
+	/**
+	 * Doubles the timeout after a timeout, up to MAX_TIMEOUT.
+	 */
+	public void backoff() {
+		if (fixed) return;
+		timeout = Math.min(MAX_TIMEOUT, timeout * 2);
+	}
+
+	/**
+	 * @return Current retransmission timeout in milliseconds
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @return Timeout used before the first measurement, in milliseconds
+	 */
+	public int getInitialTimeout() {
+		return initialTimeout;
+	}
+
+	/**
+	 * @return Smoothed round trip time in nanoseconds, or -1 before the first measurement
+	 */
+	public long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+}
@@ -3,6 +3,8 @@ package tftp;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Implementation of the TFTP file transfer program on server side.
@@ -12,12 +14,27 @@ import java.util.*;
  */
 public class Server implements Exitable, Runnable {
 	private static int RECEIVE_PORT = 69;
-	private boolean verbose = true;
+	private int port = RECEIVE_PORT;	//Port to listen for requests on, 0 for any free port
 	private boolean running = true;
 	private String directory;
 	private static int TIMEOUT = 2000; 	//Maximum time to wait for response before timeout and re-send packet: 2 seconds (2000ms)
 	private static int RESEND_LIMIT = 3; //Maximum number of times to try re-send packet without response: 3
 	private String[] args;
+	private int eventLoops;	//Number of event loop threads, or 0 to start a thread per transfer
+	private EventLoopServer eventLoopServer;
+	private int listenerCount = 1;	//Number of listener threads sharing the request port with SO_REUSEPORT
+	private Listener[] listeners;
+	private String threadMode = TransferExecutors.MODE_PLATFORM;	//Kind of thread each ClientHandler runs on
+	private int maxTransfers = 256;		//Maximum number of transfers in progress at once
+	private int maxQueuedTransfers = 256;	//Maximum number of requests waiting for a transfer to finish
+	private long cacheSize = 64L * 1024 * 1024;	//Maximum bytes of file blocks cached for read requests, or 0 for no cache
+	private BlockCache blockCache;
+	private ServerMetrics metrics = new ServerMetrics();	//Counters of the transfers, exposed through JMX
+	private ActiveRequests activeRequests = new ActiveRequests();	//Requests being served, to drop duplicates
+	private int socketPoolSize = 32;	//Number of idle transfer sockets kept bound, or 0 to open a socket per transfer
+	private SocketPool socketPool;
+	private InetAddress multicastGroup;	//Group that multicast reads are sent to (RFC 2090), or null to refuse the multicast option
+	private Map<String, MulticastSession> multicastSessions = new HashMap<String, MulticastSession>();	//Sessions by file path
 
 	/**
 	 * Constructor of the Server class
@@ -25,29 +42,79 @@ public class Server implements Exitable, Runnable {
 	 * @param args Command line arguments passed in from main
 	 */
 	public Server(String[] args) {
-		// Default states
-		verbose = true;
-
 		// Change states based on args
-		/*this.args = args;
-		if (this.args.length >= 1) {
-			for (String arg: args) {
-				switch(arg) {
+		this.args = args;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch(args[i]) {
 				case "-v":
-					verbose = true;
+					// Log every packet sent and received
+					Log.setLevel(Log.Level.TRACE);
 					System.out.println("Verbose mode is on.");
 					break;
+				case "-q":
+					// Only log errors
+					Log.setLevel(Log.Level.ERROR);
+					break;
+				case "-port":
+					// Listen somewhere other than the well known port, 0 for any free port
+					port = Integer.parseInt(args[++i]);
+					if (port != 0 && !TFTP.isValidPort(port)) throw new IllegalArgumentException();
+					break;
+				case "-eventloop":
+					// Serve transfers on event loop threads instead of a thread per transfer
+					eventLoops = Integer.parseInt(args[++i]);
+					if (eventLoops < 1) throw new IllegalArgumentException();
+					break;
+				case "-listeners":
+					// Accept requests on that many threads, each with its own socket and handlers
+					listenerCount = Integer.parseInt(args[++i]);
+					if (listenerCount < 1) throw new IllegalArgumentException();
+					break;
+				case "-threads":
+					// Run each ClientHandler on a platform or a virtual thread
+					threadMode = args[++i];
+					if (!TransferExecutors.isValidMode(threadMode)) throw new IllegalArgumentException();
+					break;
+				case "-maxtransfers":
+					// Requests beyond this limit wait in the queue
+					maxTransfers = Integer.parseInt(args[++i]);
+					if (maxTransfers < 1) throw new IllegalArgumentException();
+					break;
+				case "-queue":
+					// Requests beyond the limit and the queue are answered with "server busy"
+					maxQueuedTransfers = Integer.parseInt(args[++i]);
+					if (maxQueuedTransfers < 0) throw new IllegalArgumentException();
+					break;
+				case "-socketpool":
+					// Number of idle transfer sockets kept bound, 0 to open a socket per transfer
+					socketPoolSize = Integer.parseInt(args[++i]);
+					if (socketPoolSize < 0) throw new IllegalArgumentException();
+					break;
+				case "-multicast":
+					// Send files read with the multicast option to this group
+					multicastGroup = InetAddress.getByName(args[++i]);
+					if (!multicastGroup.isMulticastAddress()) throw new IllegalArgumentException();
+					break;
+				case "-cache":
+					// Size of the block cache in MB, 0 to read every block from disk
+					cacheSize = Long.parseLong(args[++i]) * 1024 * 1024;
+					if (cacheSize < 0) throw new IllegalArgumentException();
+					break;
 				default:
-					System.out.println("Invalid command line arugment received. Exiting server...");
-					System.exit(1);
+					throw new IllegalArgumentException();
 				}
 			}
-		}*/
+		} catch (RuntimeException | UnknownHostException e) {
+			System.out.println("Invalid command line arugment received. Exiting server...");
+			System.exit(1);
+		}
 	}
 
 	/**
 	 * While server is in running state, listen on well known port for Client requests. If one is received,
 	 * start a new ClientHandler thread with the request passed on, and go back to listening for requests.
+	 * If event loops were requested, the requests are served by an EventLoopServer instead.
 	 */
 	public void run() {
 		Scanner in = new Scanner(System.in);
@@ -69,10 +136,73 @@ public class Server implements Exitable, Runnable {
 				badDirectory = true;
 			}
 		} while (badDirectory);
-		if (verbose) System.out.println("The directory you entered is: " + directory + "\n");
+		Log.info("The directory you entered is: " + directory + "\n");
 
 		(new Thread(new Repl(this, in))).start();
-		(new Thread(new Listener())).start();
+		start(directory);
+	}
+
+	/**
+	 * Starts serving requests for the files of directory without prompting, and returns
+	 * once the server is listening. Used by run, and by benchmarks that run the server in
+	 * the same process as their clients.
+	 * 
+	 * @param directory Directory of the server files, ending with a separator
+	 */
+	public void start(String directory) {
+		this.directory = directory;
+		if (cacheSize > 0) blockCache = new BlockCache(cacheSize);
+		metrics.register();
+		if (eventLoops > 0) {
+			eventLoopServer = new EventLoopServer(directory, port, eventLoops, blockCache, metrics);
+			eventLoopServer.run();
+		} else {
+			if (socketPoolSize > 0) {
+				try {
+					socketPool = new SocketPool(socketPoolSize);
+				} catch (IOException e) {
+					Log.warn("Transfer sockets could not be pooled: " + e.getMessage());
+				}
+			}
+			startListeners();
+		}
+	}
+
+	/**
+	 * Starts the listeners. With more than one, every listener binds its own socket to the
+	 * request port with SO_REUSEPORT, so that the kernel spreads the requests of different
+	 * clients over them and requests are accepted on as many cores. Each listener has its
+	 * own handlers and its share of the transfer and queue limits.
+	 */
+	private void startListeners() {
+		if (listenerCount > 1 && !TFTP.isReusePortAvailable()) {
+			System.out.println("SO_REUSEPORT is not available on this system. Using one listener.");
+			listenerCount = 1;
+		}
+		listeners = new Listener[listenerCount];
+		int bindPort = port;
+		for (int i = 0; i < listenerCount; i++) {
+			listeners[i] = new Listener(i, bindPort);
+			// The other listeners join the port the first one was given
+			bindPort = listeners[i].receiveSocket.getLocalPort();
+			(new Thread(listeners[i], "Listener-" + i)).start();
+		}
+		if (listenerCount > 1) Log.info("Accepting requests on " + listenerCount + " listener threads.");
+	}
+
+	/**
+	 * @return Port the server listens for requests on, once started
+	 */
+	public int getPort() {
+		if (eventLoopServer != null) return eventLoopServer.getPort();
+		return listeners[0].receiveSocket.getLocalPort();
+	}
+
+	/**
+	 * @return Counters of the transfers served
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
 	}
 
 	/**
@@ -86,34 +216,66 @@ public class Server implements Exitable, Runnable {
 		private InetAddress replyAddr;
 		private int TID;
 		private DatagramPacket initialPacket;
+		private String requestKey;	// Key of the request in activeRequests
 		private DatagramSocket socket;
+		private TransferOptions options;
+		private Map<String, String> acceptedOptions;
+		private DatagramPacket oackPacket;
+		private boolean complete;	// Set once the file has been sent or written
+		private boolean handedOff;	// Set once the client has joined a multicast session, which counts the transfer
+		private long startTime;
 		
 		/**
 		 * Constructor of the class ClientHandler, initialize relevant
-		 * fields given the received packet and open up a new socket for
-		 * the transfer process.
+		 * fields given the received packet. The socket for the transfer
+		 * process is only taken once the handler runs, so requests waiting
+		 * in the queue do not hold a socket.
 		 * 
 		 * @param packet Request packet received from a Client
+		 * @param requestKey Key of the request in activeRequests
 		 */
-		public ClientHandler(DatagramPacket packet) {
+		public ClientHandler(DatagramPacket packet, String requestKey) {
 			this.replyAddr = packet.getAddress();
 			this.TID = packet.getPort();
 			this.initialPacket = packet;
+			this.requestKey = requestKey;
+		}
+
+		/**
+		 * Serve the request, counting it in the metrics of the server.
+		 */
+		public void run() {
+			startTime = metrics.transferStarted();
+			try {
+				serve();
+			} finally {
+				closeSocket();
+				if (!handedOff) {
+					activeRequests.remove(requestKey);
+					metrics.transferFinished(startTime, complete);
+				}
+			}
+		}
+
+		/**
+		 * Take a socket for the transfer, parse the packet received and
+		 * invoke either read or write handling method based on the OP code of
+		 * the packet.
+		 */
+		private void serve() {
 			try {
-				this.socket = new DatagramSocket();
+				if (socketPool != null) {
+					this.socket = socketPool.acquire();
+				} else {
+					this.socket = new DatagramSocket();
+				}
 
 				socket.setSoTimeout(TIMEOUT);	
 			} catch(Exception e) {
 				e.printStackTrace();
-				System.exit(1);
+				return;
 			}
-		}
 
-		/**
-		 * Parse the packet received and invoke either read or write handling
-		 * method based on the OP code of the packet.
-		 */
-		public void run() {
 			String[] errorMessage = new String[1];
 			// Check that packet is a valid RRQ/WRQ 
 			if (!TFTP.verifyRequestPacket(initialPacket, errorMessage))
@@ -126,19 +288,22 @@ public class Server implements Exitable, Runnable {
 						
 				try {
 					socket.send(errorPacket);
+					metrics.errorSent(TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION);
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 				
-				if (verbose) {
-					if (verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION + ": Request packet malformed. Aborting transfer...\n");
-				}
+				Log.info("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION + ": Request packet malformed. Aborting transfer...\n");
 				
-				socket.close();
+				closeSocket();
 				return;
 			}
 			Request r = TFTP.parseRQ(initialPacket);
-			if (verbose) System.out.println(r.getType() + " request for file \"" + directory + r.getFileName() + "\".\n");
+			Log.info(r.getType() + " request for file \"" + directory + r.getFileName() + "\".\n");
+
+			// Negotiate options. The OACK is formed once the file has been checked.
+			options = new TransferOptions();
+			acceptedOptions = options.accept(r.getOptions());
 
 			switch (r.getType()) {
 				case READ:
@@ -150,6 +315,55 @@ public class Server implements Exitable, Runnable {
 				default: break;
 
 			}
+
+			// Gives back the socket of the transfer
+			closeSocket();
+		}
+
+		/**
+		 * Gives the socket of the transfer back to the pool, or closes it if there is no
+		 * pool. Does nothing if it was already given back.
+		 */
+		private void closeSocket() {
+			if (socket == null) return;
+			if (socketPool != null) {
+				socketPool.release(socket);
+			} else {
+				socket.close();
+			}
+			socket = null;
+		}
+
+		/**
+		 * Forms the OACK from the options accepted, if any were.
+		 */
+		private void formOACK() {
+			if (!acceptedOptions.isEmpty()) {
+				oackPacket = TFTP.formOACKPacket(replyAddr, TID, acceptedOptions);
+				Log.info("Accepted options " + acceptedOptions + ".\n");
+			}
+		}
+
+		/**
+		 * Refuses a write request whose file does not fit on the disk.
+		 * 
+		 * @param fileName Name of the file of the request
+		 * @throws IOException if the ERROR packet could not be sent
+		 */
+		private void sendDiskFullError(String fileName) throws IOException {
+			// Creates a "disk full" error packet
+			DatagramPacket errorPacket = TFTP.formERRORPacket(
+					replyAddr,
+					TID,
+					TFTP.ERROR_CODE_DISK_FULL,
+					"\"" + fileName + "\" could not be transferred because disk is full.");
+
+			// Sends error packet
+			socket.send(errorPacket);
+			metrics.errorSent(TFTP.ERROR_CODE_DISK_FULL);
+
+			// Echo error message
+			Log.info("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_DISK_FULL + ": Disk full. Aborting transfer...\n");
 		}
 
 		/**
@@ -173,14 +387,15 @@ public class Server implements Exitable, Runnable {
 				// Sends error packet
 				try {
 					socket.send(errorPacket);
+					metrics.errorSent(TFTP.ERROR_CODE_FILE_NOT_FOUND);
 				} catch (Exception e) {
 				}
 
 				// Echo error message
-				if (verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_FILE_NOT_FOUND + ": File does not exist. Aborting transfer...\n");
+				Log.info("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_FILE_NOT_FOUND + ": File does not exist. Aborting transfer...\n");
 
 				// Closes socket and aborts thread
-				socket.close();
+				closeSocket();
 				return;
 			}
 
@@ -197,169 +412,133 @@ public class Server implements Exitable, Runnable {
 				// Sends error packet
 				try {
 					socket.send(errorPacket);
+					metrics.errorSent(TFTP.ERROR_CODE_ACCESS_VIOLATION);
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 
 				// Echo error message
-				if (verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_ACCESS_VIOLATION + ": File access violation. Aborting transfer...\n");
+				Log.info("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_ACCESS_VIOLATION + ": File access violation. Aborting transfer...\n");
 
 				// Closes socket and aborts thread
-				socket.close();
+				closeSocket();
 				return;
 			}
 			
-			if (verbose) System.out.println("Forming packet queue from file...");
-			Queue<DatagramPacket> dataPacketQueue = null;
+			// Tell the client the size of the file if it asked for it (RFC 2349)
+			if (options.getTransferSize() >= 0) options.acceptTransferSize(acceptedOptions, new File(filePath).length());
+
+			// Resume from the offset the client asked for, unless the file is no longer than
+			// that, as the client's partial file cannot then be a part of it
+			long offset = options.getOffset();
+			if (offset > 0 && offset >= new File(filePath).length()) offset = -1;
+			options.setOffset(offset);
+			if (offset >= 0) options.acceptOffset(acceptedOptions, offset);
+
+			// Send the file to the group once for every client reading it with the multicast option
+			if (multicastGroup != null && offset <= 0 && r.getOptions().containsKey(TFTP.OPTION_MULTICAST) && joinMulticastSession(filePath)) {
+				handedOff = true;
+				return;
+			}
+			formOACK();
+
+			// Blocks are read from the file as they are needed rather than all up front, and
+			// from the block cache when another transfer has already read them
+			BlockSource source;
 			try {
-				dataPacketQueue = TFTP.formDATAPackets(replyAddr, TID, filePath);
-			} catch (FileNotFoundException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
+				if (offset > 0) {
+					source = new FileBlockSource(filePath, options.getBlockSize(), offset);
+				} else if (blockCache != null) {
+					source = new CachingBlockSource(filePath, options.getBlockSize(), blockCache);
+				} else {
+					source = new FileBlockSource(filePath, options.getBlockSize());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				closeSocket();
+				return;
 			}
-			if (verbose) System.out.println("Packets formed. Ready to send " + dataPacketQueue.size() + " blocks.");
 
-			boolean transferComplete = false;
-			boolean packetInOrder = true;
-			int currentBlockNumber = 1;
-			
-			DatagramPacket nextPacket = dataPacketQueue.remove();
-			
-			// Send each packet and wait for an ACK until queue is empty
-			while (!transferComplete) {
-				DatagramPacket currentPacket = nextPacket;
-				
-				//Only update current block number and send data block if the previous packet was the correct sequential packet (not duplicated/delayed)
-				if(packetInOrder){
-					// Send a packet
-					currentBlockNumber = TFTP.getBlockNumber(currentPacket);
+			try {
+				sendBlocks(source, fileName);
+			} finally {
+				source.close();
+			}
+		}
+
+		/**
+		 * Adds the client to the multicast session of the file, starting one if there is
+		 * none. The session then serves the client and counts its transfer.
+		 *
+		 * @param filePath Path of the file being read
+		 *
+		 * @return true if the client joined a session, false if it has to be served on its
+		 * own
+		 */
+		private boolean joinMulticastSession(String filePath) {
+			if (!MulticastSession.fits(new File(filePath).length(), options.getBlockSize())) return false;
+			synchronized (multicastSessions) {
+				MulticastSession session = multicastSessions.get(filePath);
+				if (session != null && !session.isClosed()) {
+					if (!session.join(replyAddr, TID, options, acceptedOptions, startTime, requestKey)) return false;
+					Log.info("Joined the multicast session of \"" + filePath + "\".\n");
+					return true;
 				}
 
-				// Send a packet
-				try {
-					if (verbose) System.out.println("Sending DATA block number " + currentBlockNumber + ".");
-					//if (verbose) System.out.println("Block size is " + TFTP.getData(currentPacket).length + ".");
-					socket.send(currentPacket);
-				} catch(Exception e) {}
+				// Each session has a port of its own on the group
+				Set<Integer> portsInUse = new HashSet<Integer>();
+				for (Iterator<MulticastSession> i = multicastSessions.values().iterator(); i.hasNext(); ) {
+					MulticastSession other = i.next();
+					if (other.isClosed()) {
+						i.remove();
+					} else {
+						portsInUse.add(other.getGroupPort());
+					}
+				}
+				int groupPort = TFTP.MULTICAST_PORT;
+				while (portsInUse.contains(groupPort)) {
+					groupPort++;
+				}
 
-				// Wait for ACK
+				BlockSource source = null;
 				try {
-					// Flag set to true if an unexpected packet is received
-					boolean unexpectedPacket;
-					
-					DatagramPacket receivePacket;
-					if (verbose) System.out.println("Waiting for ACK from client...");
-
-						// Continue to receive packets until a packet from the correct client is received
-						do {
-							unexpectedPacket = false;
-							receivePacket = TFTP.formPacket();
-
-							// Wait for acknowledgement packet from client
-							for(int i = 0; i<RESEND_LIMIT+1; i++) {
-								try {
-										socket.receive(receivePacket);
-										break;		//If packet successfully received, leave loop
-								} catch(SocketTimeoutException e) {
-									//if re-send attempt limit reached, 'give up' and cancel transfer
-									if(i == RESEND_LIMIT) {
-										System.out.println("No response from client after " + RESEND_LIMIT + " attempts. Try again later.");
-										socket.close();
-										return;
-									}
-									//otherwise re-send
-										socket.send(currentPacket);
-										if (verbose) System.out.println("\nClient timed out. DATA " + TFTP.getBlockNumber(currentPacket) + " resent.\n");
-								}
-							}
-							
-							TFTP.shrinkData(receivePacket);
-							
-							InetAddress packetAddress = receivePacket.getAddress();
-							int packetPort = receivePacket.getPort();
-							
-							// Check if the address and port of the received packet match the TID
-							if (!(packetAddress.equals(replyAddr) && (packetPort == TID))) {
-								// Creates an "unknown TID" error packet
-								DatagramPacket errorPacket = TFTP.formERRORPacket(
-										packetAddress,
-										packetPort,
-										TFTP.ERROR_CODE_UNKNOWN_TID,
-										"The address and port of the packet does not match the TID of the ongoing transfer.");
-
-								// Sends error packet
-								socket.send(errorPacket);
-
-								// Echo error message
-								if (verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Received packet from an unknown host. Discarding packet and continuing transfer...\n");
-
-								unexpectedPacket = true;
-								continue;
-							}
-
-							// This block is entered if the packet received is not a valid ACK packet
-							String[] errorMessage = new String[1];
-							if (!TFTP.verifyAckPacket(receivePacket, currentBlockNumber, errorMessage)) {
-								String[] errorMessage2 = new String[1];
-								// If an ERROR packet is received instead of the expected ACK packet, abort the transfer
-								if (TFTP.verifyErrorPacket(receivePacket, errorMessage2)) {
-									if (verbose) System.out.println("Received ERROR packet with ERROR code " + TFTP.getErrorCode(receivePacket) + ": " + TFTP.getErrorMessage(receivePacket) + ". Aborting transfer...\n");
-
-									// Closes socket and aborts thread
-									socket.close();
-									return;
-								}
-								// If the received packet is not an ACK or an ERROR packet, then send an illegal TFTP
-								// operation ERROR packet and abort the transfer
-								else {
-									// Creates an "illegal TFTP operation" error packet
-									DatagramPacket errorPacket = TFTP.formERRORPacket(
-											replyAddr,
-											TID,
-											TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION,
-											fileName + " could not be transferred because of the following error: " + errorMessage[0] + " (server expected a ACK packet with block#: " + currentBlockNumber + ")");
-
-									// Sends error packet
-									socket.send(errorPacket);
-
-									// Echo error message
-									if (verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Illegal TFTP Operation. Aborting transfer...\n");
-
-									// Closes socket and aborts thread
-									socket.close();
-									return;
-								}
-							}
-
-							// Ignore acknowledgement packet if duplicate
-							if (TFTP.getBlockNumber(receivePacket) < currentBlockNumber)
-							{
-								if (verbose) System.out.println("Ignoring previous duplicate ACK " + TFTP.getBlockNumber(receivePacket) + " packet received...\n");
-								unexpectedPacket = true;
-								continue;
-							}
-						} while (unexpectedPacket);
-
-
-					if (verbose) System.out.println("ACK " + TFTP.getBlockNumber(receivePacket) + " received.");
-					// Newline
-					if (verbose) System.out.println();
-					transferComplete = dataPacketQueue.isEmpty();
-					packetInOrder = TFTP.checkPacketInOrder(receivePacket, currentBlockNumber);
-				
-					//if packet received is not the expected next ACK in the transfer (ie. a delayed or duplicate packet), ignore it 
-					//otherwise increment current block number to wait for the next ack
-					if(packetInOrder && !transferComplete)
-					{
-						currentBlockNumber = (currentBlockNumber + 1) % 65536;
-						nextPacket = dataPacketQueue.remove();
+					if (blockCache != null) {
+						source = new CachingBlockSource(filePath, options.getBlockSize(), blockCache);
+					} else {
+						source = new FileBlockSource(filePath, options.getBlockSize());
 					}
-					
-				} catch(Exception e) {
-					System.out.println(e.getMessage());
+					session = new MulticastSession(filePath, multicastGroup, groupPort, source, options, RESEND_LIMIT, metrics, activeRequests);
+				} catch (IOException e) {
+					Log.error(e.getMessage());
+					if (source != null) source.close();
+					return false;
+				}
+				session.join(replyAddr, TID, options, acceptedOptions, startTime, requestKey);
+				multicastSessions.put(filePath, session);
+				(new Thread(session, "Multicast-" + groupPort)).start();
+				return true;
+			}
+		}
+
+		/**
+		 * Sends the blocks of source to the client, keeping up to the negotiated window size
+		 * of blocks in flight. If options were negotiated, the OACK is sent first and
+		 * acknowledged by the client with ACK 0.
+		 *
+		 * @param source BlockSource of the file being read
+		 * @param fileName Name of the file being read
+		 */
+		private void sendBlocks(BlockSource source, String fileName) {
+			WindowedSender sender = new WindowedSender(socket, replyAddr, TID, options, RESEND_LIMIT, true, "client");
+			sender.setMetrics(metrics);
+			try {
+				if (sender.send(source, oackPacket, fileName)) {
+					complete = true;
+					Log.info("\nEnd of file transfer.\n");
 				}
+			} catch (IOException e) {
+				Log.error(e.getMessage());
 			}
-			System.out.println("\nEnd of file transfer.\n");
 		}
 
 		/**
@@ -371,12 +550,7 @@ public class Server implements Exitable, Runnable {
 			try {
 				String fileName = r.getFileName();
 				String filePath = directory + fileName;
-				int currentBlockNumber = 1;
-				DatagramPacket receivePacket;
-				byte[] fileBytes = new byte[0];
 
-				boolean packetInOrder;
-				
 				// There is an error if the file exists and it not writable
 				if (TFTP.fileExists(filePath) && !TFTP.isWritable(filePath)) {
 					// Creates a "access violation" error packet
@@ -388,149 +562,96 @@ public class Server implements Exitable, Runnable {
 					
 					// Sends error packet
 					socket.send(errorPacket);
+					metrics.errorSent(TFTP.ERROR_CODE_ACCESS_VIOLATION);
 
 					// Echo error message
-					if (verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_ACCESS_VIOLATION + ": File access violation. Aborting transfer...\n");
+					Log.info("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_ACCESS_VIOLATION + ": File access violation. Aborting transfer...\n");
 					
 					// Closes socket and aborts thread
-					socket.close();
+					closeSocket();
 					return;
 				}
 
-				// Form and send ACK0
-				DatagramPacket ackPacket = TFTP.formACKPacket(replyAddr, TID, 0);
-				if (verbose) System.out.println("Sending ACK 0.");
-				socket.send(ackPacket);
-
-				// Flag set when transfer is finished
-				boolean transferComplete = false;
+				long transferSize = options.getTransferSize();
+				if (transferSize >= 0) options.acceptTransferSize(acceptedOptions, transferSize);
 
-				do {
-					// Wait for a DATA packet
-					if (verbose) System.out.println("Waiting for DATA from client...");
-					receivePacket = TFTP.formPacket();
-					
-					for(int i = 0; i<RESEND_LIMIT+1; i++) {
-						try {
-								socket.receive(receivePacket);
-								break;		//If packet successfully received, leave loop
-						} catch(SocketTimeoutException e) {
-							//if re-send attempt limit reached, 'give up' and cancel transfer
-							if(i == RESEND_LIMIT) {
-								System.out.println("No response from client after " + RESEND_LIMIT + " attempts. Try again later.");
-								socket.close();
-								return;
-							}
-						}
-					}
-					
-					
-					TFTP.shrinkData(receivePacket);
-
-					InetAddress packetAddress = receivePacket.getAddress();
-					int packetPort = receivePacket.getPort();
-					if (!(packetAddress.equals(replyAddr) && (packetPort == TID))) {
-						// Creates an "unknown TID" error packet
-						DatagramPacket errorPacket = TFTP.formERRORPacket(
-								packetAddress,
-								packetPort,
-								TFTP.ERROR_CODE_UNKNOWN_TID,
-								"The address and port of the packet does not match the TID of the ongoing transfer.");
-
-						// Sends error packet
-						socket.send(errorPacket);
-
-						// Echo error message
-						if (verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Received packet from an unknown host. Discarding packet and continuing transfer...\n");
-						continue;
+				// Blocks are written to disk as they arrive rather than all at the end. A client
+				// that can resume has its partial file kept, and carries on from its end.
+				FileBlockSink sink;
+				try {
+					if (options.getOffset() >= 0) {
+						sink = FileBlockSink.resumable(filePath, transferSize);
+						options.acceptOffset(acceptedOptions, sink.getBytesWritten());
+					} else {
+						sink = new FileBlockSink(filePath);
 					}
+				} catch (IOException e) {
+					// Creates a "access violation" error packet
+					DatagramPacket errorPacket = TFTP.formERRORPacket(
+							replyAddr,
+							TID,
+							TFTP.ERROR_CODE_ACCESS_VIOLATION,
+							"\"" + fileName + "\" could not be created on server.");
 
-					// This block is entered if the packet received is not a valid DATA packet
-					String[] errorMessage = new String[1];
-					if (!TFTP.verifyDataPacket(receivePacket, currentBlockNumber, errorMessage)) {
-						// If an ERROR packet is received instead of the expected DATA packet, delete the file
-						// and abort the transfer
-						String[] errorMessage2 = new String[1];
-						if (TFTP.verifyErrorPacket(receivePacket, errorMessage2)) {
-							if (verbose) System.out.println("Received ERROR packet with ERROR code " + TFTP.getErrorCode(receivePacket) + ": " + TFTP.getErrorMessage(receivePacket) + ". Aborting transfer...\n");
-							return;
-						}
-						// If the received packet is not a DATA or an ERROR packet, then send an illegal TFTP
-						// operation ERROR packet and abort the transfer
-						else {
-							// Creates an "illegal TFTP operation" error packet
-							DatagramPacket errorPacket = TFTP.formERRORPacket(
-									replyAddr,
-									TID,
-									TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION,
-									fileName + " could not be transferred because of the following error: " + errorMessage[0] + " (server expected a DATA packet with block#: " + currentBlockNumber + ")");
-
-							// Sends error packet
-							socket.send(errorPacket);
-
-							// Echo error message
-							if (verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Illegal TFTP Operation. Aborting transfer...\n");
-							return;
-						}
-					}
+					// Sends error packet
+					socket.send(errorPacket);
+					metrics.errorSent(TFTP.ERROR_CODE_ACCESS_VIOLATION);
 
-					// Transfer is complete if data block is less than MAX_DATA_SIZE
-					if (receivePacket.getLength() < TFTP.MAX_PACKET_SIZE) {
-						transferComplete = true;
-					}
+					// Echo error message
+					Log.info("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_ACCESS_VIOLATION + ": File could not be created. Aborting transfer...\n");
 
-					// Echo successful data receive
-					if (verbose) System.out.println("DATA " + TFTP.getBlockNumber(receivePacket) + " received.");
-					// Newline
-					if (verbose) System.out.println();
-					
-					packetInOrder = TFTP.checkPacketInOrder(receivePacket, currentBlockNumber);
-					
-					//If the packet was the correct next sequential packet in the transfer (not delayed/duplicated)
-					if(packetInOrder){
-
-						// Write the data packet to file
-						fileBytes = TFTP.appendData(receivePacket, fileBytes);
-						if ((fileBytes.length*TFTP.MAX_DATA_SIZE) > TFTP.getFreeSpaceOnFileSystem(directory)) {
-							// Creates a "file not found" error packet
-							DatagramPacket errorPacket = TFTP.formERRORPacket(
-								replyAddr,
-								TID,
-								TFTP.ERROR_CODE_DISK_FULL,
-								"\"" + r.getFileName() + "\" could not be transferred because disk is full.");
-
-							// Sends error packet
-							try {
-								socket.send(errorPacket);
-							} catch (Exception e) {
-							}
-
-							// Echo error message
-							if (verbose) System.out.println("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_DISK_FULL + ": Disk full. Aborting transfer...\n");
-
-							// Closes socket and aborts thread
-							socket.close();
-							return;
-						}
-					}
-					
-					// Form a ACK packet to respond with
-					ackPacket = TFTP.formACKPacket(replyAddr, TID, TFTP.getBlockNumber(receivePacket));
-					if (verbose) System.out.println("Sending ACK " + TFTP.getBlockNumber(ackPacket) + ".");
-					socket.send(ackPacket);
-					
-					//Incrament next block number expected only if the last packet received was the correct sequentially expected one 
-					if(packetInOrder){
-						currentBlockNumber = (currentBlockNumber + 1) % (TFTP.MAX_BLOCK_NUMBER + 1);
-					}
-					
-				} while (!transferComplete);
+					// Closes socket and aborts thread
+					closeSocket();
+					return;
+				}
 
-				// Write data to file
-				TFTP.writeBytesToFile(directory + r.getFileName(), fileBytes);
-				if (verbose) System.out.println("\nWrite complete.\n");
+				try {
+					// Refuse an upload that cannot fit before any block is sent (RFC 2349), counting
+					// only what is left of a resumed one
+					if (transferSize - sink.getBytesWritten() > TFTP.getFreeSpaceOnFileSystem(directory)) {
+						sendDiskFullError(fileName);
+						return;
+					}
+					formOACK();
+					receiveBlocks(r, sink);
+				} finally {
+					// Deletes the partial file if the transfer did not complete
+					sink.abort();
+				}
 			} catch(Exception e) {
-				System.out.println(e.getMessage());
+				Log.error(e.getMessage());
+			}
+		}
+
+		/**
+		 * Receives the blocks of a write request from the client, writing each in-order block
+		 * to sink and acknowledging each window, and commits the sink once the last block
+		 * arrives.
+		 *
+		 * @param r Request type, filename, and mode
+		 * @param sink BlockSink that the file is written to
+		 *
+		 * @throws IOException if a packet could not be sent or the file could not be completed
+		 */
+		private void receiveBlocks(Request r, BlockSink sink) throws IOException {
+			// Form and send ACK0, or the OACK in its place if options were negotiated
+			DatagramPacket firstReply;
+			if (oackPacket != null) {
+				Log.trace("Sending OACK.");
+				firstReply = oackPacket;
+			} else {
+				Log.trace("Sending ACK 0.");
+				firstReply = TFTP.formACKPacket(replyAddr, TID, 0);
+			}
+			socket.send(firstReply);
+
+			// The receiver sends it again until block 1 arrives, as a request sent again is dropped
+			WindowedReceiver receiver = new WindowedReceiver(socket, replyAddr, TID, options, RESEND_LIMIT, true, "client");
+			receiver.setMetrics(metrics);
+			receiver.setFirstReply(firstReply);
+			if (receiver.receive(sink, null, r.getFileName(), directory)) {
+				complete = true;
+				Log.info("\nWrite complete.\n");
 			}
 		}
 	}
@@ -544,22 +665,42 @@ public class Server implements Exitable, Runnable {
 	 */
 	private class Listener implements Runnable {
 		private DatagramSocket receiveSocket;
+		private ExecutorService threads;
+		private BoundedExecutor executor;
 
 		/**
 		 * Constructor of the Listener class, initialize a new socket for each
 		 * client connection.
+		 * 
+		 * @param shard Number of the listener, from 0
+		 * @param bindPort Port to listen for requests on
 		 */
-		public Listener() {
-			if (verbose) System.out.println("Creating new listener.");
+		public Listener(int shard, int bindPort) {
+			Log.debug("Creating new listener.");
 			try {
-				receiveSocket = new DatagramSocket(RECEIVE_PORT);
+				if (listenerCount > 1) {
+					receiveSocket = TFTP.openReusePortSocket(bindPort);
+				} else {
+					receiveSocket = new DatagramSocket(bindPort);
+				}
 				receiveSocket.setSoTimeout(5000);
+				threads = TransferExecutors.create(threadMode, listenerCount > 1 ? "ClientHandler-" + shard : "ClientHandler");
+				executor = new BoundedExecutor(threads, share(maxTransfers), share(maxQueuedTransfers));
 			} catch(Exception se) {
 				se.printStackTrace();
 				System.exit(1);
 			}
 		}
 
+		/**
+		 * @param limit Limit of the whole server
+		 * 
+		 * @return Part of limit given to each listener, rounded up
+		 */
+		private int share(int limit) {
+			return (limit + listenerCount - 1) / listenerCount;
+		}
+
 		/**
 		* Wait for packet from client. When received, a response packet
 		* is sent back to the sender if the received packet is valid. otherwise
@@ -573,10 +714,10 @@ public class Server implements Exitable, Runnable {
 
 				// Receive packet
 				try {
-					//if (verbose) System.out.println("Waiting for request from client...");
+					//Log.trace("Waiting for request from client...");
 					receiveSocket.receive(packet);
 					TFTP.shrinkData(packet);
-					if (verbose) System.out.println("A request was received.");
+					Log.debug("A request was received.");
 				} catch(Exception e) {
 					if (e instanceof InterruptedIOException) {
 						//System.out.println("Socket timeout.");
@@ -587,11 +728,63 @@ public class Server implements Exitable, Runnable {
 					}
 				}
 
-				// Start a handler to connect with client
-				(new Thread(new ClientHandler(packet))).start();
+				// Drop a request the client sent again while the first one is being served, unless
+				// its transfer has to answer it again
+				String key = ActiveRequests.keyOf(packet);
+				if (!activeRequests.add(key)) {
+					metrics.duplicateRequest();
+					Log.debug("Duplicate request dropped.");
+					try {
+						activeRequests.answerDuplicate(key);
+					} catch (IOException e) {
+						Log.error(e.getMessage());
+					}
+					continue;
+				}
+
+				// Start a handler to connect with client, or queue it if too many transfers are in progress
+				try {
+					executor.execute(new ClientHandler(packet, key));
+					if (executor.getQueued() > 0) Log.debug(executor.getQueued() + " request(s) waiting for a transfer to finish.");
+				} catch (RejectedExecutionException e) {
+					activeRequests.remove(key);
+					rejectRequest(packet);
+				}
 			}
-			if (verbose) System.out.println("Listener closing...");
+			Log.debug("Listener closing...");
 			receiveSocket.close();
+
+			// Let the transfers in progress and the requests queued finish
+			try {
+				executor.awaitIdle();
+			} catch (InterruptedException e) {
+			}
+			threads.shutdown();
+		}
+
+		/**
+		 * Answers a request that cannot be admitted with a "server busy" ERROR packet.
+		 *
+		 * @param packet Request packet received from a Client
+		 */
+		private void rejectRequest(DatagramPacket packet) {
+			// Creates a "not defined" error packet
+			DatagramPacket errorPacket = TFTP.formERRORPacket(
+					packet.getAddress(),
+					packet.getPort(),
+					TFTP.ERROR_CODE_NOT_DEFINED,
+					"Server busy, try again later.");
+
+			// Sends error packet
+			try {
+				receiveSocket.send(errorPacket);
+				metrics.errorSent(TFTP.ERROR_CODE_NOT_DEFINED);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			// Echo error message
+			Log.info("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_NOT_DEFINED + ": Server busy. Request rejected.\n");
 		}
 	}
 
@@ -600,6 +793,11 @@ public class Server implements Exitable, Runnable {
 	 */
 	public void exit() {
 		this.running = false;
+		if (eventLoopServer != null) eventLoopServer.exit();
+		if (socketPool != null) socketPool.close();
+		if (blockCache != null) Log.info("Block cache: " + blockCache.getHits() + " hits, " + blockCache.getMisses() + " misses.");
+		Log.info("Transfers: " + metrics.getTransfersCompleted() + " completed, " + metrics.getTransfersFailed() + " failed, " + metrics.getRetransmits() + " blocks resent, " + metrics.getDuplicateRequests() + " duplicate requests dropped.");
+		metrics.unregister();
 	}
 
 	/**
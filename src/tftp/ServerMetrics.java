@@ -0,0 +1,300 @@
+package tftp;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the transfers served by the server, updated by every transfer thread or
+ * event loop and registered as an MBean so that they can be watched with JMX.
+ *
+ * The counters updated for every block are LongAdders, which spread concurrent updates
+ * over separate cells instead of contending on one value, so counting costs a transfer
+ * next to nothing. Transfer durations are kept in a histogram of logarithmic buckets,
+ * eight per power of two, so a percentile is found without keeping every duration and
+ * is accurate to within an eighth.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	public static final String OBJECT_NAME = "tftp:type=ServerMetrics";
+	private static final int ERROR_CODES = 9;		// ERROR codes 0 to 8, including option negotiation (RFC 2347)
+	private static final int SUB_BUCKET_BITS = 3;	// 8 buckets per power of two
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private LongAdder active = new LongAdder();
+	private LongAdder started = new LongAdder();
+	private LongAdder completed = new LongAdder();
+	private LongAdder failed = new LongAdder();
+	private LongAdder bytesSent = new LongAdder();
+	private LongAdder bytesReceived = new LongAdder();
+	private LongAdder retransmits = new LongAdder();
+	private LongAdder timeouts = new LongAdder();
+	private LongAdder duplicateRequests = new LongAdder();
+	private LongAdder[] errors = new LongAdder[ERROR_CODES];
+	private AtomicLongArray durations = new AtomicLongArray(BUCKETS);	// Updated once per transfer
+	private Rate transferRate = new Rate();
+	private Rate bytesSentRate = new Rate();
+	private Rate bytesReceivedRate = new Rate();
+	private ObjectName name;
+
+	/**
+	 * Constructor of the ServerMetrics class, with every counter at 0.
+	 */
+	public ServerMetrics() {
+		for (int i = 0; i < errors.length; i++) {
+			errors[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server. Failing to register only
+	 * means that the metrics cannot be watched, so it is reported and otherwise ignored.
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) server.unregisterMBean(name);
+			server.registerMBean(this, name);
+		} catch (JMException e) {
+			Log.warn("Server metrics could not be registered: " + e.getMessage());
+			name = null;
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server, if they were registered.
+	 */
+	public void unregister() {
+		if (name == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+		}
+		name = null;
+	}
+
+	/**
+	 * Records the start of a transfer.
+	 *
+	 * @return Start time of the transfer, to be passed to transferFinished
+	 */
+	public long transferStarted() {
+		started.increment();
+		active.increment();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the end of a transfer.
+	 *
+	 * @param startTime Start time returned by transferStarted
+	 * @param complete Whether the transfer completed
+	 */
+	public void transferFinished(long startTime, boolean complete) {
+		active.decrement();
+		if (complete) {
+			completed.increment();
+		} else {
+			failed.increment();
+		}
+		durations.incrementAndGet(bucketOf((System.nanoTime() - startTime) / 1000000));
+	}
+
+	/**
+	 * @param n Number of bytes of file data sent in a DATA packet
+	 */
+	public void addBytesSent(int n) {
+		bytesSent.add(n);
+	}
+
+	/**
+	 * @param n Number of bytes of file data received and written
+	 */
+	public void addBytesReceived(int n) {
+		bytesReceived.add(n);
+	}
+
+	/**
+	 * Records a DATA packet sent again.
+	 */
+	public void retransmitted() {
+		retransmits.increment();
+	}
+
+	/**
+	 * Records a timeout waiting for a client.
+	 */
+	public void timedOut() {
+		timeouts.increment();
+	}
+
+	/**
+	 * Records a request dropped because the same request was being served.
+	 */
+	public void duplicateRequest() {
+		duplicateRequests.increment();
+	}
+
+	/**
+	 * Records an ERROR packet sent.
+	 *
+	 * @param errorCode ERROR code of the packet
+	 */
+	public void errorSent(int errorCode) {
+		if (errorCode >= 0 && errorCode < errors.length) errors[errorCode].increment();
+	}
+
+	public long getActiveTransfers() {
+		return active.sum();
+	}
+
+	public long getTransfersStarted() {
+		return started.sum();
+	}
+
+	public long getTransfersCompleted() {
+		return completed.sum();
+	}
+
+	public long getTransfersFailed() {
+		return failed.sum();
+	}
+
+	public double getTransfersPerSecond() {
+		return transferRate.update(started.sum());
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public double getBytesSentPerSecond() {
+		return bytesSentRate.update(bytesSent.sum());
+	}
+
+	public double getBytesReceivedPerSecond() {
+		return bytesReceivedRate.update(bytesReceived.sum());
+	}
+
+	public long getRetransmits() {
+		return retransmits.sum();
+	}
+
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	public long getDuplicateRequests() {
+		return duplicateRequests.sum();
+	}
+
+	public long[] getErrorPacketsByCode() {
+		long[] counts = new long[errors.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = errors[i].sum();
+		}
+		return counts;
+	}
+
+	public long getTransferDurationMedian() {
+		return getTransferDurationPercentile(50);
+	}
+
+	public long getTransferDuration90thPercentile() {
+		return getTransferDurationPercentile(90);
+	}
+
+	public long getTransferDuration99thPercentile() {
+		return getTransferDurationPercentile(99);
+	}
+
+	public long getTransferDurationMax() {
+		return getTransferDurationPercentile(100);
+	}
+
+	/**
+	 * Finds a percentile of the durations of the transfers finished, as the largest
+	 * duration of the bucket it falls in.
+	 *
+	 * @param percentile Percentile to find, from 0 to 100
+	 *
+	 * @return Duration in milliseconds, or 0 if no transfer has finished
+	 */
+	public long getTransferDurationPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) throw new IllegalArgumentException();
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = durations.get(i);
+			total += counts[i];
+		}
+		if (total == 0) return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) return highestOf(i);
+		}
+		return highestOf(BUCKETS - 1);
+	}
+
+	/**
+	 * @param value Duration in milliseconds
+	 *
+	 * @return Bucket of the histogram holding value
+	 */
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) return (int) Math.max(0, value);
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @param bucket Bucket of the histogram
+	 *
+	 * @return Largest duration held by the bucket, in milliseconds
+	 */
+	private static long highestOf(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int shift = exponent - SUB_BUCKET_BITS;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Rate of a counter over the interval since it was last read. Reading it again
+	 * within a second returns the previous rate, so that a tool polling often does not
+	 * see the rate jump between updates.
+	 */
+	private static class Rate {
+		private long lastTime = System.nanoTime();
+		private long lastValue;
+		private double rate;
+
+		public synchronized double update(long value) {
+			long now = System.nanoTime();
+			long elapsed = now - lastTime;
+			if (elapsed >= 1000000000L) {
+				rate = (value - lastValue) * 1e9 / elapsed;
+				lastTime = now;
+				lastValue = value;
+			}
+			return rate;
+		}
+	}
+}
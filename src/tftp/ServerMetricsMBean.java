@@ -0,0 +1,98 @@
+package tftp;
+
+/**
+ * Management interface of ServerMetrics, which exposes the counters of the server as
+ * attributes of the MBean "tftp:type=ServerMetrics" to JMX clients such as jconsole.
+ *
+ * Rates are per second over the interval since the rate was last read, once that
+ * interval is at least a second long. Durations are in milliseconds.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public interface ServerMetricsMBean {
+	/**
+	 * @return Number of transfers in progress
+	 */
+	public long getActiveTransfers();
+
+	/**
+	 * @return Number of transfers started
+	 */
+	public long getTransfersStarted();
+
+	/**
+	 * @return Number of transfers that completed
+	 */
+	public long getTransfersCompleted();
+
+	/**
+	 * @return Number of transfers that were refused or aborted
+	 */
+	public long getTransfersFailed();
+
+	/**
+	 * @return Transfers started per second
+	 */
+	public double getTransfersPerSecond();
+
+	/**
+	 * @return Bytes of file data sent in DATA packets, including resent blocks
+	 */
+	public long getBytesSent();
+
+	/**
+	 * @return Bytes of file data received and written
+	 */
+	public long getBytesReceived();
+
+	/**
+	 * @return Bytes of file data sent per second
+	 */
+	public double getBytesSentPerSecond();
+
+	/**
+	 * @return Bytes of file data received per second
+	 */
+	public double getBytesReceivedPerSecond();
+
+	/**
+	 * @return Number of DATA packets resent
+	 */
+	public long getRetransmits();
+
+	/**
+	 * @return Number of timeouts waiting for a client
+	 */
+	public long getTimeouts();
+
+	/**
+	 * @return Number of requests dropped because the same request was being served
+	 */
+	public long getDuplicateRequests();
+
+	/**
+	 * @return Number of ERROR packets sent, indexed by ERROR code
+	 */
+	public long[] getErrorPacketsByCode();
+
+	/**
+	 * @return Median duration of the transfers finished
+	 */
+	public long getTransferDurationMedian();
+
+	/**
+	 * @return 90th percentile of the duration of the transfers finished
+	 */
+	public long getTransferDuration90thPercentile();
+
+	/**
+	 * @return 99th percentile of the duration of the transfers finished
+	 */
+	public long getTransferDuration99thPercentile();
+
+	/**
+	 * @return Longest duration of the transfers finished
+	 */
+	public long getTransferDurationMax();
+}
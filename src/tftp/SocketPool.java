@@ -0,0 +1,130 @@
+package tftp;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of bound sockets for the transfers of the server, so that a transfer does not open,
+ * bind and tune a new socket before its first packet and close it at the end.
+ *
+ * The pool is filled when it is created. A socket is taken with acquire and given back
+ * with release; when the pool is empty a new socket is opened, and a socket given back to
+ * a full pool is closed. Datagrams left over from the previous transfer, such as a late
+ * ACK, are drained before a socket is handed out again, so the next transfer never sees
+ * them.
+ *
+ * The sockets are adaptors of DatagramChannels, which can be switched to non-blocking
+ * mode to drain them, and are blocking once handed out.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class SocketPool {
+	public static final int BUFFER_SIZE = 256 * 1024;	// SO_RCVBUF and SO_SNDBUF of the sockets, enough for a window of large blocks
+	private BlockingQueue<DatagramChannel> idle;
+	private volatile boolean closed;
+
+	/**
+	 * Constructor of the SocketPool class, which opens size sockets.
+	 *
+	 * @param size Maximum number of idle sockets kept
+	 * @throws IOException if a socket could not be opened
+	 */
+	public SocketPool(int size) throws IOException {
+		if (size < 1) throw new IllegalArgumentException();
+		idle = new ArrayBlockingQueue<DatagramChannel>(size);
+		for (int i = 0; i < size; i++) {
+			idle.add(open());
+		}
+	}
+
+	/**
+	 * Takes an idle socket, or opens a new one if there is none.
+	 *
+	 * @return Blocking socket bound to a free port, with nothing waiting to be received
+	 * @throws IOException if a new socket could not be opened
+	 */
+	public DatagramSocket acquire() throws IOException {
+		DatagramChannel channel;
+		while ((channel = idle.poll()) != null) {
+			try {
+				drain(channel);
+				return channel.socket();
+			} catch (IOException e) {
+				// Broken while idle, so try the next one
+				channel.close();
+			}
+		}
+		return open().socket();
+	}
+
+	/**
+	 * Gives a socket back once its transfer is over. The socket must not be used after.
+	 *
+	 * @param socket Socket taken from acquire
+	 */
+	public void release(DatagramSocket socket) {
+		DatagramChannel channel = socket.getChannel();
+		if (socket.isClosed() || channel == null) return;
+		if (closed || !idle.offer(channel)) socket.close();
+	}
+
+	/**
+	 * @return Number of idle sockets in the pool
+	 */
+	public int getIdle() {
+		return idle.size();
+	}
+
+	/**
+	 * Closes the idle sockets. Sockets released afterwards are closed.
+	 */
+	public void close() {
+		closed = true;
+		DatagramChannel channel;
+		while ((channel = idle.poll()) != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * @return New blocking channel bound to a free port, with the buffer sizes of the pool
+	 * @throws IOException if the channel could not be opened
+	 */
+	private static DatagramChannel open() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, BUFFER_SIZE);
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, BUFFER_SIZE);
+			channel.bind(new InetSocketAddress(0));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Discards every datagram waiting on channel.
+	 *
+	 * @param channel Idle channel
+	 * @throws IOException if the channel failed
+	 */
+	private static void drain(DatagramChannel channel) throws IOException {
+		ByteBuffer discard = ByteBuffer.allocate(1);
+		channel.configureBlocking(false);
+		while (channel.receive(discard) != null) {
+			discard.clear();
+		}
+		channel.configureBlocking(true);
+	}
+}
@@ -1,6 +1,7 @@
 package tftp;
 
 import java.net.*;
+import java.nio.channels.DatagramChannel;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
@@ -29,6 +30,7 @@ public class TFTP {
 	public static final int DATA_OP_CODE = 3;
 	public static final int ACK_OP_CODE = 4;
 	public static final int ERROR_OP_CODE = 5;
+	public static final int OACK_OP_CODE = 6;
 	public static final int ERROR_CODE_SIZE = 2;
 	public static final int ERROR_CODE_NOT_DEFINED = 0;
 	public static final int ERROR_CODE_FILE_NOT_FOUND = 1;
@@ -40,10 +42,23 @@ public class TFTP {
 	public static final int MIN_PORT = 1;
 	public static final int MAX_PORT = 65535;
 	public static final int MAX_ERROR_CODE = 7;
-	public static final int MAX_OP_CODE = 5;
+	public static final int MAX_OP_CODE = 6;
 	public static final int MAX_BLOCK_NUMBER = 65535;
 	public static final String MODE_NETASCII = "netascii";
 	public static final String MODE_OCTET = "octet";
+	public static final String OPTION_BLKSIZE = "blksize";
+	public static final int MIN_BLOCK_SIZE = 8;
+	public static final int MAX_BLOCK_SIZE = 65464;
+	public static final String OPTION_WINDOWSIZE = "windowsize";
+	public static final int MIN_WINDOW_SIZE = 1;
+	public static final int MAX_WINDOW_SIZE = 65535;
+	public static final String OPTION_TIMEOUT = "timeout";
+	public static final int MIN_TIMEOUT = 1;
+	public static final int MAX_TIMEOUT = 255;
+	public static final String OPTION_TSIZE = "tsize";
+	public static final String OPTION_MULTICAST = "multicast";
+	public static final int MULTICAST_PORT = 1758;
+	public static final String OPTION_OFFSET = "offset";	// Non-standard: byte of the file that block 1 starts at, to resume a transfer
 	public static int VERBOSITY = 1;
 
 	/**
@@ -57,6 +72,19 @@ public class TFTP {
 		return new DatagramPacket(data, data.length);
 	}
 
+	/**
+	 * Forms a DatagramPacket with an empty data buffer large enough to hold a DATA
+	 * packet for the given block size
+	 *
+	 * @param blockSize Negotiated block size of the transfer
+	 *
+	 * @return DatagramPacket with an empty data buffer of size blockSize + 5
+	 */
+	public static DatagramPacket formPacket(int blockSize) {
+		byte[] data = new byte[OP_CODE_SIZE + BLOCK_NUMBER_SIZE + blockSize + 1];
+		return new DatagramPacket(data, data.length);
+	}
+
 	/**
 	 * Forms a DatagramPacket with the byte[] data passed in
 	 *
@@ -72,7 +100,8 @@ public class TFTP {
 	
 	/**
 	 * Forms a DatagramPacket using Request r with information about request type
-	 * (read, write, or test), filename, and mode (ascii, octet, etc.).
+	 * (read, write, or test), filename, and mode (ascii, octet, etc.). Any options
+	 * of the request are appended as name/value pairs after the mode.
 	 *
 	 * @param addr InetAddress of packet destination
 	 * @param port Port number of packet destination
@@ -83,8 +112,11 @@ public class TFTP {
 	public static DatagramPacket formRQPacket(InetAddress addr, int port, Request r) {
 		if (!isValidPort(port)) throw new IllegalArgumentException();
 		int currentIndex;
+		byte[] fbytes = r.getFileName().getBytes();
+		byte[] mbytes = r.getMode().getBytes();
+		byte[] obytes = optionsToBytes(r.getOptions());
 		// Create byte array for packet
-		byte[] buf = new byte[BUF_SIZE];
+		byte[] buf = new byte[Math.max(BUF_SIZE, OP_CODE_SIZE + fbytes.length + mbytes.length + obytes.length + 2)];
 		// First element will always be 0
 		buf[0] = TFTP_PADDING;
 		switch (r.getType()) {
@@ -100,7 +132,6 @@ public class TFTP {
 		}
 
 		// Add filename to packet data
-		byte[] fbytes = r.getFileName().getBytes();
 		System.arraycopy(fbytes,0,buf,OP_CODE_SIZE,fbytes.length);
 
 		// Add 0 byte padding
@@ -109,13 +140,16 @@ public class TFTP {
 		currentIndex++;
 
 		// Add mode to packet data
-		byte[] mbytes = r.getMode().getBytes();
 		System.arraycopy(mbytes,0,buf,currentIndex,mbytes.length);
 
 		// Add terminating 0 byte
 		currentIndex = currentIndex + mbytes.length;
 		buf[currentIndex] = TFTP_PADDING;
 
+		// Add options, each of which already ends with a 0 byte
+		System.arraycopy(obytes,0,buf,currentIndex+1,obytes.length);
+		currentIndex = currentIndex + obytes.length;
+
 		// Truncate trailing zeros by copyings to a new array
 		byte[] data = new byte[currentIndex + 1];
 		System.arraycopy(buf,0,data,0,currentIndex+1);
@@ -156,7 +190,8 @@ public class TFTP {
 
 	/**
 	 * Given a filename, returns a queue of datagram packets for that
-	 * file in 512 byte blocks.
+	 * file in 512 byte blocks. The whole file is held in memory; transfers
+	 * should use a BlockSource to read blocks as they are needed instead.
 	 *
 	 * @param addr InetAddress of packet destination
 	 * @param port Port number of packet destination
@@ -202,7 +237,8 @@ public class TFTP {
 	}
 
 	/**
-	 * Append a TFTP DATA packet's data to the given array byte.
+	 * Append a TFTP DATA packet's data to the given array byte. Every call copies the
+	 * whole array; transfers should write blocks to a BlockSink instead.
 	 *
 	 * @param dataPacket A TFTP DATA packet
 	 * @param fileBytes Byte array to append to
@@ -253,10 +289,7 @@ public class TFTP {
 	 * @return The OP code of the TFTP packet
 	 */
 	public static int getOpCode(DatagramPacket packet) {
-		byte[] opCodeBytes = new byte[OP_CODE_SIZE];
-		byte[] data = packet.getData();
-		System.arraycopy(data,0,opCodeBytes,0,OP_CODE_SIZE);
-		int opCode = toUnsignedInt(opCodeBytes[1]);
+		int opCode = toUnsignedInt(packet.getData()[1]);
 		//if (!isValidOpCode(opCode))  throw new IllegalArgumentException("DatagramPacket is not a valid TFTP packet.");
 		return opCode;
 	}
@@ -287,7 +320,7 @@ public class TFTP {
 	 * @return boolean telling if the op code is valid
 	 */
 	public static boolean isValidOpCode(int opCode) {
-		return opCode >= 1 && opCode <= 5;
+		return opCode >= 1 && opCode <= MAX_OP_CODE;
 	}
 
 	/**
@@ -306,12 +339,11 @@ public class TFTP {
 		// If isn't DATA or ACK, throw an exception
 		if (!(isDATA || isACK)) throw new IllegalArgumentException("Cannot get block number of packet that is not DATA or ACK.");
 
-		// Get the block number as a byte array
-		byte[] blockNumberBytes = new byte[BLOCK_NUMBER_SIZE];
-		System.arraycopy(packet.getData(),OP_CODE_SIZE,blockNumberBytes,0,BLOCK_NUMBER_SIZE);
+		// Get the block number from its two bytes
+		byte[] data = packet.getData();
+		int blockNumber = toUnsignedInt(data[OP_CODE_SIZE])*256 + toUnsignedInt(data[OP_CODE_SIZE + 1]);
 
 		// Check that the block number is valid
-		int blockNumber = bytesToBlockNumber(blockNumberBytes);
 		if (!isValidBlockNumber(blockNumber)) throw new IllegalArgumentException("Block number out of range.");
 
 		return blockNumber;
@@ -443,6 +475,80 @@ public class TFTP {
 		return new DatagramPacket(buf,buf.length,addr,port);
 	}
 
+	/**
+	 * Reads a single block from a BlockSource and forms the DATA packet for it. The
+	 * block number of the packet is the block index wrapped to the 2-byte block number.
+	 *
+	 * @param addr InetAddress of DATA packet destination
+	 * @param port Port number of DATA packet destination
+	 * @param source BlockSource to read the block from
+	 * @param blockIndex Index of the block in the source, starting at 1
+	 *
+	 * @return The DATA packet holding the block
+	 * @throws IOException if the block could not be read
+	 */
+	public static DatagramPacket formDATAPacket(InetAddress addr, int port, BlockSource source, long blockIndex) throws IOException {
+		if (!isValidPort(port)) throw new IllegalArgumentException();
+		byte[] buf = new byte[OP_CODE_SIZE + BLOCK_NUMBER_SIZE + source.getBlockSize()];
+		DatagramPacket packet = new DatagramPacket(buf,buf.length,addr,port);
+		fillDATAPacket(packet, source, blockIndex);
+		return packet;
+	}
+
+	/**
+	 * Reads a single block from a BlockSource into an existing DATA packet, so that the
+	 * packet can be reused for each block of a transfer. The length of the packet is set
+	 * to the length of the block.
+	 *
+	 * @param packet Packet with a buffer of at least 4 + the block size of source
+	 * @param source BlockSource to read the block from
+	 * @param blockIndex Index of the block in the source, starting at 1
+	 *
+	 * @throws IOException if the block could not be read
+	 */
+	public static void fillDATAPacket(DatagramPacket packet, BlockSource source, long blockIndex) throws IOException {
+		int startIndex = OP_CODE_SIZE + BLOCK_NUMBER_SIZE;
+		byte[] buf = packet.getData();
+		if (buf.length < startIndex + source.getBlockSize()) throw new IllegalArgumentException();
+
+		// Op code
+		buf[0] = 0;
+		buf[1] = DATA_OP_CODE;
+
+		// Block number
+		setBlockNumber(packet, blockIndexToBlockNumber(blockIndex));
+
+		// Data
+		int n = source.readBlock(blockIndex, buf, startIndex);
+		packet.setLength(startIndex + n);
+	}
+
+	/**
+	 * Sets the block number of an existing DATA or ACK packet, so that an ACK packet can
+	 * be reused for each ACK of a transfer.
+	 *
+	 * @param packet A TFTP DATA or ACK packet
+	 * @param blockNumber Block number to set
+	 */
+	public static void setBlockNumber(DatagramPacket packet, int blockNumber) {
+		if (!isValidBlockNumber(blockNumber)) throw new IllegalArgumentException();
+		byte[] buf = packet.getData();
+		buf[OP_CODE_SIZE] = (byte) (blockNumber / 256);
+		buf[OP_CODE_SIZE + 1] = (byte) (blockNumber % 256);
+	}
+
+	/**
+	 * Converts a block index that keeps counting past MAX_BLOCK_NUMBER to the
+	 * 2-byte block number that is sent on the wire.
+	 *
+	 * @param blockIndex Index of the block, starting at 1
+	 *
+	 * @return Block number of the block
+	 */
+	public static int blockIndexToBlockNumber(long blockIndex) {
+		return (int) (blockIndex % (MAX_BLOCK_NUMBER + 1));
+	}
+
 	/**
 	 * Converts an integer to a 2-byte byte array.
 	 *
@@ -541,6 +647,97 @@ public class TFTP {
 		return new DatagramPacket(buf, buf.length, addr, port);	
 	}
 
+	/**
+	 * Forms an OACK packet acknowledging the given options (RFC 2347).
+	 * 
+	 * @param addr IP address of destination of the packet to be sent
+	 * @param port Port number of destination of the packet to be sent
+	 * @param options Option names mapped to the values accepted for them
+	 * 
+	 * @return OACK packet formed with given inputs
+	 */
+	public static DatagramPacket formOACKPacket(InetAddress addr, int port, Map<String, String> options) {
+		byte[] obytes = optionsToBytes(options);
+		byte[] buf = new byte[OP_CODE_SIZE + obytes.length];
+
+		// Op code
+		buf[0] = 0;
+		buf[1] = OACK_OP_CODE;
+
+		// Options
+		System.arraycopy(obytes, 0, buf, OP_CODE_SIZE, obytes.length);
+
+		return new DatagramPacket(buf, buf.length, addr, port);
+	}
+
+	/**
+	 * Gets the options acknowledged by an OACK packet
+	 * 
+	 * @param packet A TFTP OACK packet
+	 * 
+	 * @return Option names (in lower case) mapped to their values
+	 */
+	public static Map<String, String> getOptions(DatagramPacket packet) {
+		// If packet isn't an OACK, throw exception
+		if (getOpCode(packet) != OACK_OP_CODE) throw new IllegalArgumentException();
+
+		Map<String, String> options = parseOptions(packet.getData(), OP_CODE_SIZE, packet.getLength());
+		if (options == null) throw new IllegalArgumentException();
+		return options;
+	}
+
+	/**
+	 * Converts options to the sequence of 0-terminated name and value strings used in
+	 * requests and OACK packets
+	 * 
+	 * @param options Option names mapped to their values
+	 * 
+	 * @return Options as bytes
+	 */
+	private static byte[] optionsToBytes(Map<String, String> options) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			byte[] nbytes = option.getKey().getBytes();
+			byte[] vbytes = option.getValue().getBytes();
+			out.write(nbytes, 0, nbytes.length);
+			out.write(TFTP_PADDING);
+			out.write(vbytes, 0, vbytes.length);
+			out.write(TFTP_PADDING);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Parses a sequence of 0-terminated option name and value strings
+	 * 
+	 * @param data Buffer holding the options
+	 * @param start Index of the first option name
+	 * @param end Index one past the last byte of the options
+	 * 
+	 * @return Option names (in lower case) mapped to their values, or null if the options are malformed
+	 */
+	private static Map<String, String> parseOptions(byte[] data, int start, int end) {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		int currentIndex = start;
+		while (currentIndex < end) {
+			// Find the end of the option name
+			int nameEnd = currentIndex;
+			while (nameEnd < end && data[nameEnd] != 0) nameEnd++;
+			if (nameEnd == currentIndex || nameEnd >= end) return null;
+
+			// Find the end of the option value
+			int valueEnd = nameEnd + 1;
+			while (valueEnd < end && data[valueEnd] != 0) valueEnd++;
+			if (valueEnd >= end) return null;
+
+			String name = new String(data, currentIndex, nameEnd - currentIndex).toLowerCase();
+			String value = new String(data, nameEnd + 1, valueEnd - nameEnd - 1);
+			options.put(name, value);
+			currentIndex = valueEnd + 1;
+		}
+		return options;
+	}
+
 	/**
 	 * Verify validity of REQUEST PACKET and populates errorMessage[0] is an error occurs
 	 * 
@@ -553,7 +750,7 @@ public class TFTP {
 	{
 		// Stores the data that we are checking against
 		byte data[] = packet.getData();
-		int dataLength = data.length;
+		int dataLength = packet.getLength();
 		CheckedOffset offset = new CheckedOffset(dataLength);
 
 		try
@@ -566,7 +763,7 @@ public class TFTP {
 			}
 
 			// Check if first byte is 0
-			if (data[offset.getOffset()] != 0)
+			if (offset.read(data) != 0)
 			{
 				errorMessage[0] = "First byte is not 0";
 				return false;
@@ -574,7 +771,7 @@ public class TFTP {
 			offset.incrementOffset(1);
 
 			// Check if next byte is READ_OP_CODE or WRITE_OP_CODE
-			if (data[offset.getOffset()] != READ_OP_CODE && data[offset.getOffset()] != WRITE_OP_CODE)
+			if (offset.read(data) != READ_OP_CODE && offset.read(data) != WRITE_OP_CODE)
 			{
 				errorMessage[0] = "Invalid op code";
 				return false;
@@ -583,7 +780,7 @@ public class TFTP {
 
 			// Check for text data (file name)
 			int fileNameStartOffset = offset.getOffset();
-			while (data[offset.getOffset()] != 0)
+			while (offset.read(data) != 0)
 			{
 				offset.incrementOffset(1);
 			}
@@ -599,7 +796,7 @@ public class TFTP {
 			}
 
 			// Check if next byte is 0
-			if (data[offset.getOffset()] != 0)
+			if (offset.read(data) != 0)
 			{
 				errorMessage[0] = "Missing 0 byte separating file name and mode";
 				return false;
@@ -610,7 +807,7 @@ public class TFTP {
 			int modeStartOffset = offset.getOffset();
 			try
 			{
-				while (data[offset.getOffset()] != 0)
+				while (offset.read(data) != 0)
 				{
 					offset.incrementOffset(1);
 				}
@@ -645,15 +842,15 @@ public class TFTP {
 			}
 
 			// Check if next byte is 0
-			if (data[offset.getOffset()] != 0)
+			if (offset.read(data) != 0)
 			{
 				errorMessage[0] = "Missing final 0 byte";
 				return false;
 			}
 			offset.incrementOffset(1);
 
-			// Check if the final position of the offset is at the last data byte
-			if (offset.getOffset() != dataLength)
+			// Anything after the final 0 byte must be a list of options (RFC 2347)
+			if (offset.getOffset() != dataLength && parseOptions(data, offset.getOffset(), dataLength) == null)
 			{
 				errorMessage[0] = "No termination after final 0 byte";
 				return false;
@@ -668,6 +865,51 @@ public class TFTP {
 		}
 	}
 
+	/**
+	 * Verify validity of OACK PACKET and populates errorMessage[0] is an error occurs
+	 * 
+	 * @param packet TFTP OACK packet
+	 * @param errorMessage String[] which is populated with error message if invalid (index 0)
+	 * 
+	 * @return Returns true if OACK packet matches TFTP specifications
+	 */
+	public static boolean verifyOACKPacket(DatagramPacket packet, String[] errorMessage)
+	{
+		// Stores the data that we are checking against
+		byte data[] = packet.getData();
+		int dataLength = packet.getLength();
+
+		// Check if the packet holds at least an op code and one option
+		if (dataLength < OP_CODE_SIZE + 4)
+		{
+			errorMessage[0] = "Packet too small";
+			return false;
+		}
+
+		// Check if first byte is 0
+		if (data[0] != 0)
+		{
+			errorMessage[0] = "First byte is not 0";
+			return false;
+		}
+
+		// Check if next byte is OACK_OP_CODE
+		if (data[1] != OACK_OP_CODE)
+		{
+			errorMessage[0] = "Invalid op code";
+			return false;
+		}
+
+		// Check that the rest of the packet is a list of options
+		if (parseOptions(data, OP_CODE_SIZE, dataLength) == null)
+		{
+			errorMessage[0] = "Malformed option";
+			return false;
+		}
+
+		return true;
+	}
+
 	/**
 	 * Verify validity of DATA PACKET and populates errorMessage[0] is an error occurs
 	 * 
@@ -677,25 +919,40 @@ public class TFTP {
 	 * @return Returns true if DATA packet matches TFTP specifications
 	 */
 	public static boolean verifyDataPacket(DatagramPacket packet, int blockNumber, String[] errorMessage)
+	{
+		return verifyDataPacket(packet, blockNumber, MAX_DATA_SIZE, errorMessage);
+	}
+
+	/**
+	 * Verify validity of DATA PACKET for a transfer with a negotiated block size and
+	 * populates errorMessage[0] is an error occurs
+	 * 
+	 * @param packet TFTP DATA packet
+	 * @param blockSize Negotiated block size of the transfer
+	 * @param errorMessage String[] which is populated with error message if invalid (index 0)
+	 * 
+	 * @return Returns true if DATA packet matches TFTP specifications
+	 */
+	public static boolean verifyDataPacket(DatagramPacket packet, int blockNumber, int blockSize, String[] errorMessage)
 	{
 		assert((blockNumber >= 0) && (blockNumber <= MAX_BLOCK_NUMBER));
 
 		// Stores the data that we are checking against
 		byte data[] = packet.getData();
-		int dataLength = data.length;
+		int dataLength = packet.getLength();
 		CheckedOffset offset = new CheckedOffset(dataLength);
 
 		try
 		{
 			// Check if the data packet is a valid size
-			if (dataLength > MAX_PACKET_SIZE)
+			if (dataLength > OP_CODE_SIZE + BLOCK_NUMBER_SIZE + blockSize)
 			{
 				errorMessage[0] = "Packet too large";
 				return false;
 			}
 
 			// Check if first byte is 0
-			if (data[offset.getOffset()] != 0)
+			if (offset.read(data) != 0)
 			{
 				errorMessage[0] = "First byte is not 0";
 				return false;
@@ -703,7 +960,7 @@ public class TFTP {
 			offset.incrementOffset(1);
 
 			// Check if next byte is OPCODE_DATA
-			if (data[offset.getOffset()] != DATA_OP_CODE)
+			if (offset.read(data) != DATA_OP_CODE)
 			{
 				errorMessage[0] = "Invalid op code";
 				return false;
@@ -711,9 +968,9 @@ public class TFTP {
 			offset.incrementOffset(1);
 
 			// Saves the next two bytes
-			byte msb_blockNumber = data[offset.getOffset()];
+			byte msb_blockNumber = offset.read(data);
 			offset.incrementOffset(1);
-			byte lsb_blockNumber = data[offset.getOffset()];
+			byte lsb_blockNumber = offset.read(data);
 			offset.incrementOffset(1);
 
 			// Converts the saved two bytes into an int
@@ -750,7 +1007,7 @@ public class TFTP {
 
 		// Stores the data that we are checking against
 		byte data[] = packet.getData();
-		int dataLength = data.length;
+		int dataLength = packet.getLength();
 		CheckedOffset offset = new CheckedOffset(dataLength);
 
 		try
@@ -770,7 +1027,7 @@ public class TFTP {
 			}
 
 			// Check if first byte is 0
-			if (data[offset.getOffset()] != 0)
+			if (offset.read(data) != 0)
 			{
 				errorMessage[0] = "First byte is not 0";
 				return false;
@@ -778,7 +1035,7 @@ public class TFTP {
 			offset.incrementOffset(1);
 
 			// Check if next byte is OPCODE_ACK
-			if (data[offset.getOffset()] != ACK_OP_CODE)
+			if (offset.read(data) != ACK_OP_CODE)
 			{
 				errorMessage[0] = "Invalid op code";
 				return false;
@@ -786,9 +1043,9 @@ public class TFTP {
 			offset.incrementOffset(1);
 
 			// Saves the next two bytes
-			byte msb_blockNumber = data[offset.getOffset()];
+			byte msb_blockNumber = offset.read(data);
 			offset.incrementOffset(1);
-			byte lsb_blockNumber = data[offset.getOffset()];
+			byte lsb_blockNumber = offset.read(data);
 			offset.incrementOffset(1);
 
 			// Converts the saved two bytes into an int
@@ -823,13 +1080,13 @@ public class TFTP {
 	{
 		// Stores the data that we are checking against
 		byte data[] = packet.getData();
-		int dataLength = data.length;
+		int dataLength = packet.getLength();
 		CheckedOffset offset = new CheckedOffset(dataLength);
 
 		try
 		{
 			// Check if first byte is 0
-			if (data[offset.getOffset()] != 0)
+			if (offset.read(data) != 0)
 			{
 				errorMessage[0] = "First byte is not 0";
 				return false;
@@ -837,7 +1094,7 @@ public class TFTP {
 			offset.incrementOffset(1);
 
 			// Check if next byte is OPCODE_ERROR
-			if (data[offset.getOffset()] != ERROR_OP_CODE)
+			if (offset.read(data) != ERROR_OP_CODE)
 			{
 				errorMessage[0] = "Invalid op code";
 				return false;
@@ -845,7 +1102,7 @@ public class TFTP {
 			offset.incrementOffset(1);
 
 			// Check if next byte is 0
-			if (data[offset.getOffset()] != 0)
+			if (offset.read(data) != 0)
 			{
 				errorMessage[0] = "Missing 0 byte separating op code and error code";
 				return false;
@@ -853,8 +1110,8 @@ public class TFTP {
 			offset.incrementOffset(1);
 
 			// Check if next byte is a valid error code
-			if ((data[offset.getOffset()] < ERROR_CODE_NOT_DEFINED) ||
-				(data[offset.getOffset()] > ERROR_CODE_NO_SUCH_USER))
+			if ((offset.read(data) < ERROR_CODE_NOT_DEFINED) ||
+				(offset.read(data) > ERROR_CODE_NO_SUCH_USER))
 			{
 				errorMessage[0] = "Invalid error code";
 				return false;
@@ -864,7 +1121,7 @@ public class TFTP {
 			// Check for text data (message)
 			try
 			{
-				while (data[offset.getOffset()] != 0)
+				while (offset.read(data) != 0)
 				{
 					offset.incrementOffset(1);
 				}
@@ -876,7 +1133,7 @@ public class TFTP {
 			}
 
 			// Check if last byte is 0
-			if (data[offset.getOffset()] != 0)
+			if (offset.read(data) != 0)
 			{
 				errorMessage[0] = "Missing final 0 byte";
 				return false;
@@ -946,7 +1203,7 @@ public class TFTP {
 		int opCode = getOpCode(p);
 
 		// Get number of bytes used by packet data
-		int len = p.getData().length;
+		int len = p.getLength();
 		// Make copy of data bytes to parse
 		byte[] buf = new byte[len];
 		System.arraycopy(p.getData(),0,buf,0,len);
@@ -995,7 +1252,11 @@ public class TFTP {
 		System.arraycopy(buf,modeStartIndex,mbytes,0,modeLength);
 		m = new String(mbytes).trim();
 
-		return new Request(t, f, m);
+		// Get options, ignoring them if they are malformed
+		Map<String, String> options = parseOptions(buf, currentIndex + 1, len);
+		if (options == null) options = new LinkedHashMap<String, String>();
+
+		return new Request(t, f, m, options);
 	}
 
 	/**
@@ -1135,6 +1396,38 @@ public class TFTP {
 		return port >= MIN_PORT && port <= MAX_PORT;
 	}
 
+	/**
+	 * @return true if several sockets can be bound to one port with SO_REUSEPORT
+	 */
+	public static boolean isReusePortAvailable() {
+		try (DatagramChannel channel = DatagramChannel.open()) {
+			return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Opens a socket bound to port with SO_REUSEPORT set, so that other sockets opened
+	 * the same way can bind to the port too and share the packets arriving on it.
+	 * 
+	 * @param port Port to bind to, or 0 for any free port
+	 * 
+	 * @return Blocking DatagramSocket bound to port
+	 * @throws IOException if the socket could not be opened or bound
+	 */
+	public static DatagramSocket openReusePortSocket(int port) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			channel.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel.socket();
+	}
+
 	/**
 	 * Truncates data buffer to fit data length of received packet
 	 * 
@@ -1148,12 +1441,25 @@ public class TFTP {
 	}
 
 	/**
-	 * Outputs contents of DatagramPacket based on the VERBOSITY level
+	 * Logs the contents of DatagramPacket at trace level, with the detail given by the
+	 * VERBOSITY level. Nothing is built unless trace is enabled.
 	 * 
 	 * @param packet A TFTP DatagramPacket
 	 */
 	public static void printPacket(DatagramPacket packet) {
-				int operation = getOpCode(packet);
+		if (Log.isTraceEnabled()) Log.trace(describePacket(packet));
+	}
+
+	/**
+	 * Describes the contents of DatagramPacket based on the VERBOSITY level
+	 * 
+	 * @param packet A TFTP DatagramPacket
+	 * 
+	 * @return Description of the packet, one line per field
+	 */
+	public static String describePacket(DatagramPacket packet) {
+		StringBuilder sb = new StringBuilder();
+		int operation = getOpCode(packet);
 		if (VERBOSITY == 1)
 		{
 			switch(operation)
@@ -1162,54 +1468,62 @@ public class TFTP {
 				case WRITE_OP_CODE:
 					Request request = parseRQ(packet);
 					if (request == null) {
-						System.out.println("Could not print malformed packet.");
-						return;
+						sb.append("Could not print malformed packet.").append("\n");
+						return sb.toString();
 					}
-					try { System.out.println(opCodeToString(operation) + " Request packet for file: " + parseRQ(packet).getFileName() + "\n"); }
-					catch (ArrayIndexOutOfBoundsException e) { System.out.println("Unknown Read/Write request packet received\n"); }
+					try { sb.append(opCodeToString(operation) + " Request packet for file: " + parseRQ(packet).getFileName()).append("\n\n"); }
+					catch (ArrayIndexOutOfBoundsException e) { sb.append("Unknown Read/Write request packet received").append("\n\n"); }
 					break;
 				case DATA_OP_CODE:
 				case ACK_OP_CODE:
-					try { System.out.println(opCodeToString(operation) + " packet for block#: " + getBlockNumber(packet) + "\n"); }
-					catch (ArrayIndexOutOfBoundsException e) { System.out.println("Unknown DATA/ACK packet received\n"); }
+					try { sb.append(opCodeToString(operation) + " packet for block#: " + getBlockNumber(packet)).append("\n\n"); }
+					catch (ArrayIndexOutOfBoundsException e) { sb.append("Unknown DATA/ACK packet received").append("\n\n"); }
 					break;
 				case ERROR_OP_CODE:
-					try { System.out.println(opCodeToString(operation) + " packet with message: " + getErrorMessage(packet) + "\n"); }
-					catch (ArrayIndexOutOfBoundsException e) { System.out.println("Unknown ERROR packet received\n"); }
+					try { sb.append(opCodeToString(operation) + " packet with message: " + getErrorMessage(packet)).append("\n\n"); }
+					catch (ArrayIndexOutOfBoundsException e) { sb.append("Unknown ERROR packet received").append("\n\n"); }
+					break;
+				case OACK_OP_CODE:
+					try { sb.append(opCodeToString(operation) + " packet with options: " + getOptions(packet)).append("\n\n"); }
+					catch (IllegalArgumentException e) { sb.append("Unknown OACK packet received").append("\n\n"); }
 					break;
 				default:
 					//throw new UnsupportedOperationException();
 					break;
 			}
-			return;
+			return sb.toString();
 		}
 		if (VERBOSITY >= 2)
 		{
-			System.out.println("===== Packet Info =====");
-			System.out.println("Port = " + packet.getPort());
-			try { System.out.println("Type = " + opCodeToString(operation)); }
-			catch (UnsupportedOperationException e) { System.out.println("Type = Unknown"); }
+			sb.append("===== Packet Info =====").append("\n");
+			sb.append("Port = " + packet.getPort()).append("\n");
+			try { sb.append("Type = " + opCodeToString(operation)).append("\n"); }
+			catch (UnsupportedOperationException e) { sb.append("Type = Unknown").append("\n"); }
 			switch(operation)
 			{
 				case READ_OP_CODE:
 				case WRITE_OP_CODE:
 					Request request = parseRQ(packet);
 					if (request == null) {
-						System.out.println("Could not print malformed packet.");
-						return;
+						sb.append("Could not print malformed packet.").append("\n");
+						return sb.toString();
 					}
-					try { System.out.println("File name = " + parseRQ(packet).getFileName()); }
-					catch (ArrayIndexOutOfBoundsException e) { System.out.println("File name = Unknown"); }
-					try { System.out.println("Mode = " + parseRQ(packet).getMode()); }
-					catch (ArrayIndexOutOfBoundsException e) { System.out.println("Mode = Unknown"); }
+					try { sb.append("File name = " + parseRQ(packet).getFileName()).append("\n"); }
+					catch (ArrayIndexOutOfBoundsException e) { sb.append("File name = Unknown").append("\n"); }
+					try { sb.append("Mode = " + parseRQ(packet).getMode()).append("\n"); }
+					catch (ArrayIndexOutOfBoundsException e) { sb.append("Mode = Unknown").append("\n"); }
 					break;
 				case DATA_OP_CODE:
 				case ACK_OP_CODE:
-					System.out.println("Block # = " + getBlockNumber(packet));
+					sb.append("Block # = " + getBlockNumber(packet)).append("\n");
 					break;
 				case ERROR_OP_CODE:
-					try { System.out.println("Error message = " + getErrorMessage(packet)); }
-					catch (ArrayIndexOutOfBoundsException e) { System.out.println("Error message = Unknown"); }
+					try { sb.append("Error message = " + getErrorMessage(packet)).append("\n"); }
+					catch (ArrayIndexOutOfBoundsException e) { sb.append("Error message = Unknown").append("\n"); }
+					break;
+				case OACK_OP_CODE:
+					try { sb.append("Options = " + getOptions(packet)).append("\n"); }
+					catch (IllegalArgumentException e) { sb.append("Options = Unknown").append("\n"); }
 					break;
 				default:
 					//throw new UnsupportedOperationException();
@@ -1218,10 +1532,10 @@ public class TFTP {
 		}
 		if (VERBOSITY >= 3)
 		{
-			//System.out.println("String = " + packet.getData().toString());
-			System.out.println("Data = " + Arrays.toString(packet.getData()));
+			//sb.append("String = " + packet.getData().toString()).append("\n");
+			sb.append("Data = " + Arrays.toString(packet.getData())).append("\n");
 		}
-		System.out.println("");
+		return sb.toString();
 	}
 
 	/**
@@ -1243,6 +1557,8 @@ public class TFTP {
 				return "ACK";
 			case ERROR_OP_CODE:
 				return "ERROR";
+			case OACK_OP_CODE:
+				return "OACK";
 			default:
 				throw new UnsupportedOperationException();
 		}
@@ -1270,6 +1586,19 @@ public class TFTP {
 			return offset;
 		}
 
+		/**
+		 * Reads the byte at the offset, which must be within the bound. This keeps a
+		 * packet that was not shrunk from being read past its length.
+		 */
+		public byte read(byte[] data)
+		{
+			if (offset >= upperBound)
+			{
+				throw new IndexOutOfBoundsException();
+			}
+			return data[offset];
+		}
+
 		public void incrementOffset(int increment)
 		{
 			assert(increment >= 0);
@@ -0,0 +1,194 @@
+package tftp;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+/**
+ * Client for programs that transfer files with a server themselves rather than through
+ * the prompts of the Client. get and put return at once with a CompletableFuture, which
+ * completes with a TransferResult, or exceptionally with an IOException giving the reason
+ * the transfer failed. A file can be read from or written to disk, or streamed from or to
+ * a channel without a copy of it on disk.
+ *
+ * A TftpClient can be shared by any number of threads. Up to maxTransfers transfers run
+ * at once, each on a new socket and TID (RFC 1350), and the rest wait their turn. Every
+ * transfer is in octet mode, asks for the options given to the constructor and exchanges
+ * the size of the file (RFC 2349), except when writing a stream. close must be called
+ * once the client is no longer needed, to stop its threads. Messages of the transfers go
+ * to Log, so Log.setLevel(Log.Level.WARN) leaves only warnings and errors.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class TftpClient {
+	public static final int DEFAULT_PORT = 69;
+	private static final int RESEND_LIMIT = 3;	// Maximum number of times to resend a packet without response
+
+	private InetAddress serverAddr;
+	private int serverPort;
+	private TransferOptions options;	// Options requested for every transfer, only read once given
+	private ExecutorService executor;
+	private volatile boolean resume;	// Whether transfers of files on disk carry on from where earlier ones stopped
+
+	/**
+	 * Constructor of the TftpClient class, which starts the threads of the transfers.
+	 *
+	 * @param serverAddr Address of the server
+	 * @param serverPort Port the server listens for requests on
+	 * @param options Options to request for every transfer, which must not be changed
+	 * afterwards, or null for none
+	 * @param maxTransfers Maximum number of transfers running at once
+	 */
+	public TftpClient(InetAddress serverAddr, int serverPort, TransferOptions options, int maxTransfers) {
+		if (!TFTP.isValidPort(serverPort) || maxTransfers < 1) throw new IllegalArgumentException();
+		this.serverAddr = serverAddr;
+		this.serverPort = serverPort;
+		this.options = options != null ? options : new TransferOptions();
+		this.executor = TransferExecutors.createFixed(maxTransfers, "TftpClient");
+	}
+
+	/**
+	 * Makes the transfers of files on disk queued from now on resumable with the offset
+	 * option: a read that fails keeps what it received, and the next read or write of the
+	 * file carries on from where the last one stopped.
+	 *
+	 * @param resume Whether to resume transfers
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * Reads a file from the server. The file is written under a temporary name and only
+	 * replaces filePath once it is complete.
+	 *
+	 * @param fileName Name of the file on the server
+	 * @param filePath Path the file is written to
+	 *
+	 * @return Future of the result of the transfer
+	 */
+	public CompletableFuture<TransferResult> get(String fileName, String filePath) {
+		return submit(Request.Type.READ, fileName, filePath, null);
+	}
+
+	/**
+	 * Reads a file from the server into a stream, writing each block as it arrives. If the
+	 * transfer fails, part of the file has already been written.
+	 *
+	 * @param fileName Name of the file on the server
+	 * @param out Blocking channel the file is written to, which is left open
+	 *
+	 * @return Future of the result of the transfer
+	 */
+	public CompletableFuture<TransferResult> get(String fileName, WritableByteChannel out) {
+		if (out == null) throw new IllegalArgumentException();
+		return submit(Request.Type.READ, fileName, null, out);
+	}
+
+	/**
+	 * Writes a file to the server.
+	 *
+	 * @param filePath Path of the file to send
+	 * @param fileName Name of the file on the server
+	 *
+	 * @return Future of the result of the transfer
+	 */
+	public CompletableFuture<TransferResult> put(String filePath, String fileName) {
+		return submit(Request.Type.WRITE, fileName, filePath, null);
+	}
+
+	/**
+	 * Writes a file read from a stream to the server. The stream is read up to its end.
+	 *
+	 * @param in Blocking channel the file is read from, which is left open
+	 * @param fileName Name of the file on the server
+	 *
+	 * @return Future of the result of the transfer
+	 */
+	public CompletableFuture<TransferResult> put(ReadableByteChannel in, String fileName) {
+		if (in == null) throw new IllegalArgumentException();
+		return submit(Request.Type.WRITE, fileName, null, in);
+	}
+
+	/**
+	 * Stops taking transfers. Transfers already started or waiting run to the end.
+	 */
+	public void close() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Queues a transfer.
+	 *
+	 * @param type READ or WRITE
+	 * @param fileName Name of the file on the server
+	 * @param filePath Path of the file on the client, or null to use channel
+	 * @param channel Stream of the file when filePath is null
+	 *
+	 * @return Future of the result of the transfer
+	 */
+	private CompletableFuture<TransferResult> submit(final Request.Type type, final String fileName, final String filePath, final Channel channel) {
+		if (!TFTP.isPathless(fileName)) throw new IllegalArgumentException("File names must not contain a path: " + fileName);
+		final boolean resumable = resume;
+		return CompletableFuture.supplyAsync(new Supplier<TransferResult>() {
+			public TransferResult get() {
+				try {
+					return transfer(type, fileName, filePath, channel, resumable);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}
+		}, executor);
+	}
+
+	/**
+	 * Runs a transfer on a new socket. A socket is never used for a second transfer, since
+	 * packets of the last one can still be on their way after it ends, such as the last
+	 * DATA packet of a read sent again when the final ACK was lost, and would be taken for
+	 * the first reply of the next.
+	 *
+	 * @param type READ or WRITE
+	 * @param fileName Name of the file on the server
+	 * @param filePath Path of the file on the client, or null to use channel
+	 * @param channel Stream of the file when filePath is null
+	 * @param resumable Whether to carry on from where an earlier transfer of the file stopped
+	 *
+	 * @return Result of the completed transfer
+	 * @throws IOException if the transfer failed, with the reason as its message
+	 */
+	private TransferResult transfer(Request.Type type, String fileName, String filePath, Channel channel, boolean resumable) throws IOException {
+		if (type == Request.Type.WRITE && filePath != null && (!TFTP.fileExists(filePath) || TFTP.isDirectory(filePath) || !TFTP.isReadable(filePath))) {
+			throw new FileNotFoundException(filePath);
+		}
+
+		long start = System.nanoTime();
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			ClientTransfer transfer = new ClientTransfer(socket, serverAddr, serverPort, options, true, false, RESEND_LIMIT);
+			transfer.setResume(resumable);
+			boolean complete;
+			if (type == Request.Type.READ && filePath != null) {
+				complete = transfer.read(fileName, filePath, TFTP.MODE_OCTET);
+			} else if (type == Request.Type.READ) {
+				complete = transfer.read(fileName, (WritableByteChannel) channel, TFTP.MODE_OCTET);
+			} else if (filePath != null) {
+				complete = transfer.write(filePath, fileName, TFTP.MODE_OCTET);
+			} else {
+				complete = transfer.write((ReadableByteChannel) channel, fileName, TFTP.MODE_OCTET);
+			}
+			if (!complete) throw new IOException(type + " \"" + fileName + "\" failed: " + transfer.getFailure());
+			return new TransferResult(type, fileName, transfer.getBytes(), System.nanoTime() - start, transfer.getRetransmits());
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package tftp;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run the per-transfer handlers of the server and the error
+ * simulator. In platform mode each handler runs on its own platform thread, as before.
+ * In virtual mode each handler runs on a virtual thread, so a transfer parked on a
+ * socket receive does not hold an operating system thread.
+ * 
+ * Virtual threads are looked up through reflection so that the project still builds and
+ * runs on releases without them, in which case platform threads are used instead.
+ * 
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class TransferExecutors {
+	public static final String MODE_PLATFORM = "platform";
+	public static final String MODE_VIRTUAL = "virtual";
+
+	/**
+	 * Creates an executor that runs each task on its own thread of the given mode.
+	 * 
+	 * @param mode MODE_PLATFORM or MODE_VIRTUAL
+	 * @param threadName Prefix of the names of the threads
+	 * 
+	 * @return ExecutorService for the handlers
+	 */
+	public static ExecutorService create(String mode, String threadName) {
+		if (!isValidMode(mode)) throw new IllegalArgumentException("Unknown thread mode " + mode);
+
+		if (mode.equals(MODE_VIRTUAL)) {
+			ExecutorService executor = newVirtualThreadExecutor(threadName);
+			if (executor != null) return executor;
+			Log.warn("Virtual threads are not available on this Java version. Using platform threads.");
+		}
+		return Executors.newCachedThreadPool(newPlatformThreadFactory(threadName));
+	}
+
+	/**
+	 * Creates an executor that runs at most threads tasks at once on platform threads,
+	 * queueing the rest.
+	 * 
+	 * @param threads Number of threads
+	 * @param threadName Prefix of the names of the threads
+	 * 
+	 * @return ExecutorService with a fixed number of threads
+	 */
+	public static ExecutorService createFixed(int threads, String threadName) {
+		return Executors.newFixedThreadPool(threads, newPlatformThreadFactory(threadName));
+	}
+
+	/**
+	 * @param mode Thread mode given on the command line
+	 * 
+	 * @return true if mode is MODE_PLATFORM or MODE_VIRTUAL
+	 */
+	public static boolean isValidMode(String mode) {
+		return MODE_PLATFORM.equals(mode) || MODE_VIRTUAL.equals(mode);
+	}
+
+	/**
+	 * @return true if this Java version can run tasks on virtual threads
+	 */
+	public static boolean isVirtualThreadAvailable() {
+		ExecutorService executor = newVirtualThreadExecutor("Probe");
+		if (executor == null) return false;
+		executor.shutdown();
+		return true;
+	}
+
+	/**
+	 * @param threadName Prefix of the names of the threads
+	 * 
+	 * @return ThreadFactory creating numbered platform threads
+	 */
+	private static ThreadFactory newPlatformThreadFactory(final String threadName) {
+		return new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				return new Thread(r, threadName + "-" + count.getAndIncrement());
+			}
+		};
+	}
+
+	/**
+	 * Creates an executor with Executors.newThreadPerTaskExecutor(Thread.ofVirtual()...).
+	 * 
+	 * @param threadName Prefix of the names of the threads
+	 * 
+	 * @return ExecutorService running each task on a virtual thread, or null if virtual
+	 * threads are not available
+	 */
+	private static ExecutorService newVirtualThreadExecutor(String threadName) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, threadName + "-", 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
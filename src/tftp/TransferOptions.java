@@ -0,0 +1,316 @@
+package tftp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parameters of a single transfer that can be negotiated with TFTP options
+ * (RFC 2347). Each parameter starts out at the value used when the option is not
+ * negotiated, so a transfer without options behaves as plain RFC 1350 TFTP.
+ * 
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class TransferOptions {
+	// Largest window the server agrees to, which bounds the blocks it keeps for retransmission
+	public static final int MAX_ACCEPTED_WINDOW_SIZE = 64;
+
+	private int blockSize;
+	private int windowSize;
+	private int timeout;		// Retransmission timeout in seconds, or 0 to measure it from the RTT
+	private long transferSize;	// Size of the file in bytes, or -1 if it is not known
+	private long offset;		// Byte of the file that block 1 starts at, or -1 if not negotiated
+
+	/**
+	 * Constructor of the TransferOptions class, initialize every parameter to its default.
+	 */
+	public TransferOptions() {
+		blockSize = TFTP.MAX_DATA_SIZE;
+		windowSize = 1;
+		timeout = 0;
+		transferSize = -1;
+		offset = -1;
+	}
+
+	/**
+	 * Adds an option to the request for each parameter that differs from its default.
+	 * 
+	 * @param r Request to add the options to
+	 */
+	public void addTo(Request r) {
+		if (blockSize != TFTP.MAX_DATA_SIZE) r.setOption(TFTP.OPTION_BLKSIZE, Integer.toString(blockSize));
+		if (windowSize != 1) r.setOption(TFTP.OPTION_WINDOWSIZE, Integer.toString(windowSize));
+		if (timeout != 0) r.setOption(TFTP.OPTION_TIMEOUT, Integer.toString(timeout));
+		if (transferSize >= 0) r.setOption(TFTP.OPTION_TSIZE, Long.toString(transferSize));
+		if (offset >= 0) r.setOption(TFTP.OPTION_OFFSET, Long.toString(offset));
+	}
+
+	/**
+	 * Used by the server to accept the options of a request. Parameters are updated
+	 * for each supported option. Unknown options and options with unusable values are
+	 * ignored, as allowed by RFC 2347.
+	 * 
+	 * The transfer size and offset are recorded but not accepted yet, since the server only
+	 * knows the values to answer with once it has checked the file; see acceptTransferSize
+	 * and acceptOffset.
+	 * 
+	 * @param requested Options of the request
+	 * 
+	 * @return Options accepted, to be acknowledged in an OACK. Empty if none were accepted.
+	 */
+	public Map<String, String> accept(Map<String, String> requested) {
+		Map<String, String> accepted = new LinkedHashMap<String, String>();
+
+		// Block size (RFC 2348): the server may answer with a smaller size than requested
+		int requestedBlockSize = parseInt(requested.get(TFTP.OPTION_BLKSIZE));
+		if (requestedBlockSize >= TFTP.MIN_BLOCK_SIZE) {
+			blockSize = Math.min(requestedBlockSize, TFTP.MAX_BLOCK_SIZE);
+			accepted.put(TFTP.OPTION_BLKSIZE, Integer.toString(blockSize));
+		}
+
+		// Window size (RFC 7440): the server may answer with a smaller window than requested
+		int requestedWindowSize = parseInt(requested.get(TFTP.OPTION_WINDOWSIZE));
+		if (requestedWindowSize >= TFTP.MIN_WINDOW_SIZE && requestedWindowSize <= TFTP.MAX_WINDOW_SIZE) {
+			windowSize = Math.min(requestedWindowSize, MAX_ACCEPTED_WINDOW_SIZE);
+			accepted.put(TFTP.OPTION_WINDOWSIZE, Integer.toString(windowSize));
+		}
+
+		// Timeout (RFC 2349): the server must use the value requested or ignore the option
+		int requestedTimeout = parseInt(requested.get(TFTP.OPTION_TIMEOUT));
+		if (requestedTimeout >= TFTP.MIN_TIMEOUT && requestedTimeout <= TFTP.MAX_TIMEOUT) {
+			timeout = requestedTimeout;
+			accepted.put(TFTP.OPTION_TIMEOUT, Integer.toString(timeout));
+		}
+
+		// Transfer size (RFC 2349): the size of the file for a WRQ, 0 for a RRQ
+		transferSize = parseLong(requested.get(TFTP.OPTION_TSIZE));
+
+		// Offset: where a RRQ resumes the file, 0 for a WRQ
+		offset = parseLong(requested.get(TFTP.OPTION_OFFSET));
+
+		return accepted;
+	}
+
+	/**
+	 * Used by the server to accept the transfer size requested, answering with the size
+	 * of the file.
+	 * 
+	 * @param accepted Options accepted so far, to which the transfer size is added
+	 * @param size Size of the file in bytes
+	 */
+	public void acceptTransferSize(Map<String, String> accepted, long size) {
+		transferSize = size;
+		accepted.put(TFTP.OPTION_TSIZE, Long.toString(size));
+	}
+
+	/**
+	 * Used by the server to accept the offset requested. A RRQ is answered with the offset
+	 * requested, if the file is at least that long, and a WRQ with the length of the
+	 * partial file kept from an earlier attempt, which the client resumes from.
+	 * 
+	 * @param accepted Options accepted so far, to which the offset is added
+	 * @param offset Byte of the file that block 1 starts at
+	 */
+	public void acceptOffset(Map<String, String> accepted, long offset) {
+		this.offset = offset;
+		accepted.put(TFTP.OPTION_OFFSET, Long.toString(offset));
+	}
+
+	/**
+	 * Used by the client to apply the options acknowledged in an OACK from the server
+	 * and populates errorMessage[0] if the OACK cannot be accepted.
+	 * 
+	 * @param requested Options sent in the request
+	 * @param acknowledged Options acknowledged by the server
+	 * @param errorMessage String[] which is populated with error message if invalid (index 0)
+	 * 
+	 * @return true if every acknowledged option was requested and has an acceptable value
+	 */
+	public boolean applyOACK(Map<String, String> requested, Map<String, String> acknowledged, String[] errorMessage) {
+		for (String name : acknowledged.keySet()) {
+			if (!requested.containsKey(name)) {
+				errorMessage[0] = "Option " + name + " was not requested";
+				return false;
+			}
+		}
+
+		// Block size must be no larger than requested
+		if (acknowledged.containsKey(TFTP.OPTION_BLKSIZE)) {
+			int ackBlockSize = parseInt(acknowledged.get(TFTP.OPTION_BLKSIZE));
+			if (ackBlockSize < TFTP.MIN_BLOCK_SIZE || ackBlockSize > parseInt(requested.get(TFTP.OPTION_BLKSIZE))) {
+				errorMessage[0] = "Invalid blksize " + acknowledged.get(TFTP.OPTION_BLKSIZE);
+				return false;
+			}
+			blockSize = ackBlockSize;
+		}
+
+		// Window size must be no larger than requested
+		if (acknowledged.containsKey(TFTP.OPTION_WINDOWSIZE)) {
+			int ackWindowSize = parseInt(acknowledged.get(TFTP.OPTION_WINDOWSIZE));
+			if (ackWindowSize < TFTP.MIN_WINDOW_SIZE || ackWindowSize > parseInt(requested.get(TFTP.OPTION_WINDOWSIZE))) {
+				errorMessage[0] = "Invalid windowsize " + acknowledged.get(TFTP.OPTION_WINDOWSIZE);
+				return false;
+			}
+			windowSize = ackWindowSize;
+		}
+
+		// Timeout must be the value requested
+		if (acknowledged.containsKey(TFTP.OPTION_TIMEOUT)) {
+			int ackTimeout = parseInt(acknowledged.get(TFTP.OPTION_TIMEOUT));
+			if (ackTimeout != parseInt(requested.get(TFTP.OPTION_TIMEOUT))) {
+				errorMessage[0] = "Invalid timeout " + acknowledged.get(TFTP.OPTION_TIMEOUT);
+				return false;
+			}
+			timeout = ackTimeout;
+		}
+
+		// Transfer size must be a size
+		if (acknowledged.containsKey(TFTP.OPTION_TSIZE)) {
+			long ackTransferSize = parseLong(acknowledged.get(TFTP.OPTION_TSIZE));
+			if (ackTransferSize < 0) {
+				errorMessage[0] = "Invalid tsize " + acknowledged.get(TFTP.OPTION_TSIZE);
+				return false;
+			}
+			transferSize = ackTransferSize;
+		}
+
+		// Offset must be a size, and the offset requested unless the server was asked for it
+		if (acknowledged.containsKey(TFTP.OPTION_OFFSET)) {
+			long ackOffset = parseLong(acknowledged.get(TFTP.OPTION_OFFSET));
+			long requestedOffset = parseLong(requested.get(TFTP.OPTION_OFFSET));
+			if (ackOffset < 0 || (requestedOffset != 0 && ackOffset != requestedOffset)) {
+				errorMessage[0] = "Invalid offset " + acknowledged.get(TFTP.OPTION_OFFSET);
+				return false;
+			}
+			offset = ackOffset;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return Number of data bytes in a full DATA block
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @param blockSize Number of data bytes in a full DATA block
+	 */
+	public void setBlockSize(int blockSize) {
+		if (blockSize < TFTP.MIN_BLOCK_SIZE || blockSize > TFTP.MAX_BLOCK_SIZE) throw new IllegalArgumentException();
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return Number of DATA blocks sent before waiting for an ACK
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * @param windowSize Number of DATA blocks sent before waiting for an ACK
+	 */
+	public void setWindowSize(int windowSize) {
+		if (windowSize < TFTP.MIN_WINDOW_SIZE || windowSize > TFTP.MAX_WINDOW_SIZE) throw new IllegalArgumentException();
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * @return Retransmission timeout in seconds, or 0 if it is measured from the RTT
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @param timeout Retransmission timeout in seconds, or 0 to measure it from the RTT
+	 */
+	public void setTimeout(int timeout) {
+		if (timeout != 0 && (timeout < TFTP.MIN_TIMEOUT || timeout > TFTP.MAX_TIMEOUT)) throw new IllegalArgumentException();
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return Size of the file in bytes, or -1 if it is not known
+	 */
+	public long getTransferSize() {
+		return transferSize;
+	}
+
+	/**
+	 * @param transferSize Size of the file in bytes, 0 to ask the server for it in a RRQ,
+	 * or -1 if it is not known
+	 */
+	public void setTransferSize(long transferSize) {
+		if (transferSize < -1) throw new IllegalArgumentException();
+		this.transferSize = transferSize;
+	}
+
+	/**
+	 * @return Byte of the file that block 1 starts at, or -1 if no offset was negotiated
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @param offset Byte of the file to resume from, 0 to ask the server for it in a WRQ,
+	 * or -1 not to resume
+	 */
+	public void setOffset(long offset) {
+		if (offset < -1) throw new IllegalArgumentException();
+		this.offset = offset;
+	}
+
+	/**
+	 * Creates the estimator of the retransmission timeout of a transfer, which is fixed
+	 * if a timeout was negotiated.
+	 *
+	 * @return RttEstimator for one transfer
+	 */
+	public RttEstimator createRttEstimator() {
+		return timeout != 0 ? RttEstimator.fixed(timeout * 1000) : new RttEstimator();
+	}
+
+	/**
+	 * @return Size of a DATA packet holding a full block
+	 */
+	public int getPacketSize() {
+		return TFTP.OP_CODE_SIZE + TFTP.BLOCK_NUMBER_SIZE + blockSize;
+	}
+
+	/**
+	 * Parses an option value as a decimal number.
+	 * 
+	 * @param value Option value, may be null
+	 * 
+	 * @return The number, or -1 if value is missing or not a number
+	 */
+	private static int parseInt(String value) {
+		if (value == null) return -1;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Parses an option value as a decimal size.
+	 * 
+	 * @param value Option value, may be null
+	 * 
+	 * @return The size, or -1 if value is missing, negative or not a number
+	 */
+	private static long parseLong(String value) {
+		if (value == null) return -1;
+		try {
+			return Math.max(-1, Long.parseLong(value));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package tftp;
+
+/**
+ * Outcome of a transfer completed by a TftpClient.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class TransferResult {
+	private Request.Type type;
+	private String fileName;
+	private long bytes;
+	private long nanos;
+	private int retransmits;
+
+	/**
+	 * Constructor of the TransferResult class
+	 *
+	 * @param type READ or WRITE
+	 * @param fileName Name of the file on the server
+	 * @param bytes Size of the file transferred
+	 * @param nanos Time from the request to the end of the transfer, in nanoseconds
+	 * @param retransmits Packets sent again during the transfer, from ClientTransfer
+	 */
+	public TransferResult(Request.Type type, String fileName, long bytes, long nanos, int retransmits) {
+		this.type = type;
+		this.fileName = fileName;
+		this.bytes = bytes;
+		this.nanos = nanos;
+		this.retransmits = retransmits;
+	}
+
+	public Request.Type getType() {
+		return type;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	public int getRetransmits() {
+		return retransmits;
+	}
+
+	public String toString() {
+		return type + " \"" + fileName + "\": " + bytes + " bytes in " + String.format("%.1f", nanos / 1e6) + " ms, " + retransmits + " retransmit(s)";
+	}
+}
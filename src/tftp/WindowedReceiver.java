@@ -0,0 +1,406 @@
+package tftp;
+
+import java.io.IOException;
+import java.net.*;
+
+/**
+ * Receives the DATA blocks of a transfer and writes them to a BlockSink, sending one ACK
+ * for each window of blocks received in order (RFC 7440). With a window size of 1 every
+ * block is acknowledged, as in RFC 1350.
+ *
+ * When a block arrives after a missing one, the last block received in order is
+ * acknowledged so that the sender resends from the missing block. A duplicate of the last
+ * acknowledged block means that the ACK was lost, so it is acknowledged again.
+ *
+ * Until block 1 arrives, the ACK 0 or OACK that started the transfer may have been lost,
+ * so it is sent again on each timeout (RFC 1350). The server drops a request the client
+ * sends again while its transfer is active, so this is the only way a client whose ACK 0
+ * or OACK was lost hears back.
+ *
+ * A single packet is reused for every DATA packet received and another for every ACK
+ * sent, so a transfer in progress does not allocate a packet per block.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class WindowedReceiver {
+	private DatagramSocket socket;
+	private PacketOutput out;
+	private InetAddress replyAddr;
+	private int TID;
+	private TransferOptions options;
+	private int resendLimit;
+	private boolean verbose;
+	private String peer;
+	private ServerMetrics metrics;	// Counters of the server, or null
+	private DatagramPacket firstReply;	// ACK 0 or OACK sent to start the transfer, or null
+
+	private BlockSink sink;
+	private String fileName;
+	private String directory;
+	private int windowSize;
+	private long expected;				// Next block to write
+	private int receivedInWindow;		// Blocks written since the last ACK
+	private boolean gapAcknowledged;	// Set once a missing block has been reported
+	private long freeSpace;				// Free space last read from the file system, less the blocks written since
+	private DatagramPacket ackPacket;
+	private int timeouts;
+	private int retransmits;	// DATA packets received again after they were written
+	private boolean done;
+	private boolean complete;
+	private String[] errorMessage = new String[1];	// Why the last packet was not a valid DATA packet, kept to not make one per packet
+
+	/**
+	 * Constructor of the WindowedReceiver class for a blocking transfer over a socket.
+	 *
+	 * @param socket Socket of the transfer, with its timeout already set
+	 * @param replyAddr Address of the sender
+	 * @param TID Port of the sender
+	 * @param options Negotiated options of the transfer
+	 * @param resendLimit Maximum number of timeouts to wait for a DATA packet
+	 * @param verbose Whether to log the transfer, at the levels enabled in Log
+	 * @param peer Name of the sender used in messages ("client" or "server")
+	 */
+	public WindowedReceiver(final DatagramSocket socket, InetAddress replyAddr, int TID, TransferOptions options, int resendLimit, boolean verbose, String peer) {
+		this(new PacketOutput() {
+			public void send(DatagramPacket packet) throws IOException {
+				socket.send(packet);
+			}
+		}, replyAddr, TID, options, resendLimit, verbose, peer);
+		this.socket = socket;
+	}
+
+	/**
+	 * Constructor of the WindowedReceiver class for a transfer driven by its caller
+	 * through start, handlePacket and handleTimeout.
+	 *
+	 * @param out Output that packets are sent through
+	 * @param replyAddr Address of the sender
+	 * @param TID Port of the sender
+	 * @param options Negotiated options of the transfer
+	 * @param resendLimit Maximum number of timeouts to wait for a DATA packet
+	 * @param verbose Whether to log the transfer, at the levels enabled in Log
+	 * @param peer Name of the sender used in messages ("client" or "server")
+	 */
+	public WindowedReceiver(PacketOutput out, InetAddress replyAddr, int TID, TransferOptions options, int resendLimit, boolean verbose, String peer) {
+		this.out = out;
+		this.replyAddr = replyAddr;
+		this.TID = TID;
+		this.options = options;
+		this.resendLimit = resendLimit;
+		this.verbose = verbose;
+		this.peer = peer;
+	}
+
+	/**
+	 * Counts the blocks written, timeouts and ERROR packets of the transfer in the
+	 * metrics of the server.
+	 *
+	 * @param metrics ServerMetrics to update, or null
+	 */
+	public void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the ACK 0 or OACK sent to the sender to start the transfer, which is sent again
+	 * on each timeout until block 1 arrives.
+	 *
+	 * @param firstReply ACK 0 or OACK packet already sent, or null if the sender resends
+	 * its own packets until it hears back, as a server does
+	 */
+	public void setFirstReply(DatagramPacket firstReply) {
+		this.firstReply = firstReply;
+	}
+
+	/**
+	 * Receives every block of the file into sink and commits it once the last block has
+	 * been received. Only available when constructed with a socket.
+	 *
+	 * @param sink BlockSink that the file is written to
+	 * @param firstPacket DATA packet already received from the sender, or null
+	 * @param fileName Name of the file being received, used in ERROR packets
+	 * @param directory Directory the file is written to, used to check for free space, or
+	 * null if the file is not written to disk
+	 *
+	 * @return true if the transfer completed, false if it was aborted
+	 * @throws IOException if a packet could not be sent or the file could not be completed
+	 */
+	public boolean receive(BlockSink sink, DatagramPacket firstPacket, String fileName, String directory) throws IOException {
+		start(sink, firstPacket, fileName, directory);
+		DatagramPacket receivePacket = TFTP.formPacket(options.getBlockSize());
+		while (!done) {
+			// Wait for a DATA packet, letting the packet take up its whole buffer again
+			if (verbose) Log.trace("Waiting for DATA from %s...", peer);
+			receivePacket.setLength(receivePacket.getData().length);
+			socket.setSoTimeout(getTimeout());
+			try {
+				socket.receive(receivePacket);
+			} catch (SocketTimeoutException e) {
+				handleTimeout();
+				continue;
+			}
+			handlePacket(receivePacket);
+		}
+		return complete;
+	}
+
+	/**
+	 * Starts the transfer. The sender must already have been sent ACK 0 or the OACK.
+	 *
+	 * @param sink BlockSink that the file is written to
+	 * @param firstPacket DATA packet already received from the sender, or null
+	 * @param fileName Name of the file being received, used in ERROR packets
+	 * @param directory Directory the file is written to, used to check for free space, or
+	 * null if the file is not written to disk
+	 * @throws IOException if a packet could not be sent or the file could not be completed
+	 */
+	public void start(BlockSink sink, DatagramPacket firstPacket, String fileName, String directory) throws IOException {
+		this.sink = sink;
+		this.fileName = fileName;
+		this.directory = directory;
+		windowSize = options.getWindowSize();
+		expected = 1;
+		receivedInWindow = 0;
+		gapAcknowledged = false;
+		freeSpace = directory != null ? TFTP.getFreeSpaceOnFileSystem(directory) : Long.MAX_VALUE;
+		ackPacket = TFTP.formACKPacket(replyAddr, TID, 0);
+		timeouts = 0;
+		retransmits = 0;
+		done = false;
+		complete = false;
+
+		if (firstPacket != null) handlePacket(firstPacket);
+	}
+
+	/**
+	 * Handles a packet received from the sender: writes the block if it is the next one
+	 * expected and acknowledges it as needed.
+	 *
+	 * @param packet Packet received, which is not kept after the call
+	 * @throws IOException if a packet could not be sent or the file could not be completed
+	 */
+	public void handlePacket(DatagramPacket packet) throws IOException {
+		// Check if the address and port of the received packet match the TID
+		InetAddress packetAddress = packet.getAddress();
+		int packetPort = packet.getPort();
+		if (!(packetAddress.equals(replyAddr) && (packetPort == TID))) {
+			// Creates an "unknown TID" error packet
+			DatagramPacket errorPacket = TFTP.formERRORPacket(
+					packetAddress,
+					packetPort,
+					TFTP.ERROR_CODE_UNKNOWN_TID,
+					"The address and port of the packet does not match the TID of the ongoing transfer.");
+
+			// Sends error packet
+			out.send(errorPacket);
+			if (metrics != null) metrics.errorSent(TFTP.ERROR_CODE_UNKNOWN_TID);
+
+			// Echo error message
+			if (verbose) Log.info("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Received packet from an unknown host. Discarding packet and continuing transfer...\n");
+			return;
+		}
+
+		// This block is entered if the packet received is not a valid DATA packet
+		if (!TFTP.verifyDataPacket(packet, TFTP.MAX_BLOCK_NUMBER, options.getBlockSize(), errorMessage)) {
+			handleUnexpectedPacket(packet, errorMessage[0]);
+			finish(false);
+			return;
+		}
+		timeouts = 0;
+
+		// Find where the block is relative to the next block expected
+		int blockNumber = TFTP.getBlockNumber(packet);
+		long distance = (blockNumber - TFTP.blockIndexToBlockNumber(expected) + TFTP.MAX_BLOCK_NUMBER + 1) % (TFTP.MAX_BLOCK_NUMBER + 1);
+		if (distance > TFTP.MAX_BLOCK_NUMBER / 2) {
+			distance -= TFTP.MAX_BLOCK_NUMBER + 1;
+		}
+
+		// A block beyond the window can never be sent
+		if (distance >= windowSize) {
+			handleUnexpectedPacket(packet, "Invalid block number");
+			finish(false);
+			return;
+		}
+
+		// Echo successful data receive
+		if (verbose) Log.trace("DATA %d received.", blockNumber);
+
+		if (distance == 0) {
+			// Write the block straight to the file, unless it would not fit on the disk. The
+			// file system is only asked again once the space it last reported has been used.
+			int dataLength = packet.getLength() - TFTP.OP_CODE_SIZE - TFTP.BLOCK_NUMBER_SIZE;
+			if (dataLength > freeSpace) freeSpace = TFTP.getFreeSpaceOnFileSystem(directory);
+			boolean diskFull = dataLength > freeSpace;
+			if (!diskFull) {
+				try {
+					sink.write(packet.getData(), TFTP.OP_CODE_SIZE + TFTP.BLOCK_NUMBER_SIZE, dataLength);
+					freeSpace -= dataLength;
+					if (metrics != null) metrics.addBytesReceived(dataLength);
+				} catch (IOException e) {
+					diskFull = true;
+				}
+			}
+			if (diskFull) {
+				// Creates a "disk full" error packet
+				DatagramPacket errorPacket = TFTP.formERRORPacket(
+					replyAddr,
+					TID,
+					TFTP.ERROR_CODE_DISK_FULL,
+					"\"" + fileName + "\" could not be transferred because disk is full.");
+
+				// Sends error packet
+				out.send(errorPacket);
+				if (metrics != null) metrics.errorSent(TFTP.ERROR_CODE_DISK_FULL);
+
+				// Echo error message
+				if (verbose) Log.info("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_DISK_FULL + ": Disk full. Aborting transfer...\n");
+				finish(false);
+				return;
+			}
+			expected++;
+			receivedInWindow++;
+			gapAcknowledged = false;
+
+			// Transfer is complete if data block is less than the block size
+			boolean transferComplete = packet.getLength() < options.getPacketSize();
+
+			// Acknowledge the end of each window and the last block
+			if (transferComplete || receivedInWindow == windowSize) {
+				sendACK(expected - 1);
+				receivedInWindow = 0;
+			}
+			if (transferComplete) {
+				// Move the completed file into place
+				sink.commit();
+				finish(true);
+				return;
+			}
+		} else if (distance > 0) {
+			// A block is missing, so ask the sender to resend from it
+			if (!gapAcknowledged) {
+				if (verbose) Log.trace("DATA %d is missing.", TFTP.blockIndexToBlockNumber(expected));
+				sendACK(expected - 1);
+				receivedInWindow = 0;
+				gapAcknowledged = true;
+			}
+		} else if (distance == -1 && receivedInWindow == 0) {
+			// The sender resent the last block acknowledged, so the ACK must have been lost
+			retransmits++;
+			sendACK(expected - 1);
+		} else {
+			retransmits++;
+			if (verbose) Log.trace("Ignoring previous duplicate DATA %d packet received...", blockNumber);
+		}
+	}
+
+	/**
+	 * Handles a timeout waiting for a DATA packet, giving up once the limit is reached.
+	 * Before block 1 arrives, the ACK 0 or OACK is sent again.
+	 *
+	 * @throws IOException if the ACK 0 or OACK could not be sent
+	 */
+	public void handleTimeout() throws IOException {
+		//if attempt limit reached, 'give up' and cancel transfer
+		if (timeouts == resendLimit) {
+			Log.warn("No response from " + peer + " after " + resendLimit + " attempts. Try again later.");
+			finish(false);
+			return;
+		}
+		timeouts++;
+		if (metrics != null) metrics.timedOut();
+
+		// The sender may never have heard back, so answer its request again
+		if (firstReply != null && expected == 1) {
+			if (verbose) Log.trace("Resending %s.", TFTP.getOpCode(firstReply) == TFTP.OACK_OP_CODE ? "OACK" : "ACK 0");
+			out.send(firstReply);
+			if (metrics != null) metrics.retransmitted();
+		}
+	}
+
+	/**
+	 * The receiver only waits, since resending is up to the sender, so it uses the
+	 * negotiated timeout or the initial timeout of an RttEstimator.
+	 *
+	 * @return Time to wait for a DATA packet, in milliseconds
+	 */
+	public int getTimeout() {
+		return options.getTimeout() != 0 ? options.getTimeout() * 1000 : RttEstimator.INITIAL_TIMEOUT;
+	}
+
+	/**
+	 * @return Number of DATA packets that the sender sent again after they had been
+	 * received, since the transfer started
+	 */
+	public int getRetransmits() {
+		return retransmits;
+	}
+
+	/**
+	 * @return true once the transfer has completed or been aborted
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * @return true if the last block was received and the file committed
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Ends the transfer.
+	 *
+	 * @param complete Whether the file was committed
+	 */
+	private void finish(boolean complete) {
+		this.done = true;
+		this.complete = complete;
+	}
+
+	/**
+	 * Sends the ACK of a block to the sender.
+	 *
+	 * @param blockIndex Index of the block to acknowledge
+	 * @throws IOException if the ACK could not be sent
+	 */
+	private void sendACK(long blockIndex) throws IOException {
+		TFTP.setBlockNumber(ackPacket, TFTP.blockIndexToBlockNumber(blockIndex));
+		if (verbose) Log.trace("Sending ACK %d.", TFTP.getBlockNumber(ackPacket));
+		out.send(ackPacket);
+	}
+
+	/**
+	 * Handles a packet from the sender that is not a valid DATA packet. An ERROR packet
+	 * aborts the transfer; anything else is answered with an "illegal TFTP operation"
+	 * ERROR packet.
+	 *
+	 * @param packet Packet received
+	 * @param errorMessage Reason the packet is not a valid DATA packet
+	 * @throws IOException if the ERROR packet could not be sent
+	 */
+	private void handleUnexpectedPacket(DatagramPacket packet, String errorMessage) throws IOException {
+		String[] errorMessage2 = new String[1];
+		// If an ERROR packet is received instead of the expected DATA packet, abort the transfer
+		if (TFTP.verifyErrorPacket(packet, errorMessage2)) {
+			if (verbose) Log.info("Received ERROR packet with ERROR code " + TFTP.getErrorCode(packet) + ": " + TFTP.getErrorMessage(packet) + ". Aborting transfer...\n");
+			return;
+		}
+
+		// Creates an "illegal TFTP operation" error packet
+		DatagramPacket errorPacket = TFTP.formERRORPacket(
+				replyAddr,
+				TID,
+				TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION,
+				fileName + " could not be transferred because of the following error: " + errorMessage + " (" + (peer.equals("client") ? "server" : "client") + " expected a DATA packet with block#: " + TFTP.blockIndexToBlockNumber(expected) + ")");
+
+		// Sends error packet
+		out.send(errorPacket);
+		if (metrics != null) metrics.errorSent(TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION);
+
+		// Echo error message
+		if (verbose) Log.info("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Illegal TFTP Operation. Aborting transfer...\n");
+	}
+}
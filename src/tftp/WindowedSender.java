@@ -0,0 +1,473 @@
+package tftp;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the DATA blocks of a transfer and waits for the ACKs, keeping up to the
+ * negotiated window size of blocks in flight (RFC 7440). With a window size of 1 this
+ * is the lock-step exchange of RFC 1350.
+ *
+ * The blocks of the current window are kept in a ring so that a window can be resent
+ * on timeout, or from the first missing block when the receiver acknowledges only
+ * part of it, without reading the blocks again. ACKs for blocks before the window are
+ * duplicates and are ignored, so that a duplicated ACK never causes a window to be
+ * sent twice.
+ *
+ * The DATA packets of the ring are reused for later blocks once their blocks have been
+ * acknowledged, and a single packet is reused for every ACK received, so a transfer in
+ * progress does not allocate a packet per block.
+ *
+ * The retransmission timeout comes from an RttEstimator fed with the round trip time of
+ * each block sent once and acknowledged. A transfer gives up after resendLimit timeouts in
+ * a row, but not before resendLimit initial timeouts have passed without progress, so a
+ * short timeout on a fast link does not give up on a receiver that pauses briefly.
+ *
+ * When the source is a MappedBlockSource and the output a ByteBufferOutput, the ring holds
+ * views of the mapped file instead of DATA packets, so no block is copied onto the heap.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class WindowedSender {
+	private DatagramSocket socket;
+	private PacketOutput out;
+	private InetAddress replyAddr;
+	private int TID;
+	private TransferOptions options;
+	private int resendLimit;
+	private boolean verbose;
+	private String peer;
+	private ServerMetrics metrics;	// Counters of the server, or null
+
+	private BlockSource source;
+	private String fileName;
+	private int windowSize;
+	private DatagramPacket oackPacket;
+	private DatagramPacket[] window;
+	private MappedBlockSource mappedSource;	// Set when blocks are sent from the mapping
+	private ByteBuffer[] mappedWindow;		// Ring of mapped blocks used with mappedSource
+	private long base;			// First block that has not been acknowledged
+	private long next;			// Next block to send
+	private long highestRead;	// Highest block read from the source so far
+	private long lastIndex;		// Index of the final block, once it has been read
+	private long highestSent;	// Highest block sent so far
+	private long[] sendTimes;	// Time each block of the ring was first sent
+	private boolean[] resent;	// Whether each block of the ring was sent more than once
+	private int retransmits;	// DATA packets sent again during the transfer
+	private RttEstimator rtt;
+	private long lastProgress;	// Time the last new ACK was received
+	private int timeouts;
+	private boolean done;
+	private boolean complete;
+	private String[] errorMessage = new String[1];	// Why the last packet was not a valid ACK, kept to not make one per packet
+
+	/**
+	 * Constructor of the WindowedSender class for a blocking transfer over a socket.
+	 *
+	 * @param socket Socket of the transfer, with its timeout already set
+	 * @param replyAddr Address of the receiver
+	 * @param TID Port of the receiver
+	 * @param options Negotiated options of the transfer
+	 * @param resendLimit Maximum number of times to resend a window without response
+	 * @param verbose Whether to log the transfer, at the levels enabled in Log
+	 * @param peer Name of the receiver used in messages ("client" or "server")
+	 */
+	public WindowedSender(final DatagramSocket socket, InetAddress replyAddr, int TID, TransferOptions options, int resendLimit, boolean verbose, String peer) {
+		this(new PacketOutput() {
+			public void send(DatagramPacket packet) throws IOException {
+				socket.send(packet);
+			}
+		}, replyAddr, TID, options, resendLimit, verbose, peer);
+		this.socket = socket;
+	}
+
+	/**
+	 * Constructor of the WindowedSender class for a transfer driven by its caller through
+	 * start, handlePacket and handleTimeout.
+	 *
+	 * @param out Output that packets are sent through
+	 * @param replyAddr Address of the receiver
+	 * @param TID Port of the receiver
+	 * @param options Negotiated options of the transfer
+	 * @param resendLimit Maximum number of times to resend a window without response
+	 * @param verbose Whether to log the transfer, at the levels enabled in Log
+	 * @param peer Name of the receiver used in messages ("client" or "server")
+	 */
+	public WindowedSender(PacketOutput out, InetAddress replyAddr, int TID, TransferOptions options, int resendLimit, boolean verbose, String peer) {
+		this.out = out;
+		this.replyAddr = replyAddr;
+		this.TID = TID;
+		this.options = options;
+		this.resendLimit = resendLimit;
+		this.verbose = verbose;
+		this.peer = peer;
+	}
+
+	/**
+	 * Counts the blocks sent, retransmits, timeouts and ERROR packets of the transfer in
+	 * the metrics of the server.
+	 *
+	 * @param metrics ServerMetrics to update, or null
+	 */
+	public void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sends every block of source, waiting for the receiver to acknowledge the last one.
+	 * If an OACK is given, it is sent first on its own in place of block 0 and must be
+	 * acknowledged with ACK 0. Only available when constructed with a socket.
+	 *
+	 * @param source BlockSource of the file being sent
+	 * @param oackPacket OACK to send before the first block, or null
+	 * @param fileName Name of the file being sent, used in ERROR packets
+	 *
+	 * @return true if the transfer completed, false if it was aborted
+	 * @throws IOException if a packet could not be sent
+	 */
+	public boolean send(BlockSource source, DatagramPacket oackPacket, String fileName) throws IOException {
+		start(source, oackPacket, fileName);
+		DatagramPacket receivePacket = TFTP.formPacket();
+		while (!done) {
+			// Wait for ACK, letting the packet take up its whole buffer again
+			if (verbose) Log.trace("Waiting for ACK from %s...", peer);
+			receivePacket.setLength(receivePacket.getData().length);
+			socket.setSoTimeout(rtt.getTimeout());
+			try {
+				socket.receive(receivePacket);
+			} catch (SocketTimeoutException e) {
+				handleTimeout();
+				continue;
+			}
+			handlePacket(receivePacket);
+		}
+		return complete;
+	}
+
+	/**
+	 * Starts the transfer by sending the OACK, or the first window of blocks.
+	 *
+	 * @param source BlockSource of the file being sent
+	 * @param oackPacket OACK to send before the first block, or null
+	 * @param fileName Name of the file being sent, used in ERROR packets
+	 * @throws IOException if a packet could not be sent
+	 */
+	public void start(BlockSource source, DatagramPacket oackPacket, String fileName) throws IOException {
+		this.source = source;
+		this.fileName = fileName;
+		windowSize = options.getWindowSize();
+		window = new DatagramPacket[windowSize];
+		if (source instanceof MappedBlockSource && out instanceof ByteBufferOutput) {
+			mappedSource = (MappedBlockSource) source;
+			mappedWindow = new ByteBuffer[windowSize];
+		} else {
+			mappedSource = null;
+			mappedWindow = null;
+		}
+		lastIndex = -1;
+		sendTimes = new long[windowSize];
+		resent = new boolean[windowSize];
+		rtt = options.createRttEstimator();
+		lastProgress = System.nanoTime();
+		timeouts = 0;
+		retransmits = 0;
+		done = false;
+		complete = false;
+
+		// The OACK takes the place of block 0
+		this.oackPacket = oackPacket;
+		if (oackPacket != null) {
+			base = 0;
+		} else {
+			base = 1;
+		}
+		next = base;
+		highestRead = 0;
+		highestSent = base - 1;
+		sendWindow();
+	}
+
+	/**
+	 * Handles a packet received from the receiver: slides the window on an ACK and sends
+	 * the blocks that are now allowed in flight.
+	 *
+	 * @param receivePacket Packet received, which is not kept after the call
+	 * @throws IOException if a packet could not be sent
+	 */
+	public void handlePacket(DatagramPacket receivePacket) throws IOException {
+		// Check if the address and port of the received packet match the TID
+		InetAddress packetAddress = receivePacket.getAddress();
+		int packetPort = receivePacket.getPort();
+		if (!(packetAddress.equals(replyAddr) && (packetPort == TID))) {
+			sendUnknownTIDError(packetAddress, packetPort);
+			return;
+		}
+
+		// This block is entered if the packet received is not a valid ACK packet
+		if (!TFTP.verifyAckPacket(receivePacket, TFTP.MAX_BLOCK_NUMBER, errorMessage)) {
+			handleUnexpectedPacket(receivePacket, errorMessage[0]);
+			finish(false);
+			return;
+		}
+
+		// Find which block is acknowledged. The ACK can be for any block that was sent, or for
+		// an earlier block if it is a duplicate.
+		int ackNumber = TFTP.getBlockNumber(receivePacket);
+		long distance = (ackNumber - TFTP.blockIndexToBlockNumber(base) + TFTP.MAX_BLOCK_NUMBER + 1) % (TFTP.MAX_BLOCK_NUMBER + 1);
+		if (distance > TFTP.MAX_BLOCK_NUMBER / 2) {
+			distance -= TFTP.MAX_BLOCK_NUMBER + 1;
+		}
+		long ackIndex = base + distance;
+
+		if (ackIndex >= next) {
+			handleUnexpectedPacket(receivePacket, "Invalid block number");
+			finish(false);
+			return;
+		}
+
+		if (ackIndex >= base) {
+			if (verbose) Log.trace("ACK %d received.", ackNumber);
+			// Measure the round trip of the block, unless it was resent (Karn's rule)
+			int slot = (int) (ackIndex % windowSize);
+			if (!resent[slot]) rtt.addSample(System.nanoTime() - sendTimes[slot]);
+			lastProgress = System.nanoTime();
+
+			// Slide the window past the acknowledged block. If the receiver did not get the
+			// whole window, continue from the first block that it is missing.
+			base = ackIndex + 1;
+			next = base;
+			timeouts = 0;
+			if (lastIndex >= 0 && base > lastIndex) {
+				finish(true);
+				return;
+			}
+			sendWindow();
+		} else {
+			// Ignore acknowledgement packet if duplicate
+			if (verbose) Log.trace("Ignoring previous duplicate ACK %d packet received...", ackNumber);
+		}
+	}
+
+	/**
+	 * Handles a timeout waiting for an ACK by resending the window, or gives up once the
+	 * resend limit is reached.
+	 *
+	 * @throws IOException if a packet could not be sent
+	 */
+	public void handleTimeout() throws IOException {
+		//if re-send attempt limit reached, 'give up' and cancel transfer
+		long waited = (System.nanoTime() - lastProgress) / 1000000;
+		if (timeouts >= resendLimit && waited >= (long) resendLimit * rtt.getInitialTimeout()) {
+			Log.warn("No response from " + peer + " after " + timeouts + " attempts. Try again later.");
+			finish(false);
+			return;
+		}
+		//otherwise back off and re-send the whole window
+		timeouts++;
+		if (metrics != null) metrics.timedOut();
+		rtt.backoff();
+		if (verbose && Log.isEnabled(Log.Level.DEBUG)) Log.debug(capitalize(peer) + " timed out. Resending from " + (base == 0 ? "OACK" : "DATA " + TFTP.blockIndexToBlockNumber(base)) + " with a timeout of " + rtt.getTimeout() + " ms.");
+		next = base;
+		sendWindow();
+	}
+
+	/**
+	 * @return Time to wait for an ACK before resending, in milliseconds
+	 */
+	public int getTimeout() {
+		return rtt.getTimeout();
+	}
+
+	/**
+	 * @return Number of DATA packets sent again since the transfer started
+	 */
+	public int getRetransmits() {
+		return retransmits;
+	}
+
+	/**
+	 * @return true once the transfer has completed or been aborted
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * @return true if the receiver acknowledged the last block
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Sends the rest of the window. The OACK is always sent on its own.
+	 *
+	 * @throws IOException if a packet could not be sent
+	 */
+	private void sendWindow() throws IOException {
+		long windowEnd = base == 0 ? 0 : base + windowSize - 1;
+		while (next <= windowEnd && (lastIndex < 0 || next <= lastIndex)) {
+			int slot = (int) (next % windowSize);
+			if (next > highestRead) {
+				int length;
+				if (mappedSource != null) {
+					// The slot last held the block a window earlier, whose view is reused
+					mappedWindow[slot] = mappedSource.getBlock(next, mappedWindow[slot], next - windowSize);
+					length = mappedWindow[slot].remaining();
+				} else {
+					if (!readBlock(next, slot)) {
+						finish(false);
+						return;
+					}
+					length = window[slot].getLength() - TFTP.OP_CODE_SIZE - TFTP.BLOCK_NUMBER_SIZE;
+				}
+				highestRead = next;
+				// A block shorter than the block size is the last block of the file
+				if (length < options.getBlockSize()) lastIndex = next;
+			}
+			if (verbose) {
+				if (next == 0) {
+					Log.trace("Sending OACK.");
+				} else {
+					Log.trace("Sending DATA block number %d.", TFTP.blockIndexToBlockNumber(next));
+				}
+			}
+			if (next > highestSent) {
+				sendTimes[slot] = System.nanoTime();
+				resent[slot] = false;
+				highestSent = next;
+			} else {
+				resent[slot] = true;
+				if (next != 0) retransmits++;
+				if (metrics != null && next != 0) metrics.retransmitted();
+			}
+			if (next == 0) {
+				out.send(oackPacket);
+			} else if (mappedSource != null) {
+				if (metrics != null) metrics.addBytesSent(mappedWindow[slot].remaining());
+				((ByteBufferOutput) out).sendDATA(replyAddr, TID, TFTP.blockIndexToBlockNumber(next), mappedWindow[slot]);
+			} else {
+				if (metrics != null) metrics.addBytesSent(window[slot].getLength() - TFTP.OP_CODE_SIZE - TFTP.BLOCK_NUMBER_SIZE);
+				out.send(window[slot]);
+			}
+			next++;
+		}
+	}
+
+	/**
+	 * Ends the transfer.
+	 *
+	 * @param complete Whether the last block was acknowledged
+	 */
+	private void finish(boolean complete) {
+		this.done = true;
+		this.complete = complete;
+	}
+
+	/**
+	 * Reads a block from source into the DATA packet of its slot in the ring, reusing the
+	 * packet of an earlier block. If the block cannot be read, the receiver is sent an
+	 * ERROR packet.
+	 *
+	 * @param blockIndex Index of the block to read
+	 * @param slot Slot of the block in the ring
+	 *
+	 * @return true if the block was read, false if the transfer was aborted
+	 * @throws IOException if the ERROR packet could not be sent
+	 */
+	private boolean readBlock(long blockIndex, int slot) throws IOException {
+		try {
+			if (window[slot] == null) {
+				window[slot] = TFTP.formDATAPacket(replyAddr, TID, source, blockIndex);
+			} else {
+				TFTP.fillDATAPacket(window[slot], source, blockIndex);
+			}
+			return true;
+		} catch (IOException e) {
+			// Creates a "not defined" error packet
+			DatagramPacket errorPacket = TFTP.formERRORPacket(
+					replyAddr,
+					TID,
+					TFTP.ERROR_CODE_NOT_DEFINED,
+					fileName + " could not be transferred because the file could not be read.");
+
+			// Sends error packet
+			out.send(errorPacket);
+			if (metrics != null) metrics.errorSent(TFTP.ERROR_CODE_NOT_DEFINED);
+
+			// Echo error message
+			if (verbose) Log.info("Sent ERROR packet with ERROR code " + TFTP.ERROR_CODE_NOT_DEFINED + ": " + e.getMessage() + ". Aborting transfer...\n");
+			return false;
+		}
+	}
+
+	/**
+	 * Responds to a packet from another host with an "unknown TID" ERROR packet.
+	 *
+	 * @param packetAddress Address of the other host
+	 * @param packetPort Port of the other host
+	 * @throws IOException if the ERROR packet could not be sent
+	 */
+	private void sendUnknownTIDError(InetAddress packetAddress, int packetPort) throws IOException {
+		// Creates an "unknown TID" error packet
+		DatagramPacket errorPacket = TFTP.formERRORPacket(
+				packetAddress,
+				packetPort,
+				TFTP.ERROR_CODE_UNKNOWN_TID,
+				"The address and port of the packet does not match the TID of the ongoing transfer.");
+
+		// Sends error packet
+		out.send(errorPacket);
+		if (metrics != null) metrics.errorSent(TFTP.ERROR_CODE_UNKNOWN_TID);
+
+		// Echo error message
+		if (verbose) Log.info("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Received packet from an unknown host. Discarding packet and continuing transfer...\n");
+	}
+
+	/**
+	 * Handles a packet from the receiver that is not a valid ACK. An ERROR packet aborts
+	 * the transfer; anything else is answered with an "illegal TFTP operation" ERROR packet.
+	 *
+	 * @param packet Packet received
+	 * @param errorMessage Reason the packet is not a valid ACK
+	 * @throws IOException if the ERROR packet could not be sent
+	 */
+	private void handleUnexpectedPacket(DatagramPacket packet, String errorMessage) throws IOException {
+		String[] errorMessage2 = new String[1];
+		// If an ERROR packet is received instead of the expected ACK packet, abort the transfer
+		if (TFTP.verifyErrorPacket(packet, errorMessage2)) {
+			if (verbose) Log.info("Received ERROR packet with ERROR code " + TFTP.getErrorCode(packet) + ": " + TFTP.getErrorMessage(packet) + ". Aborting transfer...\n");
+			return;
+		}
+
+		// Creates an "illegal TFTP operation" error packet
+		DatagramPacket errorPacket = TFTP.formERRORPacket(
+				replyAddr,
+				TID,
+				TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION,
+				fileName + " could not be transferred because of the following error: " + errorMessage + " (" + self() + " expected a ACK packet with block#: " + TFTP.blockIndexToBlockNumber(base) + ")");
+
+		// Sends error packet
+		out.send(errorPacket);
+		if (metrics != null) metrics.errorSent(TFTP.ERROR_CODE_ILLEGAL_TFTP_OPERATION);
+
+		// Echo error message
+		if (verbose) Log.info("Sent ERROR packet with ERROR code " + TFTP.getErrorCode(errorPacket) + ": Illegal TFTP Operation. Aborting transfer...\n");
+	}
+
+	/**
+	 * @return Name of this end of the transfer used in messages
+	 */
+	private String self() {
+		return peer.equals("client") ? "server" : "client";
+	}
+
+	/**
+	 * @return s with its first letter in upper case
+	 */
+	private static String capitalize(String s) {
+		return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+	}
+}
@@ -0,0 +1,196 @@
+package tftpbench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import tftp.BlockSink;
+import tftp.BlockSource;
+import tftp.ClientTransfer;
+import tftp.EventLoopServer;
+import tftp.ServerMetrics;
+import tftp.TFTP;
+import tftp.TransferOptions;
+import tftp.WindowedReceiver;
+import tftp.WindowedSender;
+
+/**
+ * Measures how many bytes the sender and receiver of a transfer allocate per block.
+ *
+ * A file held in memory is sent over loopback from a WindowedSender to a WindowedReceiver,
+ * each on its own thread and socket as in the Client and Server, into a sink that discards
+ * the blocks. Files are left out so that only the allocations of the transfer are counted.
+ * A few transfers are run first to warm up the JIT, then the bytes allocated by each thread
+ * during one more transfer are read from the ThreadMXBean and divided by the number of blocks.
+ *
+ * With -eventloop, the file is written to a temporary directory and read from an
+ * EventLoopServer with one event loop instead, and the bytes allocated by the event loop
+ * thread are counted as those of the sender. A file of at least EventLoopServer's
+ * MAPPED_FILE_SIZE is sent from a memory mapping. The client is a ClientTransfer reading
+ * into a channel that discards the file, and its allocations are not counted.
+ *
+ * Usage: AllocationBenchmark [blocks] [blksize] [windowsize] [-eventloop]
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class AllocationBenchmark {
+	private static final int TIMEOUT = 2000;	// Same timeout as the server
+	private static final int WARMUP_TRANSFERS = 5;
+
+	public static void main(String[] args) throws Exception {
+		List<String> argList = new ArrayList<String>(Arrays.asList(args));
+		boolean eventLoop = argList.remove("-eventloop");
+		args = argList.toArray(new String[0]);
+		int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+		int windowSize = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.out.println("Allocation counting is not supported by this JVM.");
+			System.exit(1);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		if (eventLoop) {
+			eventLoopTransfers(threads, blocks, blockSize, windowSize);
+			return;
+		}
+		for (int i = 0; i < WARMUP_TRANSFERS; i++) {
+			transfer(threads, blocks, blockSize, windowSize);
+		}
+		long[] allocated = transfer(threads, blocks, blockSize, windowSize);
+
+		System.out.println("blocks   blksize   windowsize   sender B/block   receiver B/block");
+		System.out.println(String.format("%6d %9d %12d %16.1f %18.1f",
+				blocks, blockSize, windowSize, (double) allocated[0] / blocks, (double) allocated[1] / blocks));
+	}
+
+	/**
+	 * Runs one transfer and counts the bytes allocated by the sender and receiver.
+	 *
+	 * @return Bytes allocated by the sender thread and by the receiver thread
+	 */
+	private static long[] transfer(final com.sun.management.ThreadMXBean threads, final int blocks, final int blockSize, int windowSize) throws Exception {
+		final TransferOptions options = new TransferOptions();
+		options.setBlockSize(blockSize);
+		options.setWindowSize(windowSize);
+		final DatagramSocket senderSocket = new DatagramSocket();
+		final DatagramSocket receiverSocket = new DatagramSocket();
+		senderSocket.setSoTimeout(TIMEOUT);
+		receiverSocket.setSoTimeout(TIMEOUT);
+		final InetAddress localhost = InetAddress.getLoopbackAddress();
+		final long[] allocated = new long[2];
+
+		// A file of whole blocks followed by an empty last block
+		final byte[] block = new byte[blockSize];
+		final BlockSource source = new BlockSource() {
+			public int readBlock(long blockIndex, byte[] buf, int offset) {
+				if (blockIndex > blocks) return 0;
+				System.arraycopy(block, 0, buf, offset, blockSize);
+				return blockSize;
+			}
+
+			public int getBlockSize() {
+				return blockSize;
+			}
+
+			public void close() {
+			}
+		};
+		final BlockSink sink = new BlockSink() {
+			public void write(byte[] buf, int offset, int length) {
+			}
+
+			public long getBytesWritten() {
+				return 0;
+			}
+
+			public void commit() {
+			}
+
+			public void abort() {
+			}
+		};
+
+		Thread receiver = new Thread(new Runnable() {
+			public void run() {
+				long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+				try {
+					new WindowedReceiver(receiverSocket, localhost, senderSocket.getLocalPort(), options, 3, false, "client").receive(sink, null, "bench", ".");
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				allocated[1] = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+			}
+		}, "Receiver");
+		receiver.start();
+
+		long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		new WindowedSender(senderSocket, localhost, receiverSocket.getLocalPort(), options, 3, false, "server").send(source, null, "bench");
+		allocated[0] = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+		receiver.join();
+
+		senderSocket.close();
+		receiverSocket.close();
+		return allocated;
+	}
+
+	/**
+	 * Runs the warm up transfers and one more from an EventLoopServer, and prints the bytes
+	 * allocated by its event loop per block.
+	 */
+	private static void eventLoopTransfers(com.sun.management.ThreadMXBean threads, int blocks, int blockSize, int windowSize) throws Exception {
+		File dir = Files.createTempDirectory("allocbench").toFile();
+		File file = new File(dir, "bench");
+		Files.write(file.toPath(), new byte[blocks * blockSize]);
+		ServerMetrics metrics = new ServerMetrics();
+		EventLoopServer server = new EventLoopServer(dir.getPath() + File.separator, 0, 1, null, metrics);
+		server.run();
+		try {
+			Thread loop = null;
+			for (Thread t : Thread.getAllStackTraces().keySet()) {
+				if (t.getName().equals("EventLoop-0")) loop = t;
+			}
+			TransferOptions options = new TransferOptions();
+			options.setBlockSize(blockSize);
+			options.setWindowSize(windowSize);
+
+			long allocated = 0;
+			for (int i = 0; i <= WARMUP_TRANSFERS; i++) {
+				long start = threads.getThreadAllocatedBytes(loop.getId());
+				DatagramSocket socket = new DatagramSocket();
+				try {
+					ClientTransfer transfer = new ClientTransfer(socket, InetAddress.getLoopbackAddress(), server.getPort(), options, false, false, 3);
+					if (!transfer.read(file.getName(), Channels.newChannel(OutputStream.nullOutputStream()), TFTP.MODE_OCTET)) {
+						throw new IOException(transfer.getFailure());
+					}
+				} finally {
+					socket.close();
+				}
+				// The server is done once it has closed the transfer
+				while (metrics.getActiveTransfers() > 0) {
+					Thread.sleep(1);
+				}
+				allocated = threads.getThreadAllocatedBytes(loop.getId()) - start;
+			}
+
+			System.out.println("blocks   blksize   windowsize   event loop B/block   mapped");
+			System.out.println(String.format("%6d %9d %12d %20.1f   %s",
+					blocks, blockSize, windowSize, (double) allocated / blocks, file.length() >= EventLoopServer.MAPPED_FILE_SIZE ? "yes" : "no"));
+		} finally {
+			server.exit();
+			file.delete();
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package tftpbench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tftp.TFTP;
+import tftp.TransferExecutors;
+
+/**
+ * Compares how many concurrent transfers each thread mode can hold and what they cost.
+ *
+ * For each number of transfers, that many handlers are started on an executor from
+ * TransferExecutors. Each handler opens its own socket and parks on a receive with the
+ * server timeout, as a ClientHandler does while it waits for an ACK. Once every handler
+ * is parked, the time taken, the number of live platform threads and the growth of the
+ * resident set size and heap are reported.
+ *
+ * Usage: ThreadModeBenchmark platform|virtual [transfers ...]
+ * Virtual threads need Java 21 or later.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class ThreadModeBenchmark {
+	private static final int TIMEOUT = 2000;	// Same timeout as the server
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || !TransferExecutors.isValidMode(args[0])) {
+			System.out.println("Usage: ThreadModeBenchmark platform|virtual [transfers ...]");
+			System.exit(1);
+		}
+		String mode = args[0];
+		if (mode.equals(TransferExecutors.MODE_VIRTUAL) && !TransferExecutors.isVirtualThreadAvailable()) {
+			System.out.println("Virtual threads are not available on this Java version, so platform threads are measured.");
+			mode = TransferExecutors.MODE_PLATFORM;
+		}
+		int[] counts = {1000, 2000, 5000, 10000};
+		if (args.length > 1) {
+			counts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				counts[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		System.out.println("mode      transfers   parked   failed   start ms   platform threads   RSS MB   heap MB");
+		for (int count : counts) {
+			if (!run(mode, count)) break;
+		}
+	}
+
+	/**
+	 * Parks count handlers and prints one row of results.
+	 *
+	 * @param mode Thread mode of the executor
+	 * @param count Number of concurrent transfers
+	 *
+	 * @return false if some handlers could not be started, so larger counts are skipped
+	 */
+	private static boolean run(String mode, int count) throws Exception {
+		ExecutorService executor = TransferExecutors.create(mode, "ClientHandler");
+		final List<DatagramSocket> sockets = Collections.synchronizedList(new ArrayList<DatagramSocket>());
+		final CountDownLatch parked = new CountDownLatch(count);
+		final AtomicInteger failed = new AtomicInteger();
+
+		System.gc();
+		long rssBefore = residentSetSize();
+		long heapBefore = usedHeap();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < count; i++) {
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						DatagramSocket socket;
+						try {
+							socket = new DatagramSocket();
+							socket.setSoTimeout(TIMEOUT);
+							sockets.add(socket);
+						} catch (IOException e) {
+							failed.incrementAndGet();
+							parked.countDown();
+							return;
+						}
+						parked.countDown();
+
+						// Wait for an ACK that never comes until the socket is closed
+						DatagramPacket packet = TFTP.formPacket();
+						while (!socket.isClosed()) {
+							try {
+								socket.receive(packet);
+							} catch (SocketTimeoutException e) {
+							} catch (IOException e) {
+								return;
+							}
+						}
+					}
+				});
+			} catch (Throwable e) {
+				// The thread could not be created
+				failed.addAndGet(count - i);
+				for (int j = i; j < count; j++) {
+					parked.countDown();
+				}
+				break;
+			}
+		}
+		parked.await(120, TimeUnit.SECONDS);
+		long startMillis = (System.nanoTime() - start) / 1000000;
+
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		System.gc();
+		long rss = residentSetSize() - rssBefore;
+		long heap = usedHeap() - heapBefore;
+		System.out.println(String.format("%-9s %9d %8d %8d %10d %18d %8s %9d",
+				mode, count, count - failed.get() - (int) parked.getCount(), failed.get(), startMillis, threads,
+				rssBefore < 0 ? "n/a" : Long.toString(rss / (1024 * 1024)), heap / (1024 * 1024)));
+
+		// Release the handlers
+		synchronized (sockets) {
+			for (DatagramSocket socket : sockets) {
+				socket.close();
+			}
+		}
+		executor.shutdown();
+		executor.awaitTermination(TIMEOUT * 2, TimeUnit.MILLISECONDS);
+		return failed.get() == 0;
+	}
+
+	/**
+	 * @return Heap in use, in bytes
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Reads the resident set size of the process, which includes the native stacks of
+	 * platform threads that the heap does not.
+	 *
+	 * @return Resident set size in bytes, or -1 if it is not available (Linux only)
+	 */
+	private static long residentSetSize() {
+		try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		} catch (IOException e) {
+		}
+		return -1;
+	}
+}
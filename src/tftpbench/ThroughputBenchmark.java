@@ -0,0 +1,176 @@
+package tftpbench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import tftp.Client;
+import tftp.Server;
+
+/**
+ * Measures the throughput of the server end to end. A Server and a number of Clients run
+ * in this process on loopback, the server on a free port, and each client runs a mix of
+ * read and write requests one after another over files generated up front.
+ *
+ * Reported are the aggregate MB/s of file data moved, the percentiles of the time taken
+ * by a transfer, the DATA packets resent by the server, and the peak heap in use.
+ * Options after the positional arguments are passed to the Server, and options after
+ * "--" to every Client, so that configurations can be compared, as in:
+ * 4 10 64,1024 50 -eventloop 2 -- -windowsize 8
+ *
+ * Usage: ThroughputBenchmark [clients] [transfers] [sizes in KB] [percent writes] [server options] [-- client options]
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+public class ThroughputBenchmark {
+	public static void main(String[] args) throws Exception {
+		final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final int transfers = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		String[] sizeList = (args.length > 2 ? args[2] : "64,1024").split(",");
+		final int writePercent = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+		List<String> serverArgs = new ArrayList<String>();
+		final List<String> clientArgs = new ArrayList<String>();
+		List<String> current = serverArgs;
+		for (int i = 4; i < args.length; i++) {
+			if (args[i].equals("--")) {
+				current = clientArgs;
+			} else {
+				current.add(args[i]);
+			}
+		}
+		final int[] sizes = new int[sizeList.length];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = Integer.parseInt(sizeList[i]) * 1024;
+		}
+
+		// Files to read from the server, and files for each client to write
+		File serverDir = Files.createTempDirectory("tftpbench-server").toFile();
+		final File[] clientDirs = new File[clients];
+		for (int size : sizes) {
+			generate(new File(serverDir, "read-" + size + ".bin"), size);
+		}
+		for (int c = 0; c < clients; c++) {
+			clientDirs[c] = Files.createTempDirectory("tftpbench-client").toFile();
+			for (int size : sizes) {
+				generate(new File(clientDirs[c], "write-" + c + "-" + size + ".bin"), size);
+			}
+		}
+
+		serverArgs.add(0, "-q");
+		serverArgs.add(1, "-port");
+		serverArgs.add(2, "0");
+		clientArgs.add(0, "-q");
+		final Server server = new Server(serverArgs.toArray(new String[0]));
+		server.start(serverDir.getPath() + File.separator);
+		clientArgs.add(1, "-port");
+		clientArgs.add(2, Integer.toString(server.getPort()));
+		final InetAddress localhost = InetAddress.getLoopbackAddress();
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+		final List<Long> durations = Collections.synchronizedList(new ArrayList<Long>());
+		final long[] bytes = new long[clients];
+		final int[] failures = new int[clients];
+		Thread[] threads = new Thread[clients];
+		long start = System.nanoTime();
+		for (int c = 0; c < clients; c++) {
+			final int client = c;
+			threads[c] = new Thread(new Runnable() {
+				public void run() {
+					Client tftpClient = new Client(clientArgs.toArray(new String[0]), localhost, clientDirs[client].getPath() + File.separator);
+					Random random = new Random(client);
+					for (int i = 0; i < transfers; i++) {
+						int size = sizes[i % sizes.length];
+						String directory = clientDirs[client].getPath() + File.separator;
+						long transferStart = System.nanoTime();
+						boolean complete;
+						if (random.nextInt(100) < writePercent) {
+							complete = tftpClient.write(localhost, directory + "write-" + client + "-" + size + ".bin", "octet");
+						} else {
+							String filePath = directory + "read-" + size + ".bin";
+							complete = tftpClient.read(localhost, filePath, "octet");
+							new File(filePath).delete();
+						}
+						durations.add(System.nanoTime() - transferStart);
+						if (complete) {
+							bytes[client] += size;
+						} else {
+							failures[client]++;
+						}
+					}
+					tftpClient.exit();
+				}
+			}, "Client-" + c);
+			threads[c].start();
+		}
+		long totalBytes = 0;
+		int totalFailures = 0;
+		for (int c = 0; c < clients; c++) {
+			threads[c].join();
+			totalBytes += bytes[c];
+			totalFailures += failures[c];
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) peakHeap += pool.getPeakUsage().getUsed();
+		}
+		long retransmits = server.getMetrics().getRetransmits();
+		server.exit();
+
+		Collections.sort(durations);
+		System.out.println("clients   transfers   failed       MB/s   p50 ms   p90 ms   p99 ms   max ms   resent   peak heap MB");
+		System.out.println(String.format("%7d %11d %8d %10.1f %8.1f %8.1f %8.1f %8.1f %8d %14.1f",
+				clients, clients * transfers, totalFailures, totalBytes / seconds / (1024 * 1024),
+				percentile(durations, 50), percentile(durations, 90), percentile(durations, 99), percentile(durations, 100),
+				retransmits, peakHeap / (1024.0 * 1024)));
+
+		// Cleanup
+		delete(serverDir);
+		for (File dir : clientDirs) {
+			delete(dir);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Writes a file of random bytes.
+	 */
+	private static void generate(File f, int size) throws IOException {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		Files.write(f.toPath(), data);
+	}
+
+	/**
+	 * @return Percentile of the sorted durations, in milliseconds
+	 */
+	private static double percentile(List<Long> sorted, double percentile) {
+		if (sorted.isEmpty()) return 0;
+		int rank = (int) Math.ceil(sorted.size() * percentile / 100);
+		return sorted.get(Math.max(0, rank - 1)) / 1e6;
+	}
+
+	/**
+	 * Deletes a directory and the files in it.
+	 */
+	private static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+}
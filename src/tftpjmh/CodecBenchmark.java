@@ -0,0 +1,107 @@
+package tftpjmh;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tftp.Request;
+import tftp.TFTP;
+
+/**
+ * JMH benchmarks of the packet codec in tftp.TFTP, which runs at least once for every
+ * packet sent or received. Each benchmark forms, reads or verifies one packet.
+ *
+ * Run with the GC profiler ("jmh" does this) to get the bytes allocated per operation
+ * as gc.alloc.rate.norm next to the time per operation.
+ *
+ * @author Team 4
+ * @version Iteration 5
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	@Param({"512", "1428"})
+	private int blockSize;
+
+	private InetAddress addr;
+	private int port = 69;
+	private byte[] block;
+	private DatagramPacket dataPacket;
+	private DatagramPacket ackPacket;
+	private DatagramPacket requestPacket;
+	private String[] errorMessage = new String[1];
+
+	@Setup
+	public void setup() throws Exception {
+		addr = InetAddress.getLoopbackAddress();
+		block = new byte[blockSize];
+		dataPacket = TFTP.formDATAPacket(addr, port, 1234, block);
+		ackPacket = TFTP.formACKPacket(addr, port, 1234);
+
+		Request r = new Request(Request.Type.READ, "hello.txt", TFTP.MODE_OCTET);
+		r.setOption(TFTP.OPTION_BLKSIZE, Integer.toString(blockSize));
+		r.setOption(TFTP.OPTION_WINDOWSIZE, "8");
+		requestPacket = TFTP.formRQPacket(addr, port, r);
+	}
+
+	@Benchmark
+	public DatagramPacket formDATAPacket() {
+		return TFTP.formDATAPacket(addr, port, 1234, block);
+	}
+
+	@Benchmark
+	public DatagramPacket formACKPacket() {
+		return TFTP.formACKPacket(addr, port, 1234);
+	}
+
+	@Benchmark
+	public DatagramPacket formERRORPacket() {
+		return TFTP.formERRORPacket(addr, port, TFTP.ERROR_CODE_FILE_NOT_FOUND, "\"hello.txt\" does not exist on server.");
+	}
+
+	@Benchmark
+	public int getBlockNumber() {
+		return TFTP.getBlockNumber(dataPacket);
+	}
+
+	@Benchmark
+	public byte[] getData() {
+		return TFTP.getData(dataPacket);
+	}
+
+	@Benchmark
+	public boolean verifyDataPacket() {
+		return TFTP.verifyDataPacket(dataPacket, TFTP.MAX_BLOCK_NUMBER, blockSize, errorMessage);
+	}
+
+	@Benchmark
+	public boolean verifyAckPacket() {
+		return TFTP.verifyAckPacket(ackPacket, TFTP.MAX_BLOCK_NUMBER, errorMessage);
+	}
+
+	@Benchmark
+	public boolean verifyRequestPacket() {
+		return TFTP.verifyRequestPacket(requestPacket, errorMessage);
+	}
+
+	@Benchmark
+	public Request parseRQ() {
+		return TFTP.parseRQ(requestPacket);
+	}
+}
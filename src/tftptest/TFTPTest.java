@@ -1,11 +1,19 @@
 package tftptest;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.io.*;
 
 import org.junit.Test;
@@ -1271,4 +1279,1530 @@ public class TFTPTest {
 			e.printStackTrace();
 		}
 	}
+
+	//public static DatagramPacket formDATAPacket(InetAddress addr, int port, BlockSource source, long blockIndex)
+	//Test normal file of size 2*512 + 1 (not a multiple of 512)
+	//Expects blocks 1 and 2 to have data of size 512 and block 3 to have a size of 1
+	@Test
+	public void formDATAPacketFromSourceTest1() throws Exception {
+		// Setup
+		InetAddress addr = InetAddress.getLocalHost();
+		int port = 69;
+		String filename = "formDATAPacketFromSourceTest1.txt";
+
+		File f = new File(filename);
+		if (f.exists()) f.delete();
+
+		// Write 2*512 + 1 bytes to file, each block filled with its block number
+		BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+		byte[] bytes = new byte[512*2+1];
+		Arrays.fill(bytes, 0, 512, (byte)1);
+		Arrays.fill(bytes, 512, 1024, (byte)2);
+		bytes[1024] = 3;
+		out.write(bytes);
+		out.close();
+
+		BlockSource source = new FileBlockSource(filename, TFTP.MAX_DATA_SIZE);
+		try {
+			// Read the blocks out of order to make sure each read is positional
+			DatagramPacket packet2 = TFTP.formDATAPacket(addr, port, source, 2);
+			assertTrue(TFTP.getBlockNumber(packet2) == 2);
+			assertTrue(TFTP.getData(packet2).length == 512);
+			assertTrue(TFTP.getData(packet2)[511] == 2);
+
+			DatagramPacket packet1 = TFTP.formDATAPacket(addr, port, source, 1);
+			assertTrue(TFTP.getBlockNumber(packet1) == 1);
+			assertTrue(TFTP.getData(packet1).length == 512);
+			assertTrue(TFTP.getData(packet1)[0] == 1);
+
+			DatagramPacket packet3 = TFTP.formDATAPacket(addr, port, source, 3);
+			assertTrue(TFTP.getOpCode(packet3) == TFTP.DATA_OP_CODE);
+			assertTrue(TFTP.getData(packet3).length == 1);
+			assertTrue(TFTP.getData(packet3)[0] == 3);
+		} finally {
+			// Cleanup
+			source.close();
+			f.delete();
+		}
+	}
+
+	//public static DatagramPacket formDATAPacket(InetAddress addr, int port, BlockSource source, long blockIndex)
+	//Test file of size 512 (a multiple of 512)
+	//Expects block 2 to be an empty data packet
+	@Test
+	public void formDATAPacketFromSourceTest2() throws Exception {
+		// Setup
+		InetAddress addr = InetAddress.getLocalHost();
+		int port = 69;
+		String filename = "formDATAPacketFromSourceTest2.txt";
+
+		File f = new File(filename);
+		if (f.exists()) f.delete();
+
+		BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+		out.write(new byte[512]);
+		out.close();
+
+		BlockSource source = new FileBlockSource(filename, TFTP.MAX_DATA_SIZE);
+		try {
+			assertTrue(TFTP.getData(TFTP.formDATAPacket(addr, port, source, 1)).length == 512);
+
+			DatagramPacket packet2 = TFTP.formDATAPacket(addr, port, source, 2);
+			assertTrue(TFTP.getBlockNumber(packet2) == 2);
+			assertTrue(TFTP.getData(packet2).length == 0);
+		} finally {
+			// Cleanup
+			source.close();
+			f.delete();
+		}
+	}
+
+	//public static void fillDATAPacket(DatagramPacket packet, BlockSource source, long blockIndex)
+	//Refill one packet with a full block and then with the short last block
+	//Expects the packet to take the block number and length of each block in turn
+	@Test
+	public void fillDATAPacketTest1() throws Exception {
+		// Setup
+		InetAddress addr = InetAddress.getLocalHost();
+		String filename = "fillDATAPacketTest1.txt";
+		File f = new File(filename);
+		if (f.exists()) f.delete();
+
+		BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+		byte[] bytes = new byte[512+1];
+		Arrays.fill(bytes, 0, 512, (byte)1);
+		bytes[512] = 2;
+		out.write(bytes);
+		out.close();
+
+		BlockSource source = new FileBlockSource(filename, TFTP.MAX_DATA_SIZE);
+		try {
+			DatagramPacket packet = TFTP.formDATAPacket(addr, 69, source, 1);
+			byte[] buf = packet.getData();
+			assertTrue(TFTP.getBlockNumber(packet) == 1);
+			assertTrue(packet.getLength() == 516);
+
+			TFTP.fillDATAPacket(packet, source, 2);
+			assertTrue(packet.getData() == buf);
+			assertTrue(TFTP.getBlockNumber(packet) == 2);
+			assertTrue(TFTP.getData(packet).length == 1);
+			assertTrue(TFTP.getData(packet)[0] == 2);
+		} finally {
+			// Cleanup
+			source.close();
+			f.delete();
+		}
+	}
+
+	//public static boolean verifyAckPacket(DatagramPacket packet, int blockNumber, String[] errorMessage)
+	//public static boolean verifyDataPacket(DatagramPacket packet, int blockNumber, int blockSize, String[] errorMessage)
+	//Received packets that are not shrunk, so their buffers are longer than the packets
+	//Expects the packets to be checked against their lengths rather than their buffers
+	@Test
+	public void verifyUnshrunkPacketTest1() throws Exception {
+		InetAddress addr = InetAddress.getLocalHost();
+		String[] errorMessage = new String[1];
+
+		// An ACK received into a buffer for the largest packet
+		DatagramPacket packet = TFTP.formPacket();
+		byte[] ack = TFTP.formACKPacket(addr, 69, 7).getData();
+		System.arraycopy(ack, 0, packet.getData(), 0, ack.length);
+		packet.setLength(ack.length);
+		assertTrue(TFTP.verifyAckPacket(packet, 7, errorMessage));
+		assertTrue(TFTP.getBlockNumber(packet) == 7);
+
+		// The same buffer reused for an ACK cut short keeps its old bytes past the length
+		packet.setLength(3);
+		assertFalse(TFTP.verifyAckPacket(packet, 7, errorMessage));
+
+		// A DATA packet longer than the block size is still too large
+		packet = TFTP.formPacket(8);
+		packet.getData()[1] = TFTP.DATA_OP_CODE;
+		packet.setLength(4 + 8);
+		assertTrue(TFTP.verifyDataPacket(packet, 0, 8, errorMessage));
+		packet.setLength(4 + 9);
+		assertFalse(TFTP.verifyDataPacket(packet, 0, 8, errorMessage));
+
+		// An ACK packet can be reused with another block number
+		DatagramPacket ackPacket = TFTP.formACKPacket(addr, 69, 0);
+		TFTP.setBlockNumber(ackPacket, 65535);
+		assertTrue(TFTP.getBlockNumber(ackPacket) == 65535);
+	}
+
+	//public ByteBuffer getBlock(long blockIndex)
+	//Test file of 2*512 + 1 bytes mapped in regions of 2 blocks
+	//Expects each block to match the file, across the boundary of the regions
+	@Test
+	public void mappedBlockSourceTest1() throws Exception {
+		// Setup
+		String filename = "mappedBlockSourceTest1.txt";
+		File f = new File(filename);
+		if (f.exists()) f.delete();
+
+		BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+		byte[] bytes = new byte[512*2+1];
+		Arrays.fill(bytes, 0, 512, (byte)1);
+		Arrays.fill(bytes, 512, 1024, (byte)2);
+		bytes[1024] = 3;
+		out.write(bytes);
+		out.close();
+
+		MappedBlockSource source = new MappedBlockSource(filename, 512, 1024);
+		try {
+			assertTrue(source.getFileSize() == 1025);
+
+			ByteBuffer block2 = source.getBlock(2);
+			assertTrue(block2.remaining() == 512);
+			assertTrue(block2.get(511) == 2);
+
+			ByteBuffer block3 = source.getBlock(3);
+			assertTrue(block3.remaining() == 1);
+			assertTrue(block3.get() == 3);
+
+			// The same block can be read again for a retransmission
+			assertTrue(source.getBlock(3).remaining() == 1);
+			assertTrue(source.getBlock(4).remaining() == 0);
+
+			DatagramPacket packet1 = TFTP.formDATAPacket(InetAddress.getLocalHost(), 69, source, 1);
+			assertTrue(TFTP.getData(packet1).length == 512);
+			assertTrue(TFTP.getData(packet1)[0] == 1);
+		} finally {
+			// Cleanup
+			source.close();
+			f.delete();
+		}
+	}
+
+	//public ByteBuffer getBlock(long blockIndex)
+	//Test an empty file and a file of 512 bytes (a multiple of 512)
+	//Expects the last block of both to be empty
+	@Test
+	public void mappedBlockSourceTest2() throws Exception {
+		// Setup
+		String filename = "mappedBlockSourceTest2.txt";
+		File f = new File(filename);
+		if (f.exists()) f.delete();
+		f.createNewFile();
+
+		MappedBlockSource source = new MappedBlockSource(filename, 512);
+		assertTrue(source.getBlock(1).remaining() == 0);
+		source.close();
+
+		BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+		out.write(new byte[512]);
+		out.close();
+
+		source = new MappedBlockSource(filename, 512);
+		try {
+			assertTrue(source.getBlock(1).remaining() == 512);
+			assertTrue(source.getBlock(2).remaining() == 0);
+		} finally {
+			// Cleanup
+			source.close();
+			f.delete();
+		}
+	}
+
+	//public ByteBuffer getBlock(long blockIndex, ByteBuffer view, long viewIndex)
+	//Test file of 2*512 + 1 bytes mapped in regions of 2 blocks, each block got with the view of the block before it
+	//Expects the view to be reused within a region and a new one across the boundary of the regions
+	@Test
+	public void mappedBlockSourceTest3() throws Exception {
+		// Setup
+		File f = new File("mappedBlockSourceTest3.txt");
+		byte[] bytes = new byte[512*2+1];
+		Arrays.fill(bytes, 512, 1024, (byte)2);
+		bytes[1024] = 3;
+		Files.write(f.toPath(), bytes);
+
+		MappedBlockSource source = new MappedBlockSource(f.getPath(), 512, 1024);
+		try {
+			ByteBuffer block1 = source.getBlock(1, null, 0);
+			assertTrue(block1.remaining() == 512);
+
+			ByteBuffer block2 = source.getBlock(2, block1, 1);
+			assertTrue(block2 == block1);
+			assertTrue(block2.remaining() == 512);
+			assertTrue(block2.get(block2.position()) == 2);
+
+			ByteBuffer block3 = source.getBlock(3, block2, 2);
+			assertTrue(block3 != block2);
+			assertTrue(block3.remaining() == 1);
+			assertTrue(block3.get(block3.position()) == 3);
+			assertTrue(source.getBlock(4, block3, 3).remaining() == 0);
+		} finally {
+			// Cleanup
+			source.close();
+			f.delete();
+		}
+	}
+
+	//public void put(String path, long modified, long length, int blockSize, long blockIndex, byte[] buf, int offset, int blockLength)
+	//Cache of 2 blocks of 8 bytes, with a third block added after the first is read again
+	//Expects the least recently used block to be evicted and the hits and misses to be counted
+	@Test
+	public void blockCacheTest1() {
+		BlockCache cache = new BlockCache(16);
+		byte[] block = new byte[8];
+		byte[] buf = new byte[8];
+
+		cache.put("/f", 1, 100, 8, 1, block, 0, 8);
+		cache.put("/f", 1, 100, 8, 2, block, 0, 8);
+		assertTrue(cache.get("/f", 1, 100, 8, 1, buf, 0) == 8);
+
+		// Block 2 is now the least recently used
+		cache.put("/f", 1, 100, 8, 3, block, 0, 8);
+		assertTrue(cache.getBlockCount() == 2);
+		assertTrue(cache.getSize() == 16);
+		assertTrue(cache.get("/f", 1, 100, 8, 2, buf, 0) == -1);
+		assertTrue(cache.get("/f", 1, 100, 8, 3, buf, 0) == 8);
+
+		// Another block size or version of the file is a different block
+		assertTrue(cache.get("/f", 1, 100, 16, 1, buf, 0) == -1);
+		assertTrue(cache.get("/f", 2, 100, 8, 1, buf, 0) == -1);
+
+		assertTrue(cache.getHits() == 2);
+		assertTrue(cache.getMisses() == 3);
+	}
+
+	//public CachingBlockSource(String filePath, int blockSize, BlockCache cache)
+	//Read a file twice, change it, and read it again
+	//Expects the second read to be served from the cache and the changed file to be read from disk
+	@Test
+	public void cachingBlockSourceTest1() throws Exception {
+		// Setup
+		String filename = "cachingBlockSourceTest1.txt";
+		File f = new File(filename);
+		if (f.exists()) f.delete();
+
+		BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+		out.write(new byte[] {1, 2, 3});
+		out.close();
+		f.setLastModified(1000000);
+
+		BlockCache cache = new BlockCache(1024);
+		byte[] buf = new byte[512];
+		try {
+			for (int i = 0; i < 2; i++) {
+				BlockSource source = new CachingBlockSource(filename, 512, cache);
+				assertTrue(source.readBlock(1, buf, 0) == 3);
+				assertTrue(buf[2] == 3);
+				source.close();
+			}
+			assertTrue(cache.getMisses() == 1);
+			assertTrue(cache.getHits() == 1);
+
+			// Rewrite the file with the same length
+			out = new BufferedOutputStream(new FileOutputStream(f));
+			out.write(new byte[] {4, 5, 6});
+			out.close();
+			f.setLastModified(2000000);
+
+			BlockSource source = new CachingBlockSource(filename, 512, cache);
+			assertTrue(source.readBlock(1, buf, 0) == 3);
+			assertTrue(buf[2] == 6);
+			source.close();
+			assertTrue(cache.getMisses() == 2);
+			assertTrue(cache.getBlockCount() == 1);
+		} finally {
+			// Cleanup
+			f.delete();
+		}
+	}
+
+	//public static int blockIndexToBlockNumber(long blockIndex)
+	@Test
+	public void blockIndexToBlockNumberTest1() {
+		assertTrue(TFTP.blockIndexToBlockNumber(1) == 1);
+		assertTrue(TFTP.blockIndexToBlockNumber(65535) == 65535);
+		assertTrue(TFTP.blockIndexToBlockNumber(65536) == 0);
+		assertTrue(TFTP.blockIndexToBlockNumber(65537) == 1);
+	}
+
+	//public FileBlockSink(String filePath)
+	//Write two blocks and commit
+	//Expects the file to hold both blocks and no temporary file to be left behind
+	@Test
+	public void fileBlockSinkTest1() throws Exception {
+		// Setup
+		File dir = new File("fileBlockSinkTest1");
+		dir.mkdir();
+		File f = new File(dir, "sink.txt");
+		if (f.exists()) f.delete();
+
+		BlockSink sink = new FileBlockSink(f.getPath());
+		try {
+			byte[] block1 = new byte[516];
+			Arrays.fill(block1, 4, 516, (byte)1);
+			byte[] block2 = {0, 3, 0, 2, 2, 2};
+			sink.write(block1, 4, 512);
+			sink.write(block2, 4, 2);
+
+			// Nothing is visible under the real name until the sink is committed
+			assertFalse(f.exists());
+			sink.commit();
+			assertTrue(sink.getBytesWritten() == 514);
+
+			byte[] fileBytes = java.nio.file.Files.readAllBytes(f.toPath());
+			assertTrue(fileBytes.length == 514);
+			assertTrue(fileBytes[0] == 1);
+			assertTrue(fileBytes[513] == 2);
+			assertTrue(dir.list().length == 1);
+		} finally {
+			// Cleanup
+			sink.abort();
+			f.delete();
+			dir.delete();
+		}
+	}
+
+	//public FileBlockSink(String filePath)
+	//Write a block and abort
+	//Expects neither the file nor the temporary file to exist afterwards
+	@Test
+	public void fileBlockSinkTest2() throws Exception {
+		// Setup
+		File dir = new File("fileBlockSinkTest2");
+		dir.mkdir();
+		File f = new File(dir, "sink.txt");
+		if (f.exists()) f.delete();
+
+		BlockSink sink = new FileBlockSink(f.getPath());
+		sink.write(new byte[512], 0, 512);
+		sink.abort();
+
+		assertFalse(f.exists());
+		assertTrue(dir.list().length == 0);
+
+		// Cleanup
+		dir.delete();
+	}
+
+	//public void writeAt(long position, byte[] buf, int offset, int length)
+	//Write the blocks of a file out of order, as a late multicast client does
+	//Expects the blocks to end up in place and the file to end after the furthest block
+	@Test
+	public void fileBlockSinkTest3() throws Exception {
+		// Setup
+		File dir = new File("fileBlockSinkTest3");
+		dir.mkdir();
+		File f = new File(dir, "sink.txt");
+		if (f.exists()) f.delete();
+
+		FileBlockSink sink = new FileBlockSink(f.getPath());
+		try {
+			byte[] blocks = "aaaabbbbcc".getBytes();
+			sink.writeAt(8, blocks, 8, 2);
+			sink.writeAt(0, blocks, 0, 4);
+			sink.writeAt(4, blocks, 4, 4);
+			assertTrue(sink.getBytesWritten() == 10);
+			sink.commit();
+
+			assertTrue(new String(Files.readAllBytes(f.toPath())).equals("aaaabbbbcc"));
+		} finally {
+			// Cleanup
+			sink.abort();
+			f.delete();
+			dir.delete();
+		}
+	}
+
+	//public static FileBlockSink resumable(String filePath)
+	//Abort a resumable transfer part way, then resume it and start it over
+	//Expects the partial file to be kept on abort, appended to on resume, cut back by resumeFrom and moved into place on commit
+	@Test
+	public void fileBlockSinkTest4() throws Exception {
+		// Setup
+		File dir = new File("fileBlockSinkTest4");
+		dir.mkdir();
+		File f = new File(dir, "sink.txt");
+		File part = new File(dir, ".sink.txt.part");
+		if (f.exists()) f.delete();
+		if (part.exists()) part.delete();
+
+		FileBlockSink sink = FileBlockSink.resumable(f.getPath());
+		try {
+			assertTrue(sink.getKept() == 0);
+			sink.write("aaaa".getBytes(), 0, 4);
+			sink.abort();
+			assertFalse(f.exists());
+			assertTrue(part.length() == 4);
+
+			// Resume after what was kept
+			sink = FileBlockSink.resumable(f.getPath());
+			assertTrue(sink.getKept() == 4);
+			sink.write("bbbb".getBytes(), 0, 4);
+			sink.commit();
+			assertFalse(part.exists());
+			assertTrue(new String(Files.readAllBytes(f.toPath())).equals("aaaabbbb"));
+			f.delete();
+
+			// Start over when the server does not resume
+			sink = FileBlockSink.resumable(f.getPath());
+			sink.write("cccc".getBytes(), 0, 4);
+			sink.abort();
+			sink = FileBlockSink.resumable(f.getPath());
+			sink.resumeFrom(0);
+			sink.write("dd".getBytes(), 0, 2);
+			sink.commit();
+			assertTrue(new String(Files.readAllBytes(f.toPath())).equals("dd"));
+		} finally {
+			// Cleanup
+			sink.abort();
+			f.delete();
+			part.delete();
+			dir.delete();
+		}
+	}
+
+	//public static FileBlockSink resumable(String filePath, long size)
+	//Open a resumable sink whose partial file is already as long as the whole file, as a crash before the file was cut back or moved into place leaves it
+	//Expects the sink to start over rather than resume from the full length, and a shorter partial file to be resumed
+	@Test
+	public void fileBlockSinkTest5() throws Exception {
+		// Setup
+		File dir = new File("fileBlockSinkTest5");
+		dir.mkdir();
+		File f = new File(dir, "sink.txt");
+		File part = new File(dir, ".sink.txt.part");
+		if (f.exists()) f.delete();
+
+		// The partial file of a transfer that was killed, extended to the whole file
+		RandomAccessFile leftover = new RandomAccessFile(part, "rw");
+		leftover.write("aaaa".getBytes());
+		leftover.setLength(4096);
+		leftover.close();
+
+		FileBlockSink sink = FileBlockSink.resumable(f.getPath(), 4096);
+		try {
+			assertTrue(sink.getKept() == 0);
+			assertTrue(sink.getBytesWritten() == 0);
+			assertTrue(part.length() == 0);
+			sink.write("bbbb".getBytes(), 0, 4);
+			sink.abort();
+
+			// A partial file shorter than the whole file is resumed
+			sink = FileBlockSink.resumable(f.getPath(), 4096);
+			assertTrue(sink.getKept() == 4);
+		} finally {
+			// Cleanup
+			sink.abort();
+			f.delete();
+			part.delete();
+			dir.delete();
+		}
+	}
+
+	//public static Request parseRQ(DatagramPacket p) throws IllegalArgumentException
+	//Test request with options
+	//Expects the options to survive forming and parsing, with names in lower case
+	@Test
+	public void parseRQTest2() throws Exception {
+		Request request = new Request(Request.Type.READ, "hello.txt", "octet");
+		request.setOption("BLKSIZE", "1428");
+		DatagramPacket packet = TFTP.formRQPacket(InetAddress.getLocalHost(), 69, request);
+		String[] errorMessage = new String[1];
+
+		assertTrue(TFTP.verifyRequestPacket(packet, errorMessage));
+
+		Request parsedRequest = TFTP.parseRQ(packet);
+		assertTrue(parsedRequest.getFileName().equals("hello.txt"));
+		assertTrue(parsedRequest.getMode().equals("octet"));
+		assertTrue(parsedRequest.getOptions().size() == 1);
+		assertTrue(parsedRequest.getOption(TFTP.OPTION_BLKSIZE).equals("1428"));
+	}
+
+	//public static boolean verifyRequestPacket(DatagramPacket packet, String[] errorMessage)
+	//Test request with an option name but no value
+	@Test
+	public void VerifyRequestPacketTest13() throws Exception {
+		byte[] dataBuf = {0, 1, 65, 0, 111, 99, 116, 101, 116, 0, 98, 0};
+		DatagramPacket packet = TFTP.formPacket(InetAddress.getLocalHost(), 69, dataBuf);
+		String[] errorMessage = new String[1];
+
+		assertFalse(TFTP.verifyRequestPacket(packet, errorMessage));
+		assertTrue(errorMessage[0].equals("No termination after final 0 byte"));
+	}
+
+	//public static DatagramPacket formOACKPacket(InetAddress addr, int port, Map<String, String> options)
+	@Test
+	public void formOACKPacketTest1() throws Exception {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		options.put(TFTP.OPTION_BLKSIZE, "1024");
+		DatagramPacket packet = TFTP.formOACKPacket(InetAddress.getLocalHost(), 69, options);
+		String[] errorMessage = new String[1];
+
+		assertTrue(TFTP.getOpCode(packet) == TFTP.OACK_OP_CODE);
+		assertTrue(TFTP.verifyOACKPacket(packet, errorMessage));
+		assertTrue(TFTP.getOptions(packet).equals(options));
+
+		// An ACK is not an OACK
+		assertFalse(TFTP.verifyOACKPacket(TFTP.formACKPacket(InetAddress.getLocalHost(), 69, 0), errorMessage));
+	}
+
+	//public static boolean verifyDataPacket(DatagramPacket packet, int blockNumber, int blockSize, String[] errorMessage)
+	//Test DATA packet larger than 512 bytes with a negotiated block size
+	@Test
+	public void VerifyDataPacketTest11() throws Exception {
+		DatagramPacket packet = TFTP.formDATAPacket(InetAddress.getLocalHost(), 69, 1, new byte[1024]);
+		String[] errorMessage = new String[1];
+
+		assertFalse(TFTP.verifyDataPacket(packet, 1, errorMessage));
+		assertTrue(errorMessage[0].equals("Packet too large"));
+		assertTrue(TFTP.verifyDataPacket(packet, 1, 1024, errorMessage));
+		assertFalse(TFTP.verifyDataPacket(packet, 1, 1023, errorMessage));
+	}
+
+	//public Map<String, String> accept(Map<String, String> requested)
+	//Expects the block size to be capped at MAX_BLOCK_SIZE, and unknown or unusable options to be ignored
+	@Test
+	public void transferOptionsAcceptTest1() {
+		Map<String, String> requested = new LinkedHashMap<String, String>();
+		requested.put(TFTP.OPTION_BLKSIZE, "70000");
+		requested.put("unknown", "1");
+		TransferOptions options = new TransferOptions();
+		Map<String, String> accepted = options.accept(requested);
+
+		assertTrue(accepted.size() == 1);
+		assertTrue(accepted.get(TFTP.OPTION_BLKSIZE).equals(Integer.toString(TFTP.MAX_BLOCK_SIZE)));
+		assertTrue(options.getBlockSize() == TFTP.MAX_BLOCK_SIZE);
+
+		requested.put(TFTP.OPTION_BLKSIZE, "abc");
+		options = new TransferOptions();
+		assertTrue(options.accept(requested).isEmpty());
+		assertTrue(options.getBlockSize() == TFTP.MAX_DATA_SIZE);
+	}
+
+	//public boolean applyOACK(Map<String, String> requested, Map<String, String> acknowledged, String[] errorMessage)
+	//Expects an OACK with a larger block size than requested to be rejected
+	@Test
+	public void transferOptionsApplyOACKTest1() {
+		Map<String, String> requested = new LinkedHashMap<String, String>();
+		requested.put(TFTP.OPTION_BLKSIZE, "1024");
+		Map<String, String> acknowledged = new LinkedHashMap<String, String>();
+		acknowledged.put(TFTP.OPTION_BLKSIZE, "2048");
+		String[] errorMessage = new String[1];
+
+		TransferOptions options = new TransferOptions();
+		assertFalse(options.applyOACK(requested, acknowledged, errorMessage));
+
+		acknowledged.put(TFTP.OPTION_BLKSIZE, "1000");
+		assertTrue(options.applyOACK(requested, acknowledged, errorMessage));
+		assertTrue(options.getBlockSize() == 1000);
+		assertTrue(options.getPacketSize() == 1004);
+	}
+
+	//public Map<String, String> accept(Map<String, String> requested)
+	//public boolean applyOACK(Map<String, String> requested, Map<String, String> acknowledged, String[] errorMessage)
+	//Expects the server to cap the window size and the client to reject a larger window than requested
+	@Test
+	public void transferOptionsWindowSizeTest1() {
+		Map<String, String> requested = new LinkedHashMap<String, String>();
+		requested.put(TFTP.OPTION_WINDOWSIZE, "128");
+
+		TransferOptions options = new TransferOptions();
+		Map<String, String> accepted = options.accept(requested);
+		assertTrue(accepted.get(TFTP.OPTION_WINDOWSIZE).equals(Integer.toString(TransferOptions.MAX_ACCEPTED_WINDOW_SIZE)));
+		assertTrue(options.getWindowSize() == TransferOptions.MAX_ACCEPTED_WINDOW_SIZE);
+
+		requested.put(TFTP.OPTION_WINDOWSIZE, "0");
+		options = new TransferOptions();
+		assertTrue(options.accept(requested).isEmpty());
+		assertTrue(options.getWindowSize() == 1);
+
+		requested.put(TFTP.OPTION_WINDOWSIZE, "8");
+		Map<String, String> acknowledged = new LinkedHashMap<String, String>();
+		acknowledged.put(TFTP.OPTION_WINDOWSIZE, "16");
+		String[] errorMessage = new String[1];
+		assertFalse(options.applyOACK(requested, acknowledged, errorMessage));
+
+		acknowledged.put(TFTP.OPTION_WINDOWSIZE, "4");
+		assertTrue(options.applyOACK(requested, acknowledged, errorMessage));
+		assertTrue(options.getWindowSize() == 4);
+	}
+
+	//public Map<String, String> accept(Map<String, String> requested)
+	//public boolean applyOACK(Map<String, String> requested, Map<String, String> acknowledged, String[] errorMessage)
+	//Expects the server to echo a timeout in range, ignore one out of range, and the client to reject another value
+	@Test
+	public void transferOptionsTimeoutTest1() {
+		Map<String, String> requested = new LinkedHashMap<String, String>();
+		requested.put(TFTP.OPTION_TIMEOUT, "5");
+
+		TransferOptions options = new TransferOptions();
+		assertTrue(options.accept(requested).get(TFTP.OPTION_TIMEOUT).equals("5"));
+		assertTrue(options.getTimeout() == 5);
+		assertTrue(options.createRttEstimator().getTimeout() == 5000);
+
+		requested.put(TFTP.OPTION_TIMEOUT, "256");
+		options = new TransferOptions();
+		assertTrue(options.accept(requested).isEmpty());
+		assertTrue(options.getTimeout() == 0);
+
+		requested.put(TFTP.OPTION_TIMEOUT, "5");
+		Map<String, String> acknowledged = new LinkedHashMap<String, String>();
+		acknowledged.put(TFTP.OPTION_TIMEOUT, "4");
+		String[] errorMessage = new String[1];
+		assertFalse(options.applyOACK(requested, acknowledged, errorMessage));
+
+		acknowledged.put(TFTP.OPTION_TIMEOUT, "5");
+		assertTrue(options.applyOACK(requested, acknowledged, errorMessage));
+		assertTrue(options.getTimeout() == 5);
+	}
+
+	//public Map<String, String> accept(Map<String, String> requested)
+	//public void acceptTransferSize(Map<String, String> accepted, long size)
+	//public boolean applyOACK(Map<String, String> requested, Map<String, String> acknowledged, String[] errorMessage)
+	//Expects the server to record the requested size and answer with the file size, and the client to reject a negative size
+	@Test
+	public void transferOptionsTransferSizeTest1() {
+		Map<String, String> requested = new LinkedHashMap<String, String>();
+		requested.put(TFTP.OPTION_TSIZE, "123456");
+
+		// The size is only acknowledged once the server accepts it
+		TransferOptions options = new TransferOptions();
+		Map<String, String> accepted = options.accept(requested);
+		assertTrue(accepted.isEmpty());
+		assertTrue(options.getTransferSize() == 123456);
+		options.acceptTransferSize(accepted, 123456);
+		assertTrue(accepted.get(TFTP.OPTION_TSIZE).equals("123456"));
+
+		requested.put(TFTP.OPTION_TSIZE, "abc");
+		options = new TransferOptions();
+		options.accept(requested);
+		assertTrue(options.getTransferSize() == -1);
+
+		requested.put(TFTP.OPTION_TSIZE, "0");
+		Map<String, String> acknowledged = new LinkedHashMap<String, String>();
+		acknowledged.put(TFTP.OPTION_TSIZE, "-5");
+		String[] errorMessage = new String[1];
+		assertFalse(options.applyOACK(requested, acknowledged, errorMessage));
+
+		acknowledged.put(TFTP.OPTION_TSIZE, "70000");
+		assertTrue(options.applyOACK(requested, acknowledged, errorMessage));
+		assertTrue(options.getTransferSize() == 70000);
+	}
+
+	//public void acceptOffset(Map<String, String> accepted, long offset)
+	//public boolean applyOACK(Map<String, String> requested, Map<String, String> acknowledged, String[] errorMessage)
+	//Expects the server to answer with the offset it resumes from, and the client to reject an offset other than the one it asked for
+	@Test
+	public void transferOptionsOffsetTest1() {
+		Map<String, String> requested = new LinkedHashMap<String, String>();
+		requested.put(TFTP.OPTION_OFFSET, "1024");
+
+		// The offset is only acknowledged once the server has checked the file
+		TransferOptions options = new TransferOptions();
+		Map<String, String> accepted = options.accept(requested);
+		assertTrue(accepted.isEmpty());
+		assertTrue(options.getOffset() == 1024);
+		options.acceptOffset(accepted, 1024);
+		assertTrue(accepted.get(TFTP.OPTION_OFFSET).equals("1024"));
+
+		// A RRQ must resume where asked
+		Map<String, String> acknowledged = new LinkedHashMap<String, String>();
+		acknowledged.put(TFTP.OPTION_OFFSET, "512");
+		String[] errorMessage = new String[1];
+		options = new TransferOptions();
+		assertFalse(options.applyOACK(requested, acknowledged, errorMessage));
+
+		// A WRQ asks for 0 and resumes wherever the server kept the file up to
+		requested.put(TFTP.OPTION_OFFSET, "0");
+		assertTrue(options.applyOACK(requested, acknowledged, errorMessage));
+		assertTrue(options.getOffset() == 512);
+
+		acknowledged.put(TFTP.OPTION_OFFSET, "-1");
+		assertFalse(options.applyOACK(requested, acknowledged, errorMessage));
+	}
+
+	//public void addSample(long rtt)
+	//public void backoff()
+	//Expects the timeout to follow the measured RTT within its bounds, double on backoff, and stay fixed if negotiated
+	@Test
+	public void rttEstimatorTest1() {
+		RttEstimator rtt = new RttEstimator();
+		assertTrue(rtt.getTimeout() == RttEstimator.INITIAL_TIMEOUT);
+
+		// 100 ms: timeout is SRTT + 4 * RTTVAR = 100 + 4 * 50
+		rtt.addSample(100 * 1000000L);
+		assertTrue(rtt.getTimeout() == 300);
+
+		// A steady RTT brings the timeout down towards it
+		for (int i = 0; i < 50; i++) {
+			rtt.addSample(100 * 1000000L);
+		}
+		assertTrue(rtt.getTimeout() >= 100 && rtt.getTimeout() < 110);
+
+		rtt.backoff();
+		assertTrue(rtt.getTimeout() >= 200 && rtt.getTimeout() < 220);
+
+		// A fast link is bounded below, and the backoff above
+		rtt.addSample(200000L);
+		for (int i = 0; i < 50; i++) {
+			rtt.addSample(200000L);
+		}
+		assertTrue(rtt.getTimeout() == RttEstimator.MIN_TIMEOUT);
+		for (int i = 0; i < 20; i++) {
+			rtt.backoff();
+		}
+		assertTrue(rtt.getTimeout() == RttEstimator.MAX_TIMEOUT);
+
+		RttEstimator fixed = RttEstimator.fixed(3000);
+		fixed.addSample(1000000L);
+		fixed.backoff();
+		assertTrue(fixed.getTimeout() == 3000);
+	}
+
+	//public boolean send(BlockSource source, DatagramPacket oackPacket, String fileName)
+	//public boolean receive(BlockSink sink, DatagramPacket firstPacket, String fileName, String directory)
+	//Transfer a file over loopback with a window of 4 blocks
+	//Expects the file to arrive intact
+	@Test
+	public void windowedTransferTest1() throws Exception {
+		byte[] file = windowedTransfer(4, 0, 0);
+		assertTrue(file.length == 1000);
+		for (int i = 0; i < file.length; i++) {
+			assertTrue(file[i] == (byte) i);
+		}
+	}
+
+	//public boolean send(BlockSource source, DatagramPacket oackPacket, String fileName)
+	//public boolean receive(BlockSink sink, DatagramPacket firstPacket, String fileName, String directory)
+	//Transfer a file over loopback with a window of 4 blocks, dropping every 7th DATA and every 3rd ACK
+	//Expects the lost blocks to be resent and the file to arrive intact
+	@Test
+	public void windowedTransferTest2() throws Exception {
+		byte[] file = windowedTransfer(4, 7, 3);
+		assertTrue(file.length == 1000);
+		for (int i = 0; i < file.length; i++) {
+			assertTrue(file[i] == (byte) i);
+		}
+	}
+
+	/**
+	 * Sends a 1000 byte file in 8 byte blocks from a WindowedSender to a WindowedReceiver
+	 * over loopback, dropping some of the packets sent by each.
+	 *
+	 * @param windowSize Window size of the transfer
+	 * @param dataDropPeriod Drops every n-th packet sent by the sender, 0 to drop none
+	 * @param ackDropPeriod Drops every n-th packet sent by the receiver, 0 to drop none
+	 *
+	 * @return Bytes received
+	 */
+	private static byte[] windowedTransfer(int windowSize, int dataDropPeriod, int ackDropPeriod) throws Exception {
+		final byte[] file = new byte[1000];
+		for (int i = 0; i < file.length; i++) {
+			file[i] = (byte) i;
+		}
+		final TransferOptions options = new TransferOptions();
+		options.setBlockSize(8);
+		options.setWindowSize(windowSize);
+
+		final DatagramSocket senderSocket = lossySocket(dataDropPeriod);
+		final DatagramSocket receiverSocket = lossySocket(ackDropPeriod);
+		senderSocket.setSoTimeout(100);
+		receiverSocket.setSoTimeout(100);
+		InetAddress localhost = InetAddress.getLoopbackAddress();
+
+		BlockSource source = new BlockSource() {
+			public int readBlock(long blockIndex, byte[] buf, int offset) {
+				int start = (int) Math.min((blockIndex - 1) * 8, file.length);
+				int length = Math.min(8, file.length - start);
+				System.arraycopy(file, start, buf, offset, length);
+				return length;
+			}
+			public int getBlockSize() {
+				return 8;
+			}
+			public void close() {
+			}
+		};
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		final BlockSink sink = new BlockSink() {
+			public void write(byte[] buf, int offset, int length) {
+				received.write(buf, offset, length);
+			}
+			public long getBytesWritten() {
+				return received.size();
+			}
+			public void commit() {
+			}
+			public void abort() {
+			}
+		};
+
+		final WindowedReceiver receiver = new WindowedReceiver(receiverSocket, localhost, senderSocket.getLocalPort(), options, 20, false, "server");
+		final boolean[] receiveComplete = new boolean[1];
+		Thread receiverThread = new Thread() {
+			public void run() {
+				try {
+					receiveComplete[0] = receiver.receive(sink, null, "file.txt", ".");
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		receiverThread.start();
+
+		WindowedSender sender = new WindowedSender(senderSocket, localhost, receiverSocket.getLocalPort(), options, 20, false, "client");
+		try {
+			assertTrue(sender.send(source, null, "file.txt"));
+			receiverThread.join(10000);
+			assertTrue(receiveComplete[0]);
+		} finally {
+			senderSocket.close();
+			receiverSocket.close();
+		}
+		return received.toByteArray();
+	}
+
+	/**
+	 * @param dropPeriod Drops every n-th packet sent, 0 to drop none
+	 *
+	 * @return DatagramSocket that silently drops some of the packets sent through it
+	 */
+	private static DatagramSocket lossySocket(final int dropPeriod) throws IOException {
+		return new DatagramSocket() {
+			private int sent;
+
+			public void send(DatagramPacket p) throws IOException {
+				if (dropPeriod > 0 && ++sent % dropPeriod == 0) return;
+				super.send(p);
+			}
+		};
+	}
+
+	//public static ExecutorService create(String mode, String threadName)
+	//Expects both modes to run tasks, falling back to platform threads where virtual threads are not available
+	@Test
+	public void transferExecutorsTest1() throws Exception {
+		assertFalse(TransferExecutors.isValidMode("green"));
+		for (String mode : new String[] {TransferExecutors.MODE_PLATFORM, TransferExecutors.MODE_VIRTUAL}) {
+			assertTrue(TransferExecutors.isValidMode(mode));
+			java.util.concurrent.ExecutorService executor = TransferExecutors.create(mode, "Test");
+			final java.util.concurrent.CountDownLatch ran = new java.util.concurrent.CountDownLatch(2);
+			for (int i = 0; i < 2; i++) {
+				executor.execute(new Runnable() {
+					public void run() {
+						ran.countDown();
+					}
+				});
+			}
+			assertTrue(ran.await(5, java.util.concurrent.TimeUnit.SECONDS));
+			executor.shutdown();
+		}
+	}
+
+	//public void execute(Runnable task)
+	//Run 1 task at a time with 1 task queued
+	//Expects the second task to wait, the third to be rejected, and the queued task to run once the first ends
+	@Test
+	public void boundedExecutorTest1() throws Exception {
+		java.util.concurrent.ExecutorService threads = TransferExecutors.create(TransferExecutors.MODE_PLATFORM, "Test");
+		BoundedExecutor executor = new BoundedExecutor(threads, 1, 1);
+		final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+		final java.util.concurrent.CountDownLatch secondRan = new java.util.concurrent.CountDownLatch(1);
+
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		executor.execute(new Runnable() {
+			public void run() {
+				secondRan.countDown();
+			}
+		});
+		assertTrue(executor.getRunning() == 1);
+		assertTrue(executor.getQueued() == 1);
+
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+				}
+			});
+			fail();
+		} catch (java.util.concurrent.RejectedExecutionException e) {
+		}
+
+		release.countDown();
+		assertTrue(secondRan.await(5, java.util.concurrent.TimeUnit.SECONDS));
+		executor.awaitIdle();
+		assertTrue(executor.getRunning() == 0);
+		threads.shutdown();
+	}
+
+	//public void transferFinished(long startTime, boolean complete)
+	//public void errorSent(int errorCode)
+	//Expects the counters to follow the transfers, bytes and ERROR packets recorded
+	@Test
+	public void serverMetricsTest1() {
+		ServerMetrics metrics = new ServerMetrics();
+		long t1 = metrics.transferStarted();
+		long t2 = metrics.transferStarted();
+		assertTrue(metrics.getActiveTransfers() == 2);
+
+		metrics.addBytesSent(512);
+		metrics.addBytesSent(100);
+		metrics.addBytesReceived(7);
+		metrics.retransmitted();
+		metrics.timedOut();
+		metrics.errorSent(TFTP.ERROR_CODE_FILE_NOT_FOUND);
+		metrics.errorSent(TFTP.ERROR_CODE_FILE_NOT_FOUND);
+		metrics.errorSent(99);
+		metrics.transferFinished(t1, true);
+		metrics.transferFinished(t2, false);
+
+		assertTrue(metrics.getActiveTransfers() == 0);
+		assertTrue(metrics.getTransfersStarted() == 2);
+		assertTrue(metrics.getTransfersCompleted() == 1);
+		assertTrue(metrics.getTransfersFailed() == 1);
+		assertTrue(metrics.getBytesSent() == 612);
+		assertTrue(metrics.getBytesReceived() == 7);
+		assertTrue(metrics.getRetransmits() == 1);
+		assertTrue(metrics.getTimeouts() == 1);
+		assertTrue(metrics.getErrorPacketsByCode()[TFTP.ERROR_CODE_FILE_NOT_FOUND] == 2);
+		assertTrue(metrics.getErrorPacketsByCode()[TFTP.ERROR_CODE_NOT_DEFINED] == 0);
+	}
+
+	//public long getTransferDurationPercentile(double percentile)
+	//Record transfers lasting 1 to 100 ms
+	//Expects each percentile to be within an eighth above the exact duration
+	@Test
+	public void serverMetricsTest2() {
+		ServerMetrics metrics = new ServerMetrics();
+		assertTrue(metrics.getTransferDurationMedian() == 0);
+
+		for (int ms = 1; ms <= 100; ms++) {
+			metrics.transferStarted();
+			metrics.transferFinished(System.nanoTime() - ms * 1000000L, true);
+		}
+		assertTrue(metrics.getTransferDurationMedian() >= 50 && metrics.getTransferDurationMedian() <= 50 * 9 / 8);
+		assertTrue(metrics.getTransferDuration90thPercentile() >= 90 && metrics.getTransferDuration90thPercentile() <= 90 * 9 / 8);
+		assertTrue(metrics.getTransferDuration99thPercentile() >= 99 && metrics.getTransferDuration99thPercentile() <= 99 * 9 / 8);
+		assertTrue(metrics.getTransferDurationMax() >= 100 && metrics.getTransferDurationMax() <= 100 * 9 / 8);
+	}
+
+	//public static boolean isEnabled(Level messageLevel)
+	//Set each level in turn
+	//Expects only messages at or above the level to be enabled, and disabled ones never queued
+	@Test
+	public void logTest1() {
+		Log.Level saved = Log.getLevel();
+		try {
+			Log.setLevel(Log.Level.INFO);
+			assertTrue(Log.isEnabled(Log.Level.ERROR));
+			assertTrue(Log.isEnabled(Log.Level.INFO));
+			assertFalse(Log.isEnabled(Log.Level.DEBUG));
+			assertFalse(Log.isTraceEnabled());
+
+			// A disabled message is dropped before it reaches the queue
+			Log.trace("DATA %d received", 1);
+			Log.flush();
+			assertTrue(Log.getDropped() == 0);
+
+			Log.setLevel(Log.Level.TRACE);
+			assertTrue(Log.isTraceEnabled());
+			Log.setLevel(Log.Level.ERROR);
+			assertFalse(Log.isEnabled(Log.Level.WARN));
+		} finally {
+			Log.setLevel(saved);
+		}
+	}
+
+	//public static DatagramSocket openReusePortSocket(int port)
+	//Bind two listener shards to the same port with SO_REUSEPORT, then send a request to the port
+	//Expects both sockets to bind and one of them to receive the request, or the test to be skipped where SO_REUSEPORT is not supported
+	@Test
+	public void openReusePortSocketTest1() throws IOException {
+		assumeTrue(TFTP.isReusePortAvailable());
+		DatagramSocket shard0 = TFTP.openReusePortSocket(0);
+		DatagramSocket shard1 = null;
+		DatagramSocket client = new DatagramSocket();
+		try {
+			int port = shard0.getLocalPort();
+			shard1 = TFTP.openReusePortSocket(port);
+			assertTrue(shard1.getLocalPort() == port);
+
+			Request r = new Request(Request.Type.READ, "test.txt", TFTP.MODE_OCTET);
+			client.send(TFTP.formRQPacket(InetAddress.getLoopbackAddress(), port, r));
+
+			// The kernel hands the request to either shard
+			DatagramPacket request = TFTP.formPacket();
+			boolean received = false;
+			for (int i = 0; i < 10 && !received; i++) {
+				for (DatagramSocket shard : new DatagramSocket[] { shard0, shard1 }) {
+					shard.setSoTimeout(100);
+					try {
+						shard.receive(request);
+						received = true;
+						break;
+					} catch (SocketTimeoutException e) {
+					}
+				}
+			}
+			assertTrue(received);
+			assertTrue(TFTP.getOpCode(request) == TFTP.READ_OP_CODE);
+			assertTrue(request.getPort() == client.getLocalPort());
+		} finally {
+			// Cleanup
+			shard0.close();
+			if (shard1 != null) shard1.close();
+			client.close();
+		}
+	}
+
+	//public static String keyOf(DatagramPacket packet)
+	//Receive the same request twice from one client, then from another port and for another file
+	//Expects only the repeated request to be a duplicate while the first is active
+	@Test
+	public void activeRequestsTest1() throws UnknownHostException {
+		InetAddress addr = InetAddress.getLocalHost();
+		Request r = new Request(Request.Type.READ, "test.txt", TFTP.MODE_OCTET);
+		ActiveRequests active = new ActiveRequests();
+
+		String key = ActiveRequests.keyOf(TFTP.formRQPacket(addr, 1234, r));
+		assertTrue(active.add(key));
+		r.setOption(TFTP.OPTION_BLKSIZE, "1428");
+		assertFalse(active.add(ActiveRequests.keyOf(TFTP.formRQPacket(addr, 1234, r))));
+		assertTrue(active.add(ActiveRequests.keyOf(TFTP.formRQPacket(addr, 1235, r))));
+		Request other = new Request(Request.Type.READ, "other.txt", TFTP.MODE_OCTET);
+		assertTrue(active.add(ActiveRequests.keyOf(TFTP.formRQPacket(addr, 1234, other))));
+		Request write = new Request(Request.Type.WRITE, "test.txt", TFTP.MODE_OCTET);
+		assertTrue(active.add(ActiveRequests.keyOf(TFTP.formRQPacket(addr, 1234, write))));
+
+		// Once the transfer ends the request can be served again
+		active.remove(key);
+		assertTrue(active.add(key));
+		assertTrue(active.size() == 4);
+	}
+
+	//public void handleTimeout()
+	//Lose the ACK 0 of a WRQ to the event loop server, so the client sends its WRQ again, then send the file
+	//Expects the duplicate WRQ to be dropped, the transfer to send ACK 0 again once it times out and the write to complete
+	@Test
+	public void activeRequestsTest2() throws Exception {
+		// Setup
+		File dir = new File("activeRequestsTest2");
+		dir.mkdir();
+		File f = new File(dir, "up.txt");
+		if (f.exists()) f.delete();
+
+		EventLoopServer server = new EventLoopServer(dir.getPath() + File.separator, 0, 1, null, new ServerMetrics());
+		DatagramSocket client = new DatagramSocket();
+		try {
+			server.run();
+			client.setSoTimeout(5000);
+			Request r = new Request(Request.Type.WRITE, "up.txt", TFTP.MODE_OCTET);
+			DatagramPacket wrq = TFTP.formRQPacket(InetAddress.getLoopbackAddress(), server.getPort(), r);
+			client.send(wrq);
+
+			// The client never sees this ACK 0, so it sends the WRQ again
+			DatagramPacket ack = TFTP.formPacket();
+			client.receive(ack);
+			int TID = ack.getPort();
+			client.send(wrq);
+
+			// Only the transfer of the first WRQ answers
+			client.receive(ack);
+			assertTrue(ack.getPort() == TID);
+			assertTrue(TFTP.getOpCode(ack) == TFTP.ACK_OP_CODE);
+			assertTrue(TFTP.getBlockNumber(ack) == 0);
+
+			client.send(TFTP.formDATAPacket(ack.getAddress(), TID, 1, "hello".getBytes()));
+			client.receive(ack);
+			assertTrue(TFTP.getBlockNumber(ack) == 1);
+
+			// The file is committed just after the last ACK is sent
+			for (int i = 0; i < 50 && !f.exists(); i++) {
+				Thread.sleep(20);
+			}
+			assertTrue(new String(Files.readAllBytes(f.toPath())).equals("hello"));
+		} finally {
+			// Cleanup
+			server.exit();
+			client.close();
+			f.delete();
+			dir.delete();
+		}
+	}
+
+	//public DatagramSocket acquire()
+	//Send a datagram to a pooled socket after its transfer, then take the socket again
+	//Expects the same socket back with the stale datagram drained
+	@Test
+	public void socketPoolTest1() throws IOException {
+		SocketPool pool = new SocketPool(1);
+		DatagramSocket socket = pool.acquire();
+		assertTrue(pool.getIdle() == 0);
+		int port = socket.getLocalPort();
+
+		DatagramSocket peer = new DatagramSocket();
+		peer.send(TFTP.formACKPacket(InetAddress.getLoopbackAddress(), port, 1));
+		peer.close();
+		pool.release(socket);
+		assertTrue(pool.getIdle() == 1);
+
+		socket = pool.acquire();
+		assertTrue(socket.getLocalPort() == port);
+		socket.setSoTimeout(100);
+		try {
+			socket.receive(TFTP.formPacket());
+			fail("Stale datagram was not drained");
+		} catch (SocketTimeoutException e) {
+		}
+
+		// A socket given back to a closed pool is closed
+		pool.close();
+		pool.release(socket);
+		assertTrue(socket.isClosed());
+	}
+
+	//public boolean applyOption(String value)
+	//Apply the multicast option of a first OACK, of an OACK that makes the client master, and invalid values
+	//Expects the group to be kept when left out, and only multicast groups to be accepted
+	@Test
+	public void multicastReceiverTest1() {
+		MulticastReceiver receiver = new MulticastReceiver(null, null, 1234, new TransferOptions(), 3);
+		assertTrue(receiver.applyOption("239.255.0.69,1758,0"));
+		assertFalse(receiver.isMaster());
+		assertTrue(receiver.applyOption(",,1"));
+		assertTrue(receiver.isMaster());
+
+		assertFalse(new MulticastReceiver(null, null, 1234, new TransferOptions(), 3).applyOption("127.0.0.1,1758,1"));
+		assertFalse(new MulticastReceiver(null, null, 1234, new TransferOptions(), 3).applyOption("239.255.0.69,1758"));
+		assertFalse(new MulticastReceiver(null, null, 1234, new TransferOptions(), 3).applyOption("239.255.0.69,1758,2"));
+		assertFalse(new MulticastReceiver(null, null, 1234, new TransferOptions(), 3).applyOption(",,1"));
+	}
+
+	//public void duplicateRequest(String requestKey)
+	//Join a second client to a running multicast session, lose its OACK and have it send its request again, then have both clients leave
+	//Expects the duplicate request to be answered with the same non-master OACK, and the second client to be made master once the first leaves
+	@Test
+	public void multicastSessionTest1() throws Exception {
+		// Setup
+		File f = new File("multicastSessionTest1.txt");
+		Files.write(f.toPath(), new byte[100]);
+		InetAddress addr = InetAddress.getLoopbackAddress();
+		DatagramSocket first = new DatagramSocket();
+		DatagramSocket second = new DatagramSocket();
+		first.setSoTimeout(5000);
+		second.setSoTimeout(5000);
+		Request r = new Request(Request.Type.READ, f.getName(), TFTP.MODE_OCTET);
+		r.setOption(TFTP.OPTION_MULTICAST, "");
+		String firstKey = ActiveRequests.keyOf(TFTP.formRQPacket(addr, first.getLocalPort(), r));
+		String secondKey = ActiveRequests.keyOf(TFTP.formRQPacket(addr, second.getLocalPort(), r));
+		ActiveRequests active = new ActiveRequests();
+		ServerMetrics metrics = new ServerMetrics();
+		TransferOptions options = new TransferOptions();
+		Map<String, String> accepted = new LinkedHashMap<String, String>();
+
+		MulticastSession session = new MulticastSession(f.getPath(), InetAddress.getByName("239.255.0.69"), 47581, new FileBlockSource(f.getPath(), options.getBlockSize()), options, 3, metrics, active);
+		Thread thread = new Thread(session);
+		try {
+			assertTrue(active.add(firstKey));
+			assertTrue(session.join(addr, first.getLocalPort(), options, accepted, metrics.transferStarted(), firstKey));
+			thread.start();
+			DatagramPacket oack = TFTP.formPacket();
+			first.receive(oack);
+			assertTrue(TFTP.getOptions(oack).get(TFTP.OPTION_MULTICAST).endsWith(",1"));
+
+			// The second client joins while the first is master, and its OACK is lost
+			assertTrue(active.add(secondKey));
+			assertTrue(session.join(addr, second.getLocalPort(), options, accepted, metrics.transferStarted(), secondKey));
+			first.send(TFTP.formACKPacket(oack.getAddress(), oack.getPort(), 0));
+			second.receive(oack);
+			assertTrue(TFTP.getOptions(oack).get(TFTP.OPTION_MULTICAST).endsWith(",0"));
+
+			// Its request sent again is a duplicate, answered by the session
+			assertFalse(active.add(secondKey));
+			active.answerDuplicate(secondKey);
+			second.receive(oack);
+			assertTrue(TFTP.getOptions(oack).get(TFTP.OPTION_MULTICAST).endsWith(",0"));
+
+			// Once the first client leaves, the second is made master
+			first.send(TFTP.formERRORPacket(oack.getAddress(), oack.getPort(), TFTP.ERROR_CODE_NOT_DEFINED, "Leaving"));
+			second.receive(oack);
+			assertTrue(TFTP.getOptions(oack).get(TFTP.OPTION_MULTICAST).endsWith(",1"));
+			second.send(TFTP.formERRORPacket(oack.getAddress(), oack.getPort(), TFTP.ERROR_CODE_NOT_DEFINED, "Leaving"));
+			thread.join(5000);
+			assertTrue(session.isClosed());
+			assertTrue(active.size() == 0);
+		} finally {
+			// Cleanup
+			first.close();
+			second.close();
+			thread.join(5000);
+			f.delete();
+		}
+	}
+
+	//private void serve()
+	//Read a file of three blocks as the only client of a multicast session, with a delayed duplicate of ACK 0 arriving after ACK 1
+	//Expects each block to be sent to the group once, and the duplicate ACK not to be answered
+	@Test
+	public void multicastSessionTest2() throws Exception {
+		// Setup
+		File f = new File("multicastSessionTest2.txt");
+		Files.write(f.toPath(), new byte[2 * TFTP.MAX_DATA_SIZE + 10]);
+		InetAddress addr = InetAddress.getLoopbackAddress();
+		DatagramSocket client = new DatagramSocket();
+		client.setSoTimeout(5000);
+		Request r = new Request(Request.Type.READ, f.getName(), TFTP.MODE_OCTET);
+		r.setOption(TFTP.OPTION_MULTICAST, "");
+		String key = ActiveRequests.keyOf(TFTP.formRQPacket(addr, client.getLocalPort(), r));
+		ActiveRequests active = new ActiveRequests();
+		ServerMetrics metrics = new ServerMetrics();
+		TransferOptions options = new TransferOptions();
+
+		MulticastSession session = new MulticastSession(f.getPath(), InetAddress.getByName("239.255.0.69"), 47582, new FileBlockSource(f.getPath(), options.getBlockSize()), options, 3, metrics, active);
+		Thread thread = new Thread(session);
+		try {
+			assertTrue(active.add(key));
+			assertTrue(session.join(addr, client.getLocalPort(), options, new LinkedHashMap<String, String>(), metrics.transferStarted(), key));
+			thread.start();
+			DatagramPacket oack = TFTP.formPacket();
+			client.receive(oack);
+			assertTrue(TFTP.getOptions(oack).get(TFTP.OPTION_MULTICAST).endsWith(",1"));
+
+			for (int block : new int[] {0, 1, 0, 2, 3}) {
+				client.send(TFTP.formACKPacket(oack.getAddress(), oack.getPort(), block));
+			}
+			thread.join(5000);
+			assertTrue(session.isClosed());
+			assertTrue(metrics.getBytesSent() == f.length());
+			assertTrue(metrics.getRetransmits() == 0);
+		} finally {
+			// Cleanup
+			client.close();
+			thread.join(5000);
+			f.delete();
+		}
+	}
+
+	//public void addManifest(String manifestPath)
+	//Read a manifest with comments, blank lines and each job keyword, then one with a bad line
+	//Expects one job per job line, and the bad line to be refused
+	@Test
+	public void batchTransfersTest1() throws IOException {
+		File manifest = new File("batchTransfersTest1.txt");
+		try {
+			Files.write(manifest.toPath(), "# boot files\nget kernel.img\n\nread initrd.img\nput log.txt\nWRITE dump.bin\n".getBytes());
+			BatchTransfers batch = new BatchTransfers(new String[0], InetAddress.getLoopbackAddress(), "." + File.separator, 2);
+			batch.addManifest(manifest.getPath());
+			assertTrue(batch.size() == 4);
+			assertTrue(BatchTransfers.parseType("put") == Request.Type.WRITE);
+			assertTrue(BatchTransfers.parseType("delete") == null);
+
+			Files.write(manifest.toPath(), "get kernel.img extra\n".getBytes());
+			try {
+				batch.addManifest(manifest.getPath());
+				fail("Bad manifest line was accepted");
+			} catch (IllegalArgumentException e) {
+			}
+		} finally {
+			// Cleanup
+			manifest.delete();
+		}
+	}
+
+	//public boolean run()
+	//Run two reads into a directory that does not exist, so that neither file can be created
+	//Expects both jobs to fail with the I/O error in the summary, without ending the JVM
+	@Test
+	public void batchTransfersTest2() {
+		PrintStream out = System.out;
+		ByteArrayOutputStream summary = new ByteArrayOutputStream();
+		BatchTransfers batch = new BatchTransfers(new String[0], InetAddress.getLoopbackAddress(), "batchTransfersTest2-missing" + File.separator, 2);
+		batch.add(Request.Type.READ, "first.txt");
+		batch.add(Request.Type.READ, "second.txt");
+		System.setOut(new PrintStream(summary));
+		try {
+			assertFalse(batch.run());
+		} finally {
+			System.setOut(out);
+		}
+		assertTrue(summary.toString().contains("2 job(s), 2 failed"));
+		assertTrue(summary.toString().contains("failed: "));
+	}
+
+	//public CompletableFuture<TransferResult> get(String fileName, String filePath)
+	//Read a file that the server sends in one DATA packet, then a file that the server answers with an ERROR packet
+	//Expects the file and its size in the result, then the future to fail with the message of the ERROR packet
+	@Test
+	public void tftpClientTest1() throws Exception {
+		File file = new File("tftpClientTest1.txt");
+		DatagramSocket server = new DatagramSocket();
+		DatagramSocket transfer = new DatagramSocket();
+		TftpClient client = new TftpClient(InetAddress.getLoopbackAddress(), server.getLocalPort(), null, 2);
+		try {
+			server.setSoTimeout(5000);
+			transfer.setSoTimeout(5000);
+			CompletableFuture<TransferResult> future = client.get("hello.txt", file.getPath());
+			DatagramPacket request = TFTP.formPacket();
+			server.receive(request);
+			assertTrue(TFTP.getOpCode(request) == TFTP.READ_OP_CODE);
+			transfer.send(TFTP.formDATAPacket(request.getAddress(), request.getPort(), 1, "hello".getBytes()));
+			DatagramPacket ack = TFTP.formPacket();
+			transfer.receive(ack);
+			assertTrue(TFTP.getBlockNumber(ack) == 1);
+
+			TransferResult result = future.get();
+			assertTrue(result.getBytes() == 5);
+			assertTrue(result.getRetransmits() == 0);
+			assertTrue(new String(Files.readAllBytes(file.toPath())).equals("hello"));
+
+			future = client.get("missing.txt", "tftpClientTest1-missing.txt");
+			server.receive(request);
+			transfer.send(TFTP.formERRORPacket(request.getAddress(), request.getPort(), TFTP.ERROR_CODE_FILE_NOT_FOUND, "File not found"));
+			try {
+				future.get();
+				fail("Transfer answered with an ERROR packet completed");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+				assertTrue(e.getCause().getMessage().contains("File not found"));
+			}
+			assertFalse(new File("tftpClientTest1-missing.txt").exists());
+		} finally {
+			// Cleanup
+			client.close();
+			server.close();
+			transfer.close();
+			file.delete();
+		}
+	}
+
+	//private TransferResult transfer(Request.Type type, String fileName, String filePath, Channel channel, boolean resumable)
+	//Read a file whose final ACK the server takes as lost and answers with the last DATA packet again, then read another file
+	//Expects the second read to come from a new port and to receive its own file, not the DATA packet of the first
+	@Test
+	public void tftpClientTest2() throws Exception {
+		File file = new File("tftpClientTest2.txt");
+		DatagramSocket server = new DatagramSocket();
+		DatagramSocket transfer = new DatagramSocket();
+		TftpClient client = new TftpClient(InetAddress.getLoopbackAddress(), server.getLocalPort(), null, 1);
+		try {
+			server.setSoTimeout(5000);
+			transfer.setSoTimeout(5000);
+			CompletableFuture<TransferResult> future = client.get("first.txt", file.getPath());
+			DatagramPacket request = TFTP.formPacket();
+			server.receive(request);
+			int firstPort = request.getPort();
+			DatagramPacket lastData = TFTP.formDATAPacket(request.getAddress(), firstPort, 1, "first".getBytes());
+			transfer.send(lastData);
+			future.get();
+
+			// The last DATA packet again, as if the final ACK was lost
+			transfer.send(lastData);
+
+			future = client.get("second.txt", file.getPath());
+			server.receive(request);
+			assertTrue(request.getPort() != firstPort);
+			DatagramSocket transfer2 = new DatagramSocket();
+			try {
+				transfer2.setSoTimeout(5000);
+				transfer2.send(TFTP.formDATAPacket(request.getAddress(), request.getPort(), 1, "second".getBytes()));
+				DatagramPacket ack = TFTP.formPacket();
+				transfer2.receive(ack);
+				assertTrue(TFTP.getOpCode(ack) == TFTP.ACK_OP_CODE);
+			} finally {
+				transfer2.close();
+			}
+			assertTrue(future.get().getBytes() == 6);
+			assertTrue(new String(Files.readAllBytes(file.toPath())).equals("second"));
+		} finally {
+			// Cleanup
+			client.close();
+			server.close();
+			transfer.close();
+			file.delete();
+		}
+	}
+
+	//public int readBlock(long blockIndex, byte[] buf, int offset)
+	//Read a stream of one full block and a short block in order, then a block out of order
+	//Expects both blocks with the last one short, and the out of order read to be refused
+	@Test
+	public void channelBlockSourceTest1() throws IOException {
+		byte[] stream = new byte[700];
+		Arrays.fill(stream, 512, 700, (byte)2);
+		ChannelBlockSource source = new ChannelBlockSource(Channels.newChannel(new ByteArrayInputStream(stream)), 512);
+		byte[] buf = new byte[516];
+		assertTrue(source.readBlock(1, buf, 4) == 512);
+		assertTrue(source.readBlock(2, buf, 4) == 188);
+		assertTrue(buf[4] == 2);
+		assertTrue(source.getBytesRead() == 700);
+		try {
+			source.readBlock(1, buf, 4);
+			fail("Block of a stream was read twice");
+		} catch (IOException e) {
+		}
+	}
+
+	//public void write(byte[] buf, int offset, int length)
+	//Write two blocks to a stream, then abort
+	//Expects the blocks to be passed on as they are written
+	@Test
+	public void channelBlockSinkTest1() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		BlockSink sink = new ChannelBlockSink(Channels.newChannel(stream));
+		byte[] block1 = {0, 3, 0, 1, 1, 1, 1};
+		byte[] block2 = {0, 3, 0, 2, 2};
+		sink.write(block1, 4, 3);
+		sink.write(block2, 4, 1);
+		sink.abort();
+		assertTrue(sink.getBytesWritten() == 4);
+		assertTrue(Arrays.equals(stream.toByteArray(), new byte[] {1, 1, 1, 2}));
+	}
+
+	//public int readBlock(long blockIndex, byte[] buf, int offset)
+	//Read a stream of three blocks through a reader two blocks deep, then a source whose second read fails
+	//Expects the blocks in order with the last one short, then the failure of the second block
+	@Test
+	public void prefetchingBlockSourceTest1() throws IOException {
+		byte[] stream = new byte[1100];
+		Arrays.fill(stream, 512, 1024, (byte)2);
+		Arrays.fill(stream, 1024, 1100, (byte)3);
+		BlockSource source = new PrefetchingBlockSource(new ChannelBlockSource(Channels.newChannel(new ByteArrayInputStream(stream)), 512), 2);
+		try {
+			byte[] buf = new byte[516];
+			assertTrue(source.readBlock(1, buf, 4) == 512);
+			assertTrue(buf[4] == 0);
+			assertTrue(source.readBlock(2, buf, 4) == 512);
+			assertTrue(buf[4] == 2);
+			assertTrue(source.readBlock(3, buf, 4) == 76);
+			assertTrue(buf[4] == 3);
+		} finally {
+			source.close();
+		}
+
+		source = new PrefetchingBlockSource(new BlockSource() {
+			public int readBlock(long blockIndex, byte[] buf, int offset) throws IOException {
+				if (blockIndex == 2) throw new IOException("Disk error");
+				return 512;
+			}
+
+			public int getBlockSize() {
+				return 512;
+			}
+
+			public void close() {
+			}
+		}, 2);
+		try {
+			byte[] buf = new byte[512];
+			assertTrue(source.readBlock(1, buf, 0) == 512);
+			try {
+				source.readBlock(2, buf, 0);
+				fail("Failed read was not reported");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().equals("Disk error"));
+			}
+		} finally {
+			source.close();
+		}
+	}
 }